@@ -0,0 +1,87 @@
+package core.dflic;
+
+import java.util.*;
+
+import core.field.Vec2Iterator;
+import core.image.AccumImage;
+import core.math.Vec2;
+
+/**
+ *   Iterates in random order over the pixels of an AccumImage that are
+ *   not yet covered.
+ *
+ * The iterator keeps the set of pixels whose alpha is below the "minalpha"
+ * of the image in an array. A random pixel is drawn by picking a random
+ * entry and moving the last entry into its place, in constant time.
+ * Pixels that become covered while the iterator is in use are not removed
+ * right away, since the image does not report them, but when they are
+ * drawn they are discarded and another pixel is drawn instead. Each
+ * pixel is therefore looked at only once more after it becomes covered,
+ * and next() only ever returns pixels that are still uncovered.
+ *
+ * Every pixel is returned at most once. The sequence ends when every pixel
+ * of the window is covered, or has been returned.
+ * @version 1.0
+ */
+public class CoverageIterator implements Vec2Iterator {
+
+  /** Constructs a CoverageIterator over all the pixels of "image" that are
+   * not covered, drawing them in the order given by "random". */
+  public CoverageIterator(AccumImage image, Random random){
+    this(image, 0, 0, 0, 0, image.width, image.height, random);
+  }
+  /** Constructs a CoverageIterator over the pixels that are not covered in
+   * the window [x0, x1) x [y0, y1), given in the coordinates of the points
+   * the iterator produces. The pixel (x, y) of the window is the pixel
+   * (x-ox, y-oy) of "image".
+   * Requires: the window lies inside "image" */
+  public CoverageIterator(AccumImage image, int ox, int oy, int x0, int y0, int x1, int y1, Random random){
+    this.image = image;
+    this.ox = ox;
+    this.oy = oy;
+    this.x0 = x0;
+    this.y0 = y0;
+    this.width = x1-x0;
+    this.random = random;
+    int size = width*(y1-y0);
+    pixels = new int[size];
+    count = 0;
+    for (int y = y0, n = 0; y<y1; ++y)
+      for (int k = image.offset[y-oy] + (x0-ox), x = x0; x<x1; ++x, ++k, ++n)
+        if (image.a[k]<image.minalpha)
+          pixels[count++] = n;
+  }
+  /** Returns: the number of pixels left in the set. This counts every
+   *   uncovered pixel, but also the covered pixels that have not been drawn
+   *   and discarded yet, so it is an upper bound. */
+  public int size(){
+    return count;
+  }
+  /** Returns: null if there are no more uncovered pixels, else a Vec2
+   *          whose value is a random uncovered pixel. The returned Vec2
+   *          may be modified by the caller. The same Vec2 may be
+   *          written to again on the subsequent call to next(). */
+  public Vec2 next(){
+    while (count>0) {
+      int r = random.nextInt(count);
+      int n = pixels[r];
+      pixels[r] = pixels[--count];
+      int x = x0 + n%width;
+      int y = y0 + n/width;
+      if (image.a[image.offset[y-oy] + (x-ox)]<image.minalpha) {
+        v.x = x;
+        v.y = y;
+        return v;
+      }
+    }
+    return null;
+  }
+
+  private AccumImage image;
+  private int ox, oy, x0, y0, width;
+  private int[] pixels;
+  private int count;
+  private Random random;
+  private Vec2 v = new Vec2();
+
+}
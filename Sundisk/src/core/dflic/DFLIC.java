@@ -4,11 +4,13 @@ package core.dflic;
  * 
  * 
  */
+import java.io.*;
 import java.util.*;
 import core.field.ScanlineGridIterator;
 import core.field.Vec2Field;
 import core.field.Vec2Iterator;
 import core.image.AccumImage;
+import core.math.Parallel;
 import core.math.Vec2;
 import core.math.Vec2Transform;
 
@@ -49,6 +51,7 @@ public class DFLIC {
   private double mincoverage, maxcoverage;
   private double[] inputfilterkernel;
   private int inputfilterrepeat;
+  private int threads;
   private Random random;
   private FLIC flic;
   
@@ -81,6 +84,7 @@ public class DFLIC {
     SetDefaultInputFilterKernel();
     SetDefaultInputFilterRepeat();
     SetDefaultNormalize();
+    SetDefaultThreads();
     InitializeElements();
     InitializeRandom();
   }
@@ -234,6 +238,16 @@ public class DFLIC {
   public void SetDefaultNormalize(){
     SetNormalize(true);
   }
+  /** Sets the number of threads FLIC uses to compute each frame, and that
+   *   Evolve() uses to move the elements. */
+  public void SetThreads(int threads){
+    this.threads = threads;
+    flic.SetThreads(threads);
+  }
+  /** By default, a single thread is used. */
+  public void SetDefaultThreads(){
+    SetThreads(1);
+  }
   /** Clears the list of singularities. */
   public void ClearSingularities(){
     flic.ClearSingularities();
@@ -249,32 +263,103 @@ public class DFLIC {
    *   its random distribution. */
   public void SetRandom(Random random){
     this.random = random;
+    flic.SetRandom(random);
   }
   /** Initializes the random-number generator with a randomly-seeded Random
    *   object */
   public void InitializeRandom(){
     SetRandom(new Random());
   }
+  /** Writes the state that carries over from one frame to the next to
+   *   "out": the elements, in storage and in seed order, and the state of
+   *   the pseudo-random number generator. Restoring it with ReadState()
+   *   into a DFLIC with the same parameters continues the animation exactly
+   *   as if it had not been interrupted. */
+  public void WriteState(DataOutput out) throws IOException {
+    out.writeInt(elcount);
+    for (int i = 0; i<elcount; ++i) {
+      out.writeFloat(elx[i]);
+      out.writeFloat(ely[i]);
+      out.writeFloat(elc[i]);
+    }
+    out.writeInt(elordercount);
+    for (int k = 0; k<elordercount; ++k)
+      out.writeInt(elorder[k]);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream stream = new ObjectOutputStream(bytes);
+    stream.writeObject(random);
+    stream.close();
+    out.writeInt(bytes.size());
+    out.write(bytes.toByteArray());
+  }
+  /** Restores the state written by WriteState() from "in". The restored
+   *   pseudo-random number generator replaces the one set by SetRandom(). */
+  public void ReadState(DataInput in) throws IOException {
+    int count = in.readInt();
+    InitializeElements();
+    InitializeElements(Math.max(count, 1));
+    for (int i = 0; i<count; ++i) {
+      elx[i] = in.readFloat();
+      ely[i] = in.readFloat();
+      elc[i] = in.readFloat();
+      elrank[i] = -1;
+    }
+    elcount = count;
+    elordercount = in.readInt();
+    for (int k = 0; k<elordercount; ++k) {
+      int i = in.readInt();
+      if ((i<0) || (i>=count))
+        throw new IOException("DFLIC.ReadState: Element " + i + " out of range");
+      elorder[k] = i;
+      elrank[i] = k;
+    }
+
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    try {
+      ObjectInputStream stream = new ObjectInputStream(new ByteArrayInputStream(bytes));
+      SetRandom((Random)stream.readObject());
+    } catch (ClassNotFoundException e) {
+      throw new IOException("DFLIC.ReadState: " + e);
+    }
+  }
   /** Computes the next FLIC image in the animation sequence using "field". 
    *   The input image to FLIC is automatically computed in such a way
    *   to preserve the frame-to-frame coherence of the animation. */ 
   public void Compute(){
     InitializeInput();
     InitializeElements(input.width*input.height*2);  
-    ElementIterInit();
-    int i;
-    while ((i = ElementIterNext())>=0)
-      if (input.inBounds(ftoi.V(elp)))
-        input.AccumulateBilinear(elp, elc[i]);
-      else
-        ElementIterDelete();
+    if ((splatx==null) || (splatx.length<elmax)) {
+      splatx = new double[elmax];
+      splaty = new double[elmax];
+      splats = new double[elmax];
+    }
+    int i = 0;
+    while (i<elcount) {
+      elp.x = elx[i];
+      elp.y = ely[i];
+      if (input.inBounds(ftoi.V(elp))) {
+        splatx[i] = elp.x;
+        splaty[i] = elp.y;
+        splats[i] = elc[i];
+        ++i;
+      } else
+        ElementDelete(i);
+    }
+    input.AccumulateBilinearUnchecked(splatx, splaty, splats, 0, elcount);
     
-    ElementIterInit();
-    while ((i = ElementIterNext())>=0) {
+    i = 0;
+    while (i<elcount) {
+      elp.x = elx[i];
+      elp.y = ely[i];
       ftoi.V(elp);
       if (input.getAlpha(round(elp.x), round(elp.y))>2.0)
-        ElementIterDelete();
+        ElementDelete(i);
+      else
+        ++i;
     }
+    ElementCompactOrder();
     
     Vec2Iterator iterator = new ScanlineGridIterator(input.width, input.height);
     Vec2 p;
@@ -285,7 +370,7 @@ public class DFLIC {
         p.y += 0.5*random.nextFloat() - 0.25;
         double c = 2.0*random.nextFloat() - 1.0;
         itof.V(p, elp);
-        i = ElementAdd(elp.x, elp.y, c);
+        ElementAdd(elp.x, elp.y, c);
         input.AccumulateBilinear(p, c);
       } else if (alpha>2.0) {
         itof.V(p, elp);
@@ -316,20 +401,27 @@ public class DFLIC {
    *   the input image to FLIC are evolved according to "dfield" using 
    *   simple Euler integration. Other integration methods might yield 
    *   slightly more accurate results, but added computational cost does
-   *   not produce significant benefits. */
+   *   not produce significant benefits.
+   * The elements are divided into contiguous blocks, one per thread. Each
+   *   element moves independently of the others, so the result does not
+   *   depend on the number of threads, but "dfield" must then be safe to
+   *   evaluate from several threads at once. */
   public void Evolve(double dt, double maxStep){
+    int n = elcount;
     while (dt>0) {
-      double step = (dt>maxStep) ? maxStep : dt;
+      final double step = (dt>maxStep) ? maxStep : dt;
       dt -= step;
-      ElementIterInit();
-      int i;
-      Vec2 v = new Vec2();
-      while ((i = ElementIterNext())>=0) {
-        dfield.get(elp, v);
-        elp.AddScaled(v, step);
-        elx[i] = (float)elp.x;
-        ely[i] = (float)elp.y;
-      }
+      Parallel.For(n, threads, new Parallel.Body() {
+        public void Run(int start, int end, int thread){
+          double[] v = new double[2];
+          for (int i = start; i<end; ++i) {
+            double x = elx[i], y = ely[i];
+            dfield.get(x, y, v, 0);
+            elx[i] = (float)(x + step*v[0]);
+            ely[i] = (float)(y + step*v[1]);
+          }
+        }
+      });
     }
   }
   /** Evolves the DFLIC state by a time step "dt". The elements that comprise
@@ -366,23 +458,29 @@ public class DFLIC {
     flic.SetFtoITransform(ftoi);
   }
   
-  private int elmax, elempty;
+  /* The elements are stored densely in elx, ely and elc at the indices
+   *   [0, elcount), so that the passes over them read memory in order. A
+   *   deleted element is replaced by the last one. The order in which FLIC
+   *   uses the elements as seeds is kept apart from the storage order:
+   *   elorder[k] is the index of the k-th seed and elrank[i] the position
+   *   of element i in elorder, or -1 if it has not been merged yet. The
+   *   elements of a frame keep their seed order in the next frame, and the
+   *   new ones are shuffled in behind them. */
+  private int elmax, elcount, elordercount;
   private float[] elx, ely, elc;
-  private int[] elnext, eltemp;
-  private int eliter, eliterlast;
+  private int[] elorder, elrank;
   private Vec2 elp = new Vec2();
-  private int[] elcurrent, elnew;
+  /** The points of the input and the values the elements are accumulated
+   *   from, in one batch */
+  private double[] splatx, splaty, splats;
   
   private void InitializeElements()
   {
     elmax = 0;
-    elempty = -1;
+    elcount = 0;
+    elordercount = 0;
     elx = ely = elc = null;
-    elnext = eltemp = null;
-    elcurrent = new int[2];
-    elcurrent[0] = elcurrent[1] = -1;
-    elnew = new int[2];
-    elnew[0] = elnew[1] = -1;
+    elorder = elrank = null;
   }
   
   private void InitializeElements(int max)
@@ -406,114 +504,105 @@ public class DFLIC {
     elc = tempf;
     
     int[] tempi = new int[max];
-    if (elnext!=null)
-      System.arraycopy(elnext, 0, tempi, 0, elmax);
-    elnext = tempi;
+    if (elorder!=null)
+      System.arraycopy(elorder, 0, tempi, 0, elmax);
+    elorder = tempi;
     
-    for (int i = elmax; i<(max-1); ++i)
-      elnext[i] = i+1;
-    elnext[max-1] = elempty;
-    elempty = elmax;
-    
-    eltemp = new int[max];
+    tempi = new int[max];
+    if (elrank!=null)
+      System.arraycopy(elrank, 0, tempi, 0, elmax);
+    elrank = tempi;
     
     elmax = max;
   }
   
-  private void ElementIterInit()
+  /** Deletes element "i" by moving the last element into its place, and
+   *   leaves a hole in elorder that ElementCompactOrder() removes. */
+  private void ElementDelete(int i)
   {
-    eliter = -1;
-    eliterlast = -1;
-  }
-  
-  private int ElementIterNext()
-  {
-    eliterlast = eliter;
-    if (eliter<0)
-      eliter = elcurrent[0];
-    else
-      eliter = elnext[eliter];
-    if (eliter>=0) {
-      elp.x = elx[eliter];
-      elp.y = ely[eliter];
+    int k = elrank[i];
+    if (k>=0)
+      elorder[k] = -1;
+    int last = --elcount;
+    if (i!=last) {
+      elx[i] = elx[last];
+      ely[i] = ely[last];
+      elc[i] = elc[last];
+      k = elrank[last];
+      elrank[i] = k;
+      if (k>=0)
+        elorder[k] = i;
     }
-    return eliter;
   }
   
-  private void ElementIterDelete()
+  /** Removes the holes left in elorder by ElementDelete(). */
+  private void ElementCompactOrder()
   {
-    if (eliterlast<0) {
-      elcurrent[0] = elnext[eliter];
-    } else
-      elnext[eliterlast] = elnext[eliter];
-    if (elnext[eliter]<0)
-      elcurrent[1] = eliterlast;
-    elnext[eliter] = elempty;
-    elempty = eliter;
-    eliter = eliterlast;
+    int n = 0;
+    for (int k = 0; k<elordercount; ++k) {
+      int i = elorder[k];
+      if (i>=0) {
+        elorder[n] = i;
+        elrank[i] = n;
+        ++n;
+      }
+    }
+    elordercount = n;
   }
   
   private int ElementAdd(double x, double y, double c)
   {
-    int i = elempty;
-    if (i<0)
+    int i = elcount;
+    if (i>=elmax)
       throw new RuntimeException("DFLIC.ElementAdd: No more free elements!");
-    elempty = elnext[i];
+    ++elcount;
     elx[i] = (float)x;
     ely[i] = (float)y;
     elc[i] = (float)c;
-    elnext[i] = -1;
-    if (elnew[1]<0)
-      elnew[0] = elnew[1] = i;
-    else {
-      elnext[elnew[1]] = i;
-      elnew[1] = i;
-    }
+    elrank[i] = -1;
     return i;
   }
   
+  /** Appends the elements added since the last merge to the seed order,
+   *   in random order. These are the last elements in the store.
+   * Requires: ElementCompactOrder() has been called since the last
+   *   ElementDelete() */
   private void ElementMerge()
   {
-    int n = 0, j = elnew[0];
-    for ( ; j>=0; ++n, j = elnext[j])
-      eltemp[n] = j;
+    int first = elordercount;
+    int n = elcount - first;
     if (n==0)
       return;
+    for (int i = 0; i<n; ++i)
+      elorder[first+i] = first+i;
     for (int i = 0; i<n; ++i) {
       int r = random.nextInt(n);
-      int temp = eltemp[i];
-      eltemp[i] = eltemp[r];
-      eltemp[r] = temp;
+      int temp = elorder[first+i];
+      elorder[first+i] = elorder[first+r];
+      elorder[first+r] = temp;
     }
-    elnext[eltemp[n-1]] = -1;
-    for (int i = n-2; i>=0; --i)
-      elnext[eltemp[i]] = eltemp[i+1];
-    if (elcurrent[1]<0) {
-      elcurrent[0] = eltemp[0];
-      elcurrent[1] = eltemp[n-1];
-    } else {
-      elnext[elcurrent[1]] = eltemp[0];
-      elcurrent[1] = eltemp[n-1];
-    }
-    elnew[0] = elnew[1] = -1;
+    for (int k = first; k<first+n; ++k)
+      elrank[elorder[k]] = k;
+    elordercount = first + n;
   }
   
+  /** Produces the positions of the elements in seed order, in the
+   *   coordinates of the output image. */
   private class ElementIterator implements Vec2Iterator {
+    private int k;
+    
     public ElementIterator()
     {
-      eliter = -1;
+      k = 0;
     }
     
     public Vec2 next()
     {
-      if (eliter<0)
-        eliter = elcurrent[0];
-      else
-        eliter = elnext[eliter];
-      if (eliter<0)
+      if (k>=elordercount)
         return null;
-      elp.x = elx[eliter];
-      elp.y = ely[eliter];
+      int i = elorder[k++];
+      elp.x = elx[i];
+      elp.y = ely[i];
       return ftoo.V(elp);
     }
   }
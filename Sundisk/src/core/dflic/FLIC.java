@@ -2,12 +2,11 @@ package core.dflic;
 
 import java.util.*;
 
-import core.field.RandomGridIterator;
-import core.field.ScanlineGridIterator;
 import core.field.Vec2Field;
 import core.field.Vec2Iterator;
 import core.image.AccumImage;
 import core.image.ScalarImage;
+import core.math.Parallel;
 import core.math.Vec2;
 import core.math.Vec2Transform;
 /** Fast Line Integral Convolution algorithm.
@@ -21,8 +20,20 @@ import core.math.Vec2Transform;
 * kernel width and sampling step, the maximum length to follow any particular
 * streamline, the minimum and maximum sampling coverage of each output
 * pixel, and an iterator specifying the order in which samples should be
-* chosen. Most of these parameters have default values that will result in
+* chosen. By default the seed points are drawn at random from the output
+* pixels that are not covered yet, so that no seed is wasted on a pixel that
+* is already covered. Most of these parameters have default values that will result in
 * a good rendition of the LIC effect.
+*
+* FLIC can also run on several threads. In that case the output image is
+* divided into a grid of tiles, and each tile is computed by its own worker
+* with its own streamlines, sample buffers and accumulation image. The image
+* of each worker covers its tile plus a halo wide enough to hold every
+* streamline started inside the tile, and the halos are added together into
+* the output when all the tiles are done. Seed points are handed to the tiles
+* in the order the iterator produces them, so the result only depends on the
+* iterator and the tile grid, and not on the scheduling of the threads.
+* The vector field must be safe to evaluate from several threads at once.
  * @author Andreas Sundquist
  * @version 1.0
 */
@@ -37,8 +48,10 @@ public class FLIC {
   private Vec2Transform ftoo, otof, ftoi, itoo;
   private double ostreamlen, ostepsize, omaxlen, mincoverage, maxcoverage;
   private Vec2Iterator iterator;
+  private Random random;
   private boolean clear, normalize;
   private Vector singularities;
+  private int threads, xtiles, ytiles;
   
   /** Constructs an instance of a FLIC with the given initial parameters. 
    *   Note that this does *not* actually perform the computation, but retains
@@ -80,9 +93,11 @@ public class FLIC {
     SetDefaultMaxLen();
     SetDefaultMinCoverage();
     SetDefaultMaxCoverage();
+    SetDefaultRandom();
     SetDefaultIterator();
     SetDefaultClear();
     SetDefaultNormalize();
+    SetDefaultThreads();
     ClearSingularities();
   }
   /** Sets the input image to "input" */  
@@ -202,18 +217,31 @@ public class FLIC {
   public void SetIterator(Vec2Iterator iterator){
     this.iterator = iterator;
   }
-  /** Sets the default ordering of streamline seed points, which is a pseudo-
-   *   random sequence of points. */ 
+  /** Sets the default ordering of streamline seed points, a random sequence
+   *   of the output pixels that are not yet covered, drawn with the
+   *   random-number generator set by SetRandom(). */ 
   public void SetDefaultIterator() {
-    iterator = new RandomGridIterator(output.width, output.height);
+    iterator = null;
   }
-  /** Sets the default ordering of streamline seed points, a pseudo-random
-   *   sequence of points generated by the random-number generator "random".
+  /** Sets the default ordering of streamline seed points, a random sequence
+   *   of the uncovered output pixels drawn with the random-number generator
+   *   "random".
    * By passing in a "random" object seeded with the same value, the set
    *   of streamline seed points becomes deterministic (but randomly 
    *   distributed all the same). */  
   public void SetDefaultIterator(Random random){
-    iterator = new RandomGridIterator(output.width, output.height, random);
+    SetRandom(random);
+    SetDefaultIterator();
+  }
+  /** Sets the random-number generator used to pick the seed points of the
+   *   default iterator, and of the pass that fills in the pixels the
+   *   iterator left uncovered, to "random". */
+  public void SetRandom(Random random){
+    this.random = random;
+  }
+  /** By default, a randomly-seeded Random object is used. */
+  public void SetDefaultRandom(){
+    SetRandom(new Random());
   }
   /** Sets whether or not to normalize the output after rendering. */
   public void SetNormalize(boolean normalize){
@@ -231,6 +259,29 @@ public class FLIC {
   public void SetDefaultClear(){
     SetClear(true);
   }
+  /** Sets the number of threads used to compute the output image to
+   *   "threads". With more than one thread, the output is divided into tiles
+   *   that are computed in parallel. */
+  public void SetThreads(int threads){
+    this.threads = threads;
+  }
+  /** By default, FLIC runs on a single thread. */
+  public void SetDefaultThreads(){
+    SetThreads(1);
+  }
+  /** Sets the grid of tiles used when running on several threads to
+   *   "xtiles" by "ytiles". More tiles balance the load better, but every
+   *   tile holds its own accumulation image, including a halo of half the
+   *   maximum streamline length on each side. */
+  public void SetTiles(int xtiles, int ytiles){
+    this.xtiles = xtiles;
+    this.ytiles = ytiles;
+  }
+  /** By default, the tile grid is chosen so that there is one tile per
+   *   thread, with the tiles as close to square as possible. */
+  public void SetDefaultTiles(){
+    SetTiles(0, 0);
+  }
   /** Clears the list of singularities. */
   public void ClearSingularities(){
     singularities = new Vector();
@@ -242,93 +293,136 @@ public class FLIC {
   }
   
   /** Private temporary variables */
-  private double fstreamlen, istreamlen, fstepsize, fmaxlen, fcurlen;
-  private Streamline fstream, bstream;
-  private int sampleoffset;
-  private Vec2[] samplev;
-  private double[] sample;
+  private double fstreamlen, istreamlen, fstepsize, fmaxlen;
+  private int sampleoffset, contribsize;
+  private Worker serial;
+  private Worker[] workers;
   
   /** Executes the FLIC algorithm, filtering the input image using the given
    *   vector field to produce an output image.
    * The given iterator is used to sample the input image until the 95% of
    *   the output image pixels have achieved the minimum coverage requirement.
-   *   Then, the remaining output pixels are filled in using the LIC algorithm.
-   *   This results in improved performance since it becomes increasingly 
-   *   difficult to randomly select an uncovered pixel.
+   *   Then, the remaining output pixels are filled in using the LIC algorithm,
+   *   taking them in random order from the set of uncovered pixels. The long
+   *   streamlines of FLIC would mostly run over covered pixels by then.
+   * If more than one thread is set, the work is divided into tiles as
+   *   described above.
    * Requires: all the parameters are valid */ 
   public void Compute(){
-    if (iterator==null)
-      SetDefaultIterator();
-    
     if (clear)
       output.Clear();
     fstreamlen = otof.getScale()*ostreamlen;
     istreamlen = ftoi.getScale()*fstreamlen;
     fstepsize = otof.getScale()*ostepsize;
     fmaxlen = otof.getScale()*omaxlen;
+    contribsize = ceil(istreamlen)+1;
+    sampleoffset = ceil(0.5*fmaxlen/fstepsize)+1;
+    output.minalpha = mincoverage;
     
-    fstream = new Streamline(field, fstepsize);
-    bstream = new Streamline(field, fstepsize);
-    Enumeration enume = singularities.elements();
-    while (enume.hasMoreElements()) {
-      Vec2 v = (Vec2)enume.nextElement();
-      fstream.AddSingularity(v);
-      bstream.AddSingularity(v);
+    if (threads>1)
+      ComputeTiles();
+    else {
+      if ((serial==null) || (serial.image!=output))
+        serial = new Worker(output, 0, 0, 0, 0, output.width, output.height);
+      serial.Initialize();
+      
+      System.out.println("Beginning FLIC...");
+      serial.Compute(iterator, random, true);
     }
     
-    InitializeContrib(ceil(istreamlen)+1);
+    iterator = null;
+    if (normalize)
+      output.Normalize();
+  }
+  
+  /** Computes the output image on several threads by dividing it into tiles.
+   *   The seed points produced by the iterator are first sorted into the
+   *   tiles, keeping their order, and then every tile is computed by its own
+   *   worker. Finally, the worker images are added into the output. */
+  private void ComputeTiles(){
+    int nx = xtiles, ny = ytiles;
+    if ((nx<=0) || (ny<=0)) {
+      nx = threads;
+      ny = 1;
+      double best = Double.MAX_VALUE;
+      for (int j = 1; j<=threads; ++j)
+        if ((threads%j)==0) {
+          double aspect = ((double)output.width*j)/((double)output.height*(threads/j));
+          double error = Math.abs(Math.log(aspect));
+          if (error<best) {
+            best = error;
+            ny = j;
+            nx = threads/j;
+          }
+        }
+    }
+    if (nx>output.width)
+      nx = output.width;
+    if (ny>output.height)
+      ny = output.height;
     
-    sampleoffset = ceil(0.5*fmaxlen/fstepsize)+1;
-    samplev = new Vec2[sampleoffset*2+1];
-    sample = new double[sampleoffset*2+1];
-    for (int i = sampleoffset*2; i>=0; --i) {
-      samplev[i] = new Vec2();
-      sample[i] = 0.0;
+    int halo = ceil(0.5*omaxlen) + 2;
+    if ((workers==null) || (workers.length!=(nx*ny)) || (workers[0].halo!=halo) ||
+        (workers[workers.length-1].x1!=output.width) || (workers[workers.length-1].y1!=output.height)) {
+      workers = new Worker[nx*ny];
+      for (int ty = 0, t = 0; ty<ny; ++ty)
+        for (int tx = 0; tx<nx; ++tx, ++t) {
+          int x0 = (int)((long)output.width*tx/nx);
+          int x1 = (int)((long)output.width*(tx+1)/nx);
+          int y0 = (int)((long)output.height*ty/ny);
+          int y1 = (int)((long)output.height*(ty+1)/ny);
+          int ox = max(x0-halo, 0);
+          int oy = max(y0-halo, 0);
+          int ow = min(x1+halo, output.width) - ox;
+          int oh = min(y1+halo, output.height) - oy;
+          workers[t] = new Worker(new AccumImage(ow, oh), ox, oy, x0, y0, x1, y1);
+          workers[t].halo = halo;
+        }
     }
     
-    System.out.println("Beginning FLIC...");
-
-    fcurlen = 0.5*fmaxlen + 1e-3;
-    fstream.SetLength(fcurlen);
-    bstream.SetLength(-fcurlen);
-    int targetcoverage = output.size*95/100;
-    targetcoverage *= 10;
-    output.minalpha = mincoverage;
+    System.out.println("Beginning FLIC on "+threads+" threads, "+nx+"x"+ny+" tiles...");
+    
+    int tilewidth = workers[0].x1, tileheight = workers[0].y1;
+    for (int t = 0; t<workers.length; ++t) {
+      workers[t].seeds.Clear();
+      workers[t].random = new Random(random.nextLong());
+    }
     Vec2 p;
-    int last = 0;
-    while ((output.coverage<targetcoverage) && ((p = iterator.next())!=null)) {
-      ComputeStream(p);
-      if (output.coverage>=(last+10000)) {
-        last += 10000;
-        System.out.print((last/1000)+"K ");
-        if (((last/10000)%25)==0)
-          System.out.println();
-      }
+    while ((iterator!=null) && ((p = iterator.next())!=null)) {
+      if (!output.inBounds(p))
+        continue;
+      int x = round(p.x), y = round(p.y);
+      if ((x>=output.width) || (y>=output.height))
+        continue;
+      int tx = min(x/tilewidth, nx-1), ty = min(y/tileheight, ny-1);
+      while ((tx>0) && (x<workers[tx].x0))
+        --tx;
+      while ((tx<(nx-1)) && (x>=workers[tx].x1))
+        ++tx;
+      while ((ty>0) && (y<workers[ty*nx].y0))
+        --ty;
+      while ((ty<(ny-1)) && (y>=workers[ty*nx].y1))
+        ++ty;
+      workers[ty*nx+tx].seeds.Add(p.x, p.y);
     }
     
-    System.out.println();
-    System.out.println("Finishing remaining streams...");
-    fcurlen = 0.5*fstreamlen + 1e-3;
-    fstream.SetLength(fcurlen);
-    bstream.SetLength(-fcurlen);
-    iterator = new ScanlineGridIterator(output.width, output.height);
-    last = 0;
-    while ((p = iterator.next())!=null) {
-      if (round(p.y)>=(last+50)) {
-        last += 50;
-        System.out.print(last+" ");
-        if ((last%1250)==0)
-          System.out.println();
-      }
-      //System.out.println("(x,y) = ("+p.x+","+p.y+")");
-      while (output.getAlpha(round(p.x), round(p.y))<mincoverage) {
-        ComputeStream(p);
+    Parallel.Tasks(workers.length, threads, new Parallel.Body() {
+      public void Run(int start, int end, int thread){
+        for (int t = start; t<end; ++t) {
+          workers[t].Initialize();
+          workers[t].Compute((iterator!=null) ? workers[t].seeds : null, workers[t].random, false);
+        }
       }
-    }
+    });
     
-    iterator = null;
-    if (normalize)
-      output.Normalize();
+    System.out.println("Merging tiles...");
+    Parallel.For(output.height, threads, new Parallel.Body() {
+      public void Run(int start, int end, int thread){
+        for (int t = 0; t<workers.length; ++t)
+          output.AddWindow(workers[t].image, workers[t].ox, workers[t].oy, start, end);
+      }
+    });
+    output.UpdateCoverage();
   }
   
   private static int floor(double x){
@@ -351,217 +445,407 @@ public class FLIC {
     return (x>y) ? x : y;
   }
   
-  private int contribsize;
-  private double[][] contrib;
-  private double contribtot;
-  
-  private Vec2 p, op = new Vec2();
-  
-  /** Performs a FLIC (or LIC) streamline computation with the seed point "p0".
-   *   "p0" is not modified. */ 
-  private void ComputeStream(Vec2 p0)
+  /** Stores a list of seed points in the order they were added, and returns
+   *   them again as a Vec2Iterator. */
+  private static class SeedList implements Vec2Iterator {
+    private float[] x = new float[1024], y = new float[1024];
+    private int count, next;
+    private Vec2 v = new Vec2();
+    
+    public void Clear(){
+      count = next = 0;
+    }
+    
+    public void Add(double px, double py){
+      if (count==x.length) {
+        float[] temp = new float[count*2];
+        System.arraycopy(x, 0, temp, 0, count);
+        x = temp;
+        temp = new float[count*2];
+        System.arraycopy(y, 0, temp, 0, count);
+        y = temp;
+      }
+      x[count] = (float)px;
+      y[count] = (float)py;
+      ++count;
+    }
+    
+    public Vec2 next(){
+      if (next>=count)
+        return null;
+      v.x = x[next];
+      v.y = y[next];
+      ++next;
+      return v;
+    }
+  }
   
-  {
-    if (!output.inBounds(p0))
-      return;
-    if (output.getAlpha(round(p0.x), round(p0.y))>=maxcoverage)
-      return;
+  /** Computes the streamlines seeded inside the window [x0, x1) x [y0, y1)
+   *   of the output image and accumulates them to "image", whose top-left
+   *   corner lies at (ox, oy) in the output image. Every worker owns its
+   *   own streamlines, sample buffers and contribution table, so that
+   *   several workers can run at the same time. */
+  private class Worker {
+    private AccumImage image;
+    private int ox, oy, x0, y0, x1, y1, halo;
+    private Vec2Transform itoo;
+    private SeedList seeds = new SeedList();
+    private Random random;
     
-    int i, smin, smax, imin, imax;
+    private double fcurlen;
+    private Streamline fstream, bstream;
+    private Vec2[] samplev;
+    private double[] sample;
+    /** samplex[], sampley[] hold the points of the input the window is
+     *   first filled from, which are then sampled in one batch */
+    private double[] samplex, sampley;
+    /** The points and values accumulated to "image" but not yet added,
+     *   which are added in one batch, in order, once the stream is done or
+     *   a point falls outside of the image. They are added at once if the
+     *   input is "image" itself. */
+    private double[] splatx, splaty, splats;
+    private int splatcount;
+    private boolean defer;
     
-    otof.V(p0, op);
-    fstream.Start(op);
-    bstream.Start(op);
+    private Vec2 p, op = new Vec2();
     
-    int n = floor(0.5*fstreamlen/fstepsize);
-    int m = floor(fcurlen/fstepsize);
-    double total = 0.0;
-    for (i = sampleoffset; (i<=(sampleoffset+n)) && ((p = fstream.Next()) != null); )
-      if (!input.inBounds(ftoi.V(p)))
-        fstream.Stop();
-      else {
-        total += sample[i] = input.getBilinear(p);
-        ContribAdd(samplev[i++].Set(p));
+    public Worker(AccumImage image, int ox, int oy, int x0, int y0, int x1, int y1){
+      this.image = image;
+      this.ox = ox;
+      this.oy = oy;
+      this.x0 = x0;
+      this.y0 = y0;
+      this.x1 = x1;
+      this.y1 = y1;
+    }
+    
+    /** Prepares the worker for a new computation with the current
+     *   parameters of the FLIC. */
+    public void Initialize(){
+      if (image!=output)
+        image.Clear();
+      image.minalpha = mincoverage;
+      itoo = FLIC.this.itoo;
+      if ((ox!=0) || (oy!=0))
+        itoo = itoo.translate(new Vec2(-ox, -oy));
+      
+      fstream = new Streamline(field, fstepsize);
+      bstream = new Streamline(field, fstepsize);
+      Enumeration enume = singularities.elements();
+      while (enume.hasMoreElements()) {
+        Vec2 v = (Vec2)enume.nextElement();
+        fstream.AddSingularity(v);
+        bstream.AddSingularity(v);
       }
-    smax = i - 1;
-    bstream.Next();
-    for (i = sampleoffset-1; (i>=(sampleoffset-n)) && ((p = bstream.Next()) != null); )
-      if (!input.inBounds(ftoi.V(p)))
-        bstream.Stop();
-      else {
-        total += sample[i] = input.getBilinear(p);
-        ContribAdd(samplev[i--].Set(p));
+      
+      InitializeContrib(contribsize);
+      
+      samplev = new Vec2[sampleoffset*2+1];
+      sample = new double[sampleoffset*2+1];
+      samplex = new double[sampleoffset*2+1];
+      sampley = new double[sampleoffset*2+1];
+      splatx = new double[sampleoffset*2+1];
+      splaty = new double[sampleoffset*2+1];
+      splats = new double[sampleoffset*2+1];
+      splatcount = 0;
+      defer = (input!=image);
+      for (int i = sampleoffset*2; i>=0; --i) {
+        samplev[i] = new Vec2();
+        sample[i] = 0.0;
       }
-    smin = i + 1;
-    itoo.V(samplev[sampleoffset], op);
-    output.AccumulateBilinear(op, ContribRescale(total));
-    //output.Accumulate(round(op.x), round(op.y), ContribRescale(total), 1.0);
-    if ((smax<(sampleoffset+n)) || (smin>(sampleoffset-n))) {
-      i = i;
     }
     
-    if ((m>n) && ((!fstream.stopped()) || (!bstream.stopped()))) {
-      m -= n;
-      int excess = 0;
-      if (!fstream.stopped()) {
-        for (i = sampleoffset + 1; (i<=(sampleoffset + m)) && (i<=smax); ) {
-          if ((i-n-1)>=smin) {
-            total -= sample[i-n-1];
-            ContribDel(samplev[i-n-1]);
+    /** Computes streamlines from the seed points of "iterator", and then
+     *   fills in the remaining pixels of the window in the random order
+     *   given by "random". If "iterator" is null, the seed points are drawn
+     *   from the uncovered pixels of the window until 95% of them are
+     *   covered. If "print" is set, the progress is printed out. */
+    public void Compute(Vec2Iterator iterator, Random random, boolean print){
+      fcurlen = 0.5*fmaxlen + 1e-3;
+      fstream.SetLength(fcurlen);
+      bstream.SetLength(-fcurlen);
+      Vec2 p;
+      int last = 0;
+      CoverageIterator uncovered = null;
+      if (iterator==null) {
+        uncovered = new CoverageIterator(image, ox, oy, x0, y0, x1, y1, random);
+        int target = (x1-x0)*(y1-y0)*5/100;
+        while ((uncovered.size()>target) && ((p = uncovered.next())!=null)) {
+          ComputeStream(p);
+          if (print && (image.coverage>=(last+10000))) {
+            last += 10000;
+            System.out.print((last/1000)+"K ");
+            if (((last/10000)%25)==0)
+              System.out.println();
           }
-          p = fstream.Next();
-          if (p!=null)
-            if (input.inBounds(ftoi.V(p))) {
-              total += sample[smax = i+n] = input.getBilinear(p);
-              ContribAdd(samplev[i+n].Set(p));
-            } else
-              fstream.Stop();
-          itoo.V(samplev[i++], op);
-          /*
-          if (output.getAlpha(round(op.x), round(op.y))>=maxcoverage) {
-            ++excess;
-            if (excess>5)
-              fstream.Stop();
-          } else
-            excess = (excess>0) ? excess-1 : 0;
-          */
-          output.AccumulateBilinear(op, ContribRescale(total));
-          //output.Accumulate(round(op.x), round(op.y), ContribRescale(total), 1.0);
         }
-      
-        imin = max(i-n-1, smin);
-        for (i = smax; i>=imin; --i)
-          ContribClear(samplev[i]);
-        contribtot = 0.0;
-      
-        if (!bstream.stopped()) {
-          total = 0.0;
-          imin = max(sampleoffset - n, smin);
-          imax = min(sampleoffset + n, smax);
-          for (i = imin; i<=imax; ++i) {
-            total += sample[i];
-            ContribAdd(samplev[i]);
+      } else {
+        int targetcoverage = (x1-x0)*(y1-y0)*95/100;
+        targetcoverage *= 10;
+        while ((image.coverage<targetcoverage) && ((p = iterator.next())!=null)) {
+          ComputeStream(p);
+          if (print && (image.coverage>=(last+10000))) {
+            last += 10000;
+            System.out.print((last/1000)+"K ");
+            if (((last/10000)%25)==0)
+              System.out.println();
           }
         }
+        uncovered = new CoverageIterator(image, ox, oy, x0, y0, x1, y1, random);
       }
       
-      if (!bstream.stopped()) {
-        excess = 0;
-        for (i = sampleoffset - 1; (i>=(sampleoffset - m)) && (i>=smin); ) {
-          if ((i+n+1)<=smax) {
-            total -= sample[i+n+1];
-            ContribDel(samplev[i+n+1]);
-          }
-          p = bstream.Next();
-          if (p!=null)
-            if (input.inBounds(ftoi.V(p))) {
-              total += sample[smin = i-n] = input.getBilinear(p);
-              ContribAdd(samplev[i-n].Set(p));
+      if (print) {
+        System.out.println();
+        System.out.println("Finishing remaining streams, at most "+uncovered.size()+" pixels...");
+      }
+      fcurlen = 0.5*fstreamlen + 1e-3;
+      fstream.SetLength(fcurlen);
+      bstream.SetLength(-fcurlen);
+      while ((p = uncovered.next())!=null) {
+        while (image.getAlpha(round(p.x)-ox, round(p.y)-oy)<mincoverage) {
+          ComputeStream(p);
+        }
+      }
+    }
+  
+    /** Accumulates "s" into the image at "op", given in image coordinates.
+     *   Points inside the image are queued for the unchecked batch path,
+     *   while those near or past the border flush the queue and fall back
+     *   to the checked one, so that the order of the additions is kept. */
+    private void Accumulate(Vec2 op, double s){
+      if (!image.inBounds(op.x, op.y)) {
+        Flush();
+        image.AccumulateBilinear(op, s);
+      } else if (!defer)
+        image.AccumulateBilinearUnchecked(op.x, op.y, s);
+      else {
+        if (splatcount==splats.length)
+          Flush();
+        splatx[splatcount] = op.x;
+        splaty[splatcount] = op.y;
+        splats[splatcount++] = s;
+      }
+    }
+    /** Adds the queued accumulations to the image. */
+    private void Flush(){
+      image.AccumulateBilinearUnchecked(splatx, splaty, splats, 0, splatcount);
+      splatcount = 0;
+    }
+
+    /** Performs a FLIC (or LIC) streamline computation with the seed point "p0",
+     *   given in output image coordinates. "p0" is not modified. */ 
+    private void ComputeStream(Vec2 p0)
+    
+    {
+      if (!output.inBounds(p0))
+        return;
+      if (image.getAlpha(round(p0.x)-ox, round(p0.y)-oy)>=maxcoverage)
+        return;
+      
+      int i, smin, smax, imin, imax;
+      
+      otof.V(p0, op);
+      fstream.Start(op);
+      bstream.Start(op);
+      
+      int n = floor(0.5*fstreamlen/fstepsize);
+      int m = floor(fcurlen/fstepsize);
+      double total = 0.0;
+      for (i = sampleoffset; (i<=(sampleoffset+n)) && ((p = fstream.Next()) != null); )
+        if (!input.inBounds(ftoi.V(p)))
+          fstream.Stop();
+        else {
+          samplex[i] = p.x;
+          sampley[i] = p.y;
+          ContribAdd(samplev[i++].Set(p));
+        }
+      smax = i - 1;
+      input.getBilinearUnchecked(samplex, sampley, sample, sampleoffset, smax+1);
+      for (i = sampleoffset; i<=smax; ++i)
+        total += sample[i];
+      bstream.Next();
+      for (i = sampleoffset-1; (i>=(sampleoffset-n)) && ((p = bstream.Next()) != null); )
+        if (!input.inBounds(ftoi.V(p)))
+          bstream.Stop();
+        else {
+          samplex[i] = p.x;
+          sampley[i] = p.y;
+          ContribAdd(samplev[i--].Set(p));
+        }
+      smin = i + 1;
+      input.getBilinearUnchecked(samplex, sampley, sample, smin, sampleoffset);
+      for (i = sampleoffset-1; i>=smin; --i)
+        total += sample[i];
+      itoo.V(samplev[sampleoffset], op);
+      Accumulate(op, ContribRescale(total));
+      //image.Accumulate(round(op.x), round(op.y), ContribRescale(total), 1.0);
+      
+      if ((m>n) && ((!fstream.stopped()) || (!bstream.stopped()))) {
+        m -= n;
+        int excess = 0;
+        if (!fstream.stopped()) {
+          for (i = sampleoffset + 1; (i<=(sampleoffset + m)) && (i<=smax); ) {
+            if ((i-n-1)>=smin) {
+              total -= sample[i-n-1];
+              ContribDel(samplev[i-n-1]);
+            }
+            p = fstream.Next();
+            if (p!=null)
+              if (input.inBounds(ftoi.V(p))) {
+                total += sample[smax = i+n] = input.getBilinearUnchecked(p.x, p.y);
+                ContribAdd(samplev[i+n].Set(p));
+              } else
+                fstream.Stop();
+            itoo.V(samplev[i++], op);
+            /*
+            if (image.getAlpha(round(op.x), round(op.y))>=maxcoverage) {
+              ++excess;
+              if (excess>5)
+                fstream.Stop();
             } else
-              bstream.Stop();
-          itoo.V(samplev[i--], op);
-          /*
-          if (output.getAlpha(round(op.x), round(op.y))>=maxcoverage) {
-            ++excess;
-            if (excess>5)
-              bstream.Stop();
-          } else
-            excess = (excess>0) ? excess-1 : 0;
-          */
-          output.AccumulateBilinear(op, ContribRescale(total));
-          //output.Accumulate(round(op.x), round(op.y), ContribRescale(total), 1.0);
+              excess = (excess>0) ? excess-1 : 0;
+            */
+            Accumulate(op, ContribRescale(total));
+            //image.Accumulate(round(op.x), round(op.y), ContribRescale(total), 1.0);
+          }
+        
+          imin = max(i-n-1, smin);
+          for (i = smax; i>=imin; --i)
+            ContribClear(samplev[i]);
+          contribtot = 0.0;
+        
+          if (!bstream.stopped()) {
+            total = 0.0;
+            imin = max(sampleoffset - n, smin);
+            imax = min(sampleoffset + n, smax);
+            for (i = imin; i<=imax; ++i) {
+              total += sample[i];
+              ContribAdd(samplev[i]);
+            }
+          }
         }
         
-        imax = min(i+n+1, smax);
-        for (i = smin; i<=imax; ++i)
+        if (!bstream.stopped()) {
+          excess = 0;
+          for (i = sampleoffset - 1; (i>=(sampleoffset - m)) && (i>=smin); ) {
+            if ((i+n+1)<=smax) {
+              total -= sample[i+n+1];
+              ContribDel(samplev[i+n+1]);
+            }
+            p = bstream.Next();
+            if (p!=null)
+              if (input.inBounds(ftoi.V(p))) {
+                total += sample[smin = i-n] = input.getBilinearUnchecked(p.x, p.y);
+                ContribAdd(samplev[i-n].Set(p));
+              } else
+                bstream.Stop();
+            itoo.V(samplev[i--], op);
+            /*
+            if (image.getAlpha(round(op.x), round(op.y))>=maxcoverage) {
+              ++excess;
+              if (excess>5)
+                bstream.Stop();
+            } else
+              excess = (excess>0) ? excess-1 : 0;
+            */
+            Accumulate(op, ContribRescale(total));
+            //image.Accumulate(round(op.x), round(op.y), ContribRescale(total), 1.0);
+          }
+          
+          imax = min(i+n+1, smax);
+          for (i = smin; i<=imax; ++i)
+            ContribClear(samplev[i]);
+        }
+      
+      } else
+        for (i = smin; i<=smax; ++i)
           ContribClear(samplev[i]);
-      }
-    
-    } else
+      
+      Flush();
+      contribtot = 0.0;
       for (i = smin; i<=smax; ++i)
-        ContribClear(samplev[i]);
+        sample[i] = 0.0;
+    }
     
-    contribtot = 0.0;
-    for (i = smin; i<=smax; ++i)
-      sample[i] = 0.0;
-  }
-  
-  private void InitializeContrib(int size)
-  {
-    contrib = new double[size][size];
-    contribsize = size;
-    for (int j = 0; j<size; ++j)
-      for (int i = 0; i<size; ++i)
-        contrib[j][i] = 0.0;
-    contribtot = 0.0;
-  }
-  
-  private void ContribAccum(int x, int y, double a)
-  {
-    double c = contrib[y][x];
-    contribtot -= c*c;
-    //contribtot -= c;
-    c += a;
-    contrib[y][x] = c;
-    contribtot += c*c;
-    //contribtot += c;
-  }
-  
-  private void ContribAdd(Vec2 p)
-  {
-    if (p==null)
-      return;
-    double xpf = Math.floor(p.x);
-    double ypf = Math.floor(p.y);
-    int i = ((int)xpf) % contribsize;
-    int j = ((int)ypf) % contribsize;
-    int i2 = ((i+1)==contribsize) ? 0 : i+1;
-    int j2 = ((j+1)==contribsize) ? 0 : j+1;
-    double xf = p.x-xpf;
-    double yf = p.y-ypf;
+    private double[][] contrib;
+    private double contribtot;
     
-    ContribAccum(i, j, (1.0-xf)*(1.0-yf));
-    ContribAccum(i2, j, xf*(1.0-yf));
-    ContribAccum(i, j2, (1.0-xf)*yf);
-    ContribAccum(i2, j2, xf*yf);
-  }
-
-  private void ContribDel(Vec2 p)
-  {
-    if (p==null)
-      return;
-    double xpf = Math.floor(p.x);
-    double ypf = Math.floor(p.y);
-    int i = ((int)xpf) % contribsize;
-    int j = ((int)ypf) % contribsize;
-    int i2 = ((i+1)==contribsize) ? 0 : i+1;
-    int j2 = ((j+1)==contribsize) ? 0 : j+1;
-    double xf = p.x-xpf;
-    double yf = p.y-ypf;
+    private void InitializeContrib(int size)
+    {
+      contrib = new double[size][size];
+      for (int j = 0; j<size; ++j)
+        for (int i = 0; i<size; ++i)
+          contrib[j][i] = 0.0;
+      contribtot = 0.0;
+    }
     
-    ContribAccum(i, j, -(1.0-xf)*(1.0-yf));
-    ContribAccum(i2, j, -xf*(1.0-yf));
-    ContribAccum(i, j2, -(1.0-xf)*yf);
-    ContribAccum(i2, j2, -xf*yf);
-  }
-  
-  private void ContribClear(Vec2 p)
-  {
-    if (p==null)
-      return;
-    int i = (floor(p.x)) % contribsize;
-    int j = (floor(p.y)) % contribsize;
-    int i2 = ((i+1)==contribsize) ? 0 : i+1;
-    int j2 = ((j+1)==contribsize) ? 0 : j+1;
-    contrib[j][i] = 0.0;
-    contrib[j][i2] = 0.0;
-    contrib[j2][i] = 0.0;
-    contrib[j2][i2] = 0.0;
-  }
+    private void ContribAccum(int x, int y, double a)
+    {
+      double c = contrib[y][x];
+      contribtot -= c*c;
+      //contribtot -= c;
+      c += a;
+      contrib[y][x] = c;
+      contribtot += c*c;
+      //contribtot += c;
+    }
+    
+    private void ContribAdd(Vec2 p)
+    {
+      if (p==null)
+        return;
+      double xpf = Math.floor(p.x);
+      double ypf = Math.floor(p.y);
+      int i = ((int)xpf) % contribsize;
+      int j = ((int)ypf) % contribsize;
+      int i2 = ((i+1)==contribsize) ? 0 : i+1;
+      int j2 = ((j+1)==contribsize) ? 0 : j+1;
+      double xf = p.x-xpf;
+      double yf = p.y-ypf;
+      
+      ContribAccum(i, j, (1.0-xf)*(1.0-yf));
+      ContribAccum(i2, j, xf*(1.0-yf));
+      ContribAccum(i, j2, (1.0-xf)*yf);
+      ContribAccum(i2, j2, xf*yf);
+    }
   
-  private double ContribRescale(double total)
-  {
-    return total/Math.sqrt(contribtot);
-    //return total/contribtot;
+    private void ContribDel(Vec2 p)
+    {
+      if (p==null)
+        return;
+      double xpf = Math.floor(p.x);
+      double ypf = Math.floor(p.y);
+      int i = ((int)xpf) % contribsize;
+      int j = ((int)ypf) % contribsize;
+      int i2 = ((i+1)==contribsize) ? 0 : i+1;
+      int j2 = ((j+1)==contribsize) ? 0 : j+1;
+      double xf = p.x-xpf;
+      double yf = p.y-ypf;
+      
+      ContribAccum(i, j, -(1.0-xf)*(1.0-yf));
+      ContribAccum(i2, j, -xf*(1.0-yf));
+      ContribAccum(i, j2, -(1.0-xf)*yf);
+      ContribAccum(i2, j2, -xf*yf);
+    }
+    
+    private void ContribClear(Vec2 p)
+    {
+      if (p==null)
+        return;
+      int i = (floor(p.x)) % contribsize;
+      int j = (floor(p.y)) % contribsize;
+      int i2 = ((i+1)==contribsize) ? 0 : i+1;
+      int j2 = ((j+1)==contribsize) ? 0 : j+1;
+      contrib[j][i] = 0.0;
+      contrib[j][i2] = 0.0;
+      contrib[j2][i] = 0.0;
+      contrib[j2][i2] = 0.0;
+    }
+    
+    private double ContribRescale(double total)
+    {
+      return total/Math.sqrt(contribtot);
+      //return total/contribtot;
+    }
   }
 }
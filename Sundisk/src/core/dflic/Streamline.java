@@ -164,15 +164,26 @@ public class Streamline {
     return (num==-1);
   }
   
-  /* Temporary private variables */
-  private Vec2 x = new Vec2(), v = new Vec2();
-  private Vec2 dx = new Vec2(), odx = new Vec2();
-  private Vec2 nx = new Vec2(), tx = new Vec2();
-  private Vec2 A = new Vec2(), B = new Vec2(), C = new Vec2(), D = new Vec2();
-  private Vec2 cx = new Vec2(), cx2 = new Vec2(), cx3 = new Vec2(), cdx = new Vec2();
+  /* Temporary private variables. The vectors are kept as pairs of doubles,
+   * named after the components of the original Vec2 temporaries, so that
+   * tracing does not touch any Vec2 objects except for the returned point. */
+  private Vec2 v = new Vec2();
+  private double[] f = new double[2];
+  private double xX, xY, dxX, dxY, odxX, odxY;
+  private double nxX, nxY, txX, txY;
+  private double AX, AY, BX, BY, CX, CY, DX, DY;
+  private double cxX, cxY, cx2X, cx2Y, cx3X, cx3Y, cdxX, cdxY;
   private double ds, step, l, l1, l2;
   private int num;
   
+  /** Sets (dxX, dxY) to the value of the field at (x, y) */
+  private void Sample(double x, double y)
+  {
+    field.get(x, y, f, 0);
+    dxX = f[0];
+    dxY = f[1];
+  }
+  
   private void ComputeStart(Vec2 x0)
   {
     ds = length;
@@ -181,26 +192,32 @@ public class Streamline {
     num = 0;
     l = l1 = l2 = 0.0;
     
-    nx.Set(x0);
-    field.get(nx, dx);
+    nxX = x0.x;
+    nxY = x0.y;
+    Sample(nxX, nxY);
     v.Set(x0);
   }
   
   private boolean ComputeNext()
   {
     if (l<l2) {
-      v.Set(cx);
-      cx3.Add(cdx);
-      cx2.Add(cx3);
-      cx.Add(cx2);
+      v.Set(cxX, cxY);
+      cx3X += cdxX;
+      cx3Y += cdxY;
+      cx2X += cx3X;
+      cx2Y += cx3Y;
+      cxX += cx2X;
+      cxY += cx2Y;
       l += stepsize;
       ++num;
       return true;
     }
     
-    while ((ds>0.0) && (!dx.isZero())) {
-      x.Set(nx);
-      odx.Set(dx);
+    while ((ds>0.0) && !((Math.abs(dxX)<Vec2.tolerance) && (Math.abs(dxY)<Vec2.tolerance))) {
+      xX = nxX;
+      xY = nxY;
+      odxX = dxX;
+      odxY = dxY;
       l1 = l2;
       
       if (step>ds)
@@ -210,25 +227,37 @@ public class Streamline {
         laststep = step;
         if (reverse)
           step = -step;
+        double hstep = 0.5*step;
           
-        tx.Set(odx).Scale(0.5*step);
-        nx.Set(x).AddScaled(odx, 0.5*step);
+        txX = odxX*hstep;
+        txY = odxY*hstep;
+        nxX = xX + hstep*odxX;
+        nxY = xY + hstep*odxY;
         
-        field.get(nx, dx);
-        tx.AddScaled(dx, step);
-        nx.Set(x).AddScaled(dx, 0.5*step);
+        Sample(nxX, nxY);
+        txX += step*dxX;
+        txY += step*dxY;
+        nxX = xX + hstep*dxX;
+        nxY = xY + hstep*dxY;
         
-        field.get(nx, dx);
-        tx.AddScaled(dx, step);
-        nx.Set(x).AddScaled(dx, step);
+        Sample(nxX, nxY);
+        txX += step*dxX;
+        txY += step*dxY;
+        nxX = xX + step*dxX;
+        nxY = xY + step*dxY;
         
-        field.get(nx, dx);
-        nx.Set(x).AddScaled(tx.AddScaled(dx, 0.5*step), 1.0/3.0);
+        Sample(nxX, nxY);
+        txX += hstep*dxX;
+        txY += hstep*dxY;
+        nxX = xX + (1.0/3.0)*txX;
+        nxY = xY + (1.0/3.0)*txY;
         
-        tx.Set(dx);
-        field.get(nx, dx);
-        tx.Sub(dx).Scale(step);
-        error = (1.0/6.0)*tx.len();
+        txX = dxX;
+        txY = dxY;
+        Sample(nxX, nxY);
+        txX = (txX - dxX)*step;
+        txY = (txY - dxY)*step;
+        error = (1.0/6.0)*Math.sqrt(txX*txX + txY*txY);
         
         if (reverse)
           step = -step;
@@ -241,12 +270,17 @@ public class Streamline {
             step = maxstep;
         }
         if (laststep<lengthstep) {
-          tx.Set(nx).Sub(x);
-          double dl = 0.25*tx.len();
+          txX = nxX - xX;
+          txY = nxY - xY;
+          double dl = 0.25*Math.sqrt(txX*txX + txY*txY);
           if (reverse)
             dl = -dl;
-          laststep = tx.Set(odx).Sub(dx).Scale(dl).Add(nx).Sub(x).Scale(0.5).len();
-          laststep += tx.Add(x).Sub(nx).len();
+          txX = ((odxX - dxX)*dl + nxX - xX)*0.5;
+          txY = ((odxY - dxY)*dl + nxY - xY)*0.5;
+          laststep = Math.sqrt(txX*txX + txY*txY);
+          txX = txX + xX - nxX;
+          txY = txY + xY - nxY;
+          laststep += Math.sqrt(txX*txX + txY*txY);
         }
       } while ((error>tolerance) && (laststep>minstep));
       if ((error>tolerance) || (laststep<minstep))
@@ -255,8 +289,10 @@ public class Streamline {
       
       Enumeration enume = singularities.elements();
       while (enume.hasMoreElements()) {
-        Vec2 v = (Vec2)enume.nextElement();
-        if (A.Set(v).Sub(nx).len2()<singularitylimit)
+        Vec2 s = (Vec2)enume.nextElement();
+        double sx = s.x - nxX;
+        double sy = s.y - nxY;
+        if ((sx*sx + sy*sy)<singularitylimit)
           return false;
       }
       
@@ -266,31 +302,44 @@ public class Streamline {
       if ((l1<=l) && (l<l2)) {
         double dl = reverse ? (-laststep) : laststep;
         
-        A.SetZero().AddScaled(x, 2.0).AddScaled(nx, -2.0).AddScaled(odx, dl).AddScaled(dx, dl);
-        B.SetZero().AddScaled(nx, 3.0).AddScaled(x, -3.0).AddScaled(odx, -2.0*dl).AddScaled(dx, -dl);
-        C.Set(odx).Scale(dl);
-        D.Set(x);
+        AX = 2.0*xX - 2.0*nxX + dl*odxX + dl*dxX;
+        AY = 2.0*xY - 2.0*nxY + dl*odxY + dl*dxY;
+        BX = 3.0*nxX - 3.0*xX - 2.0*dl*odxX - dl*dxX;
+        BY = 3.0*nxY - 3.0*xY - 2.0*dl*odxY - dl*dxY;
+        CX = odxX*dl;
+        CY = odxY*dl;
+        DX = xX;
+        DY = xY;
         
         dl = abs(dl);
         double t = (l - l1)/dl;
         double dt = stepsize/dl;        
         
-        cx.Set(A).Scale(t).Add(B).Scale(t).Add(C).Scale(t).Add(D);
+        cxX = ((AX*t + BX)*t + CX)*t + DX;
+        cxY = ((AY*t + BY)*t + CY)*t + DY;
         t -= dt;
-        cx2.Set(A).Scale(t).Add(B).Scale(t).Add(C).Scale(t).Add(D);
+        cx2X = ((AX*t + BX)*t + CX)*t + DX;
+        cx2Y = ((AY*t + BY)*t + CY)*t + DY;
         t -= dt;
-        cx3.Set(A).Scale(t).Add(B).Scale(t).Add(C).Scale(t).Add(D);
+        cx3X = ((AX*t + BX)*t + CX)*t + DX;
+        cx3Y = ((AY*t + BY)*t + CY)*t + DY;
         
-        cx3.Add(cx).AddScaled(cx2, -2.0);
-        cx2.Neg().Add(cx);
+        cx3X = cx3X + cxX - 2.0*cx2X;
+        cx3Y = cx3Y + cxY - 2.0*cx2Y;
+        cx2X = cxX - cx2X;
+        cx2Y = cxY - cx2Y;
         
         dt = dt*dt*dt;
-        cdx.Set(A).Scale(6.0*dt);
+        cdxX = AX*(6.0*dt);
+        cdxY = AY*(6.0*dt);
         
-        v.Set(cx);
-        cx3.Add(cdx);
-        cx2.Add(cx3);
-        cx.Add(cx2);
+        v.Set(cxX, cxY);
+        cx3X += cdxX;
+        cx3Y += cdxY;
+        cx2X += cx3X;
+        cx2Y += cx3Y;
+        cxX += cx2X;
+        cxY += cx2Y;
         l += stepsize;
         return true;
       }
@@ -73,6 +73,8 @@ public class EMVec2Field extends Vec2Field {
 	  public Vec RegionFlow = null;
 	  /** The base experiment computing the flow speed by region, if used,  */
 	  public BaseExperiment experiment = null;
+	  /** The flow speeds of the experiment tabulated over the plane, if they are, see SetRegionMap() */
+	  private RegionMap regions = null;
 
 	  /** Constructs a new EMVec2Field that calculates the type of field specified
 	   * by "FieldOrMotionFieldType" produced by the EMSource "source". The coordinate system
@@ -128,6 +130,32 @@ public class EMVec2Field extends Vec2Field {
 		  this.experiment = experiment;
 
 	  }
+	  /** Returns: a new EMVec2Field of the same type and coordinate system as "this",
+	   * whose field is calculated from the frozen copy of the EM source held by "snapshot",
+	   * an experiment returned by BaseExperiment.Snapshot().  If "this" takes its flow speeds
+	   * from an experiment, the new field takes them from "snapshot".  The new field does not
+	   * change when the experiment evolves, so it can be evaluated on other threads meanwhile. */
+	  public EMVec2Field Bind(BaseExperiment snapshot){
+		  EMVec2Field field = new EMVec2Field(this, FieldOrMotionFieldType, FluidFlowSpeed, Fnorm, Fpower);
+		  field.source = snapshot.getEMSource();
+		  field.scale = scale;
+		  field.RegionFlow = RegionFlow;
+		  if (experiment != null) field.experiment = snapshot;
+		  if (snapshot.RegionsStatic()) field.regions = regions;
+		  return field;
+	  }
+	  /** Makes the flow by region take the flow speed from "regions", the flow speeds of the experiment 
+	   * tabulated over the plane with one value per region, wherever it covers the plane, rather than calling 
+	   * experiment.getFlowSpeed() for every point.  "regions" must be computed again whenever the regions 
+	   * change; null goes back to calling the experiment. */
+	  public void SetRegionMap(RegionMap regions){
+		  this.regions = regions;
+	  }
+	  /** Returns: a new RegionMap of "values" values per region in the coordinate system of this field, 
+	   * over the "width" x "height" cells whose top-left corner is "p1" */
+	  public RegionMap NewRegionMap(Vec2 p1, int width, int height, int values){
+		  return new RegionMap(origin, xgrid, ygrid, p1, width, height, values);
+	  }
 	  public Vec2 transform(Vec3 x) {
 	    x = x.sub(origin);
 	    Vec2 p = new Vec2();
@@ -147,16 +175,54 @@ public class EMVec2Field extends Vec2Field {
 	    return p;
 	  }
 	  
-	  private Vec3 r = new Vec3();
-	  private Vec3 v = new Vec3();
-	  private Vec3 E = new Vec3(), B = new Vec3();
-	  
-	  /** Sets "f" to the value of the EM field at "p". "p" is not modified
+	  /** Returns: the largest distance from the origin of space of any point
+	   * of the rectangle [x0, x1] x [y0, y1] of the plane.  The distance is
+	   * largest at one of the corners. */
+	  public double getRadius(double x0, double y0, double x1, double y1){
+	    double radius = 0.0;
+	    Vec3 r = new Vec3();
+	    for (int i = 0; i<4; ++i) {
+	      r.Set(origin).AddScaled(xgrid, ((i&1)==0) ? x0 : x1).AddScaled(ygrid, ((i&2)==0) ? y0 : y1);
+	      radius = Math.max(radius, r.len());
+	    }
+	    return radius;
+	  }
+
+	  /** The temporaries used by Evaluate(). Every thread has its own, so that
+	   * the field can be evaluated from several threads at once without
+	   * allocating them on every call. */
+	  private static class Scratch {
+	    Vec3 r = new Vec3(), v = new Vec3(), E = new Vec3(), B = new Vec3();
+	  }
+	  private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+	    protected Scratch initialValue(){
+	      return new Scratch();
+	    }
+	  };
+
+	  /** Sets "f" to the value of the EM field at "p". "p" is not modified.
 	   * Returns: resulting "f" */ 
 	  public Vec2 get(Vec2 p, Vec2 f){
+	    Vec3 v = Evaluate(p.x, p.y, scratch.get());
+	    return f.Set(v.dot(xunit), v.dot(yunit));
+	  }
+	  /** Stores the value of the EM field at (x, y) in out[offset] and
+	   * out[offset+1]. */
+	  public void get(double x, double y, double[] out, int offset){
+	    Vec3 v = Evaluate(x, y, scratch.get());
+	    out[offset] = v.dot(xunit);
+	    out[offset+1] = v.dot(yunit);
+	  }
+	  /** Computes the 3-D field or motion field at the point (x, y) of the
+	   * plane, using the temporaries in "s".
+	   * Returns: s.v, the resulting vector */
+	  private Vec3 Evaluate(double x, double y, Scratch s){
+	    Vec3 r = s.r;
+	    Vec3 v = s.v.SetZero();
+	    Vec3 E = s.E, B = s.B;
 		/* We reconstruct the value of the vector position in space "r" so that we can find the fields 
 		 * at that point to set the flow speed in our eight different cases */
-	    r.Set(origin).AddScaled(xgrid, p.x).AddScaled(ygrid, p.y);
+	    r.Set(origin).AddScaled(xgrid, x).AddScaled(ygrid, y);
 
 	    /* determine what field or motion field type this is of the eight possibilities and set the field accordingly */
 	    switch (FieldOrMotionFieldType) {
@@ -172,8 +238,7 @@ public class EMVec2Field extends Vec2Field {
 	       
 	    /* this field is the drift velocity field of magnetic monopoles c^2 ExB/E^2  */
 	      case EfieldMotion: {
-	        source.Efield(r, E);
-	        source.Bfield(r, B);
+	        source.EBfield(r, E, B);
 	        double len2 = E.len2();
 	        double len = E.len();
 	        if (len2>0.0) {
@@ -187,8 +252,7 @@ public class EMVec2Field extends Vec2Field {
 	      
 	    /* this field is the drift velocity field of electric monopoles  ExB/B^2  */
 	      case BfieldMotion: {
-	        source.Efield(r, E);
-	        source.Bfield(r, B);
+	        source.EBfield(r, E, B);
 	        double len2 = B.len2();
 	        if (len2>0.0) v.Set(E).Cross(B).Scale(1.0/len2);
 	        else v.SetZero();
@@ -243,7 +307,7 @@ public class EMVec2Field extends Vec2Field {
 	     case VREfieldMotion: {
 	    	double FlowSpeed;
 	        source.Efield(r, E);
-	        FlowSpeed = experiment.getFlowSpeed(r,RegionFlow);
+	        FlowSpeed = getFlowSpeed(x, y, r);
 	        double len = E.len();
 	        if (len > 0.0){
 	        	v.Set(E).Scale(FlowSpeed/len); }
@@ -255,7 +319,7 @@ public class EMVec2Field extends Vec2Field {
      case VRBfieldMotion: {
     	double FlowSpeed;
         source.Efield(r, B);
-        FlowSpeed = experiment.getFlowSpeed(r,RegionFlow);
+        FlowSpeed = getFlowSpeed(x, y, r);
         double len = B.len();
         if (len > 0.0){
         	v.Set(B).Scale(FlowSpeed/len); }
@@ -264,6 +328,14 @@ public class EMVec2Field extends Vec2Field {
       }
 	       
 	    }
-	    return f.Set(v.dot(xunit), v.dot(yunit));
+	    return v;
+	  }
+	  /** Returns: the flow speed of the region of the point (x, y) of the plane, which lies at "r" in space, 
+	   * from the region map if it covers the point, else from the experiment */
+	  private double getFlowSpeed(double x, double y, Vec3 r){
+		  RegionMap map = regions;
+		  int region = (map != null) ? map.getRegion(x, y) : -1;
+		  if (region >= 0) return map.getValue(region, 0);
+		  return experiment.getFlowSpeed(r, RegionFlow);
 	  }
 }
\ No newline at end of file
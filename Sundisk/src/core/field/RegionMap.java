@@ -0,0 +1,145 @@
+package core.field;
+
+import core.math.Parallel;
+import core.math.Vec2;
+import core.math.Vec3;
+
+/**
+ *   The regions of an experiment, tabulated over a plane.
+ *
+ * A RegionMap stores, for every cell of a grid over a plane, the number of
+ * the region the center of the cell lies in. A region is a tuple of values,
+ * such as the hue, saturation, value and white of the coloring by region,
+ * or the flow speed of the flow by region. The experiments have a handful
+ * of regions, so the numbers fit in a byte, and looking up the values of a
+ * point costs an index computation instead of a call to the experiment,
+ * which may allocate.
+ *
+ * The grid has one cell per unit of the plane, so that over an image it
+ * has one cell per pixel, centered on the pixel. A point maps to the cell
+ * it lies in, so the boundaries of the regions are only as sharp as the
+ * cells.
+ *
+ * If the regions have more than 256 different tuples, they are not
+ * tabulated, and getRegion() returns -1 everywhere, as it does outside the
+ * grid. The values must then be taken from the experiment itself.
+ */
+public class RegionMap {
+  /** The largest number of different regions a map can hold */
+  public static final int MAXREGIONS = 256;
+
+  /** The regions a map is computed from */
+  public interface Regions {
+    /** Stores the values of the region at the point "r" of space in
+     * values[0], values[1], ... "r" is not modified. This may be called
+     * from several threads at once. */
+    public void get(Vec3 r, double[] values);
+  }
+
+  private Vec3 origin, xgrid, ygrid;
+  private double x0, y0;
+  private int width, height, count;
+  /** The region of every cell, as an unsigned byte */
+  private byte[] ids;
+  /** The values of the regions, "count" tuples of "values" each */
+  private double[] palette;
+  private int values;
+  private boolean full;
+  private volatile boolean valid;
+
+  /** Constructs a new RegionMap of "values" values per region, over the
+   * "width" x "height" cells whose top-left corner is "p1". A point (x, y)
+   * of the plane lies at origin + x*xgrid + y*ygrid in space. Note that
+   * Compute() must be called before the map is used. */
+  public RegionMap(Vec3 origin, Vec3 xgrid, Vec3 ygrid, Vec2 p1, int width, int height, int values){
+    this.origin = origin;
+    this.xgrid = xgrid;
+    this.ygrid = ygrid;
+    x0 = p1.x;
+    y0 = p1.y;
+    this.width = width;
+    this.height = height;
+    this.values = values;
+    ids = new byte[width*height];
+    palette = new double[MAXREGIONS*values];
+  }
+  /** Finds the region of every cell from "regions", the rows being
+   * divided among "threads" threads. This must be called before the map
+   * is used, and again whenever the regions change.
+   * Returns: false if there are too many regions to tabulate */
+  public boolean Compute(final Regions regions, int threads){
+    synchronized (this) {
+      valid = false;
+      full = false;
+      count = 0;
+    }
+    Parallel.For(height, threads, new Parallel.Body() {
+      public void Run(int start, int end, int thread){
+        Vec3 r = new Vec3();
+        double[] v = new double[values];
+        int last = -1;
+        for (int j = start; j<end; ++j) {
+          double y = (j + 0.5) + y0;
+          for (int i = 0, k = j*width; i<width; ++i, ++k) {
+            double x = (i + 0.5) + x0;
+            r.x = origin.x + xgrid.x*x + ygrid.x*y;
+            r.y = origin.y + xgrid.y*x + ygrid.y*y;
+            r.z = origin.z + xgrid.z*x + ygrid.z*y;
+            regions.get(r, v);
+            /* Neighbouring cells are mostly in the same region */
+            if ((last<0) || !Equals(last, v))
+              last = Add(v);
+            if (last<0)
+              return;
+            ids[k] = (byte)last;
+          }
+        }
+      }
+    });
+    synchronized (this) {
+      valid = !full;
+      return valid;
+    }
+  }
+  /** Returns: the number of different regions found by Compute() */
+  public synchronized int getCount(){
+    return full ? 0 : count;
+  }
+  /** Returns: the region of the cell the point (x, y) of the plane lies in,
+   *   or -1 if it is outside the grid or the regions are not tabulated */
+  public int getRegion(double x, double y){
+    if (!valid)
+      return -1;
+    double px = Math.floor(x - x0);
+    double py = Math.floor(y - y0);
+    if ((px<0.0) || (py<0.0) || (px>=width) || (py>=height))
+      return -1;
+    return ids[(int)py*width + (int)px] & 0xFF;
+  }
+  /** Returns: value "n" of region "region" */
+  public double getValue(int region, int n){
+    return palette[region*values + n];
+  }
+
+  /** Returns: true if "v" holds the values of region "region" */
+  private boolean Equals(int region, double[] v){
+    for (int n = 0, o = region*values; n<values; ++n, ++o)
+      if (palette[o]!=v[n])
+        return false;
+    return true;
+  }
+  /** Returns: the region whose values are "v", added if there is none
+   *   yet, or -1 if there is no room for it */
+  private synchronized int Add(double[] v){
+    for (int region = 0; region<count; ++region)
+      if (Equals(region, v))
+        return region;
+    if (count>=MAXREGIONS) {
+      full = true;
+      return -1;
+    }
+    System.arraycopy(v, 0, palette, count*values, values);
+    return count++;
+  }
+
+}
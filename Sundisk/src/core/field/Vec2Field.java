@@ -24,4 +24,14 @@ public abstract class Vec2Field {
     return get(p, f);
   }
 
+  /** Stores the value of the field at (x, y) in out[offset] and
+   *   out[offset+1]. This default goes through get(Vec2, Vec2), so
+   *   subclasses that are evaluated in inner loops should override it
+   *   with a version that does not create any Vec2 objects. */
+  public void get(double x, double y, double[] out, int offset){
+    Vec2 f = get(new Vec2(x, y), new Vec2());
+    out[offset] = f.x;
+    out[offset+1] = f.y;
+  }
+
 }
@@ -0,0 +1,322 @@
+package core.field;
+
+import java.util.Arrays;
+
+import core.math.Parallel;
+import core.math.Vec2;
+
+/**
+ *   Precomputed Vec2Field on an adaptively refined grid.
+ *
+ * A Vec2FieldAdaptiveCache approximates a given Vec2Field like a
+ * Vec2FieldCache does, but each cell of its base grid is the root of a
+ * quadtree. A cell is split into four whenever bilinear interpolation
+ * between its corners differs from the field at the center or at the
+ * midpoint of an edge by more than the tolerance. The cells therefore
+ * become small near singularities of the field, where it changes quickly,
+ * and stay large in the far field, where it is smooth.
+ *
+ * The values of the field are stored at the corners of every cell, and
+ * are bilinearly interpolated inside the leaf cell containing a point.
+ * Neighbouring leaves of different sizes do not share all their corners,
+ * so the approximation may jump along such an edge, but never by much
+ * more than the tolerance.
+ *
+ * If get() is called with a point outside the region that is cached,
+ * it will fall through and call get() for the original field.
+ */
+public class Vec2FieldAdaptiveCache extends Vec2Field {
+  private Vec2Field field;
+  private Vec2 p1, p2;
+  private int width, height;
+  private double mx, my;
+  private double sx, sy, ox, oy;
+  private double relative, absolute;
+  private int depth;
+  private int threads;
+  /** For every base cell, the index of the first of the four children of
+   *   each node, or -1 if the node is a leaf. Node 0 is the base cell. */
+  private int[][] child;
+  /** For every base cell, the field at the corners of each node, in the
+   *   order (x0,y0), (x1,y0), (x0,y1), (x1,y1), x and y components
+   *   interleaved, so 8 values per node. */
+  private float[][] value;
+  private int nodes;
+  private long buildTime;
+
+  /** Constructs a new Vec2FieldAdaptiveCache that approximates "field"
+   * inside the rectangular region whose corners are given by "p1" and "p2".
+   * The number of horizontal and vertical points of the base grid, before
+   * any refinement, is given by "width" and "height". Note that Compute()
+   * must be called before any call to get(). */
+  public Vec2FieldAdaptiveCache(Vec2Field field, Vec2 p1, Vec2 p2, int width, int height){
+    this.field = field;
+    this.p1 = p1;
+    this.p2 = p2;
+    this.width = width;
+    this.height = height;
+    mx = width - 1.0;
+    my = height - 1.0;
+    sx = mx/(p2.x - p1.x);
+    sy = my/(p2.y - p1.y);
+    ox = -p1.x;
+    oy = -p1.y;
+
+    child = new int[(width-1)*(height-1)][];
+    value = new float[(width-1)*(height-1)][];
+    SetDefaultTolerance();
+    SetDefaultMaxDepth();
+    SetDefaultThreads();
+  }
+  /** Replaces the field that is approximated by "field", which takes effect
+   * at the next call to Compute(). */
+  public void SetField(Vec2Field field){
+    this.field = field;
+  }
+  /** Sets the tolerance of the interpolation. A cell is refined wherever
+   * the interpolation error is larger than absolute + relative*|f|, where
+   * f is the exact value of the field. */
+  public void SetTolerance(double relative, double absolute){
+    this.relative = relative;
+    this.absolute = absolute;
+  }
+  /** Sets a relative tolerance of 1%, and no absolute tolerance. */
+  public void SetDefaultTolerance(){
+    SetTolerance(0.01, 0.0);
+  }
+  /** Sets the number of times a base cell may be split to "depth", so that
+   * the smallest cells are 2^depth times smaller than the base cells. This
+   * bounds the refinement where the field is singular. */
+  public void SetMaxDepth(int depth){
+    this.depth = depth;
+  }
+  /** Sets the maximum depth to 8. */
+  public void SetDefaultMaxDepth(){
+    SetMaxDepth(8);
+  }
+  /** Sets the number of threads Compute() uses to "threads". The cached
+   * values do not depend on the number of threads, but the underlying field
+   * must then allow get() to be called from several threads at once. */
+  public void SetThreads(int threads){
+    this.threads = threads;
+  }
+  /** Sets the number of threads Compute() uses to one. */
+  public void SetDefaultThreads(){
+    SetThreads(1);
+  }
+  /** Returns: the number of nodes, leaves and internal nodes, in all the
+   *   quadtrees built by the last call to Compute(). */
+  public int getNodeCount(){
+    return nodes;
+  }
+  /** Returns: the time in milliseconds the last call to Compute() took. */
+  public long getBuildTime(){
+    return buildTime;
+  }
+  /** Rebuilds the quadtrees from the field. This must be called before any
+   * call to get(), and again whenever the underlying field changes. The base
+   * cells are handed out to the threads one at a time, since the cells near
+   * a singularity take much longer to build than the others. */
+  public void Compute(){
+    long start = System.currentTimeMillis();
+    final double isx = 1.0/sx;
+    final double isy = 1.0/sy;
+    final int cells = width - 1;
+    Parallel.Tasks(child.length, threads, new Parallel.Body() {
+      public void Run(int start, int end, int thread){
+        Builder builder = new Builder();
+        for (int c = start; c<end; ++c)
+          builder.Build(c, p1.x + isx*(c%cells), p1.y + isy*(c/cells), isx, isy);
+      }
+    });
+    int count = 0;
+    for (int c = 0; c<child.length; ++c)
+      count += child[c].length;
+    nodes = count;
+    buildTime = System.currentTimeMillis() - start;
+  }
+  /** Sets "f" to an approximate value of the field at "p". Inside the
+   *   cached region, the value is bilinearly interpolated between the
+   *   corners of the leaf cell containing "p", while outside, the original
+   *   field function is queried. "p" is not modified
+   * Returns: resulting "f" */
+  public Vec2 get(Vec2 p, Vec2 f){
+    double px = (p.x + ox)*sx;
+    double py = (p.y + oy)*sy;
+    if ((px<0.0) || (py<0.0) || (px>mx) || (py>my))
+      return field.get(p, f);
+
+    Interpolate(px, py, null, 0, f);
+    return f;
+  }
+  /** Stores an approximate value of the field at (x, y) in out[offset] and
+   *   out[offset+1], in the same way as get(Vec2, Vec2). */
+  public void get(double x, double y, double[] out, int offset){
+    double px = (x + ox)*sx;
+    double py = (y + oy)*sy;
+    if ((px<0.0) || (py<0.0) || (px>mx) || (py>my))
+      field.get(x, y, out, offset);
+    else
+      Interpolate(px, py, out, offset, null);
+  }
+  /** Finds the leaf cell containing the base grid coordinates (px, py), and
+   *   bilinearly interpolates its corners, storing the result in "f" if it
+   *   is not null, else in out[k] and out[k+1].
+   * Requires: 0<=px<=mx and 0<=py<=my */
+  private void Interpolate(double px, double py, double[] out, int k, Vec2 f){
+    int ix, iy;
+    double fx, fy;
+    if (px==mx) {
+      ix = width - 2;
+      fx = 1.0;
+    } else {
+      double pxf = Math.floor(px);
+      ix = (int)pxf;
+      fx = px - pxf;
+    }
+    if (py==my) {
+      iy = height - 2;
+      fy = 1.0;
+    } else {
+      double pyf = Math.floor(py);
+      iy = (int)pyf;
+      fy = py - pyf;
+    }
+
+    int c = iy*(width-1) + ix;
+    int[] children = child[c];
+    int n = 0;
+    while (children[n]>=0) {
+      int q = children[n];
+      fx *= 2.0;
+      fy *= 2.0;
+      if (fx>=1.0) {
+        fx -= 1.0;
+        ++q;
+      }
+      if (fy>=1.0) {
+        fy -= 1.0;
+        q += 2;
+      }
+      n = q;
+    }
+
+    float[] v = value[c];
+    int o = 8*n;
+    double x1 = v[o] + fx*(v[o+2] - v[o]);
+    double x2 = v[o+4] + fx*(v[o+6] - v[o+4]);
+    double vx = x1 + fy*(x2 - x1);
+    x1 = v[o+1] + fx*(v[o+3] - v[o+1]);
+    x2 = v[o+5] + fx*(v[o+7] - v[o+5]);
+    double vy = x1 + fy*(x2 - x1);
+    if (f!=null)
+      f.Set(vx, vy);
+    else {
+      out[k] = vx;
+      out[k+1] = vy;
+    }
+  }
+
+  /** Builds the quadtree of one base cell at a time, in arrays that grow as
+   *   nodes are added, and are trimmed when the tree is done. */
+  private class Builder {
+    private int[] c = new int[64];
+    private float[] v = new float[8*64];
+    private int n;
+    private double[] f = new double[10];
+
+    /** Builds the quadtree of base cell "cell", whose corner (x, y) is at
+     *   the lowest coordinates and whose size is (w, h). */
+    void Build(int cell, double x, double y, double w, double h){
+      n = 0;
+      int root = Add();
+      field.get(x, y, f, 0);
+      field.get(x + w, y, f, 2);
+      field.get(x, y + h, f, 4);
+      field.get(x + w, y + h, f, 6);
+      for (int i = 0; i<8; ++i)
+        v[i] = (float)f[i];
+      Refine(root, x, y, w, h, 0);
+      child[cell] = Arrays.copyOf(c, n);
+      value[cell] = Arrays.copyOf(v, 8*n);
+    }
+    /** Adds a new leaf node and returns its index. */
+    private int Add(){
+      if (n==c.length) {
+        c = Arrays.copyOf(c, 2*n);
+        v = Arrays.copyOf(v, 16*n);
+      }
+      c[n] = -1;
+      return n++;
+    }
+    /** Splits "node", whose corner values are already stored, if the field
+     *   at its center and edge midpoints is not interpolated well enough,
+     *   and then refines the children in the same way. */
+    private void Refine(int node, double x, double y, double w, double h, int level){
+      if (level>=depth)
+        return;
+      double hw = 0.5*w, hh = 0.5*h;
+      /* The five points that become corners of the children: the midpoints
+       *   of the bottom, left, right and top edges, and the center */
+      field.get(x + hw, y, f, 0);
+      field.get(x, y + hh, f, 2);
+      field.get(x + w, y + hh, f, 4);
+      field.get(x + hw, y + h, f, 6);
+      field.get(x + hw, y + hh, f, 8);
+
+      int o = 8*node;
+      if (Accurate(f[0], f[1], 0.5*(v[o] + v[o+2]), 0.5*(v[o+1] + v[o+3])) &&
+          Accurate(f[2], f[3], 0.5*(v[o] + v[o+4]), 0.5*(v[o+1] + v[o+5])) &&
+          Accurate(f[4], f[5], 0.5*(v[o+2] + v[o+6]), 0.5*(v[o+3] + v[o+7])) &&
+          Accurate(f[6], f[7], 0.5*(v[o+4] + v[o+6]), 0.5*(v[o+5] + v[o+7])) &&
+          Accurate(f[8], f[9], 0.25*(v[o] + v[o+2] + v[o+4] + v[o+6]),
+                   0.25*(v[o+1] + v[o+3] + v[o+5] + v[o+7])))
+        return;
+
+      float bx = (float)f[0], by = (float)f[1];
+      float lx = (float)f[2], ly = (float)f[3];
+      float rx = (float)f[4], ry = (float)f[5];
+      float tx = (float)f[6], ty = (float)f[7];
+      float cx = (float)f[8], cy = (float)f[9];
+      int first = Add();
+      Add();
+      Add();
+      Add();
+      c[node] = first;
+      o = 8*node;
+      SetCorners(first, v[o], v[o+1], bx, by, lx, ly, cx, cy);
+      SetCorners(first+1, bx, by, v[o+2], v[o+3], cx, cy, rx, ry);
+      SetCorners(first+2, lx, ly, cx, cy, v[o+4], v[o+5], tx, ty);
+      SetCorners(first+3, cx, cy, rx, ry, tx, ty, v[o+6], v[o+7]);
+
+      Refine(first, x, y, hw, hh, level+1);
+      Refine(first+1, x + hw, y, hw, hh, level+1);
+      Refine(first+2, x, y + hh, hw, hh, level+1);
+      Refine(first+3, x + hw, y + hh, hw, hh, level+1);
+    }
+    private void SetCorners(int node, float x00, float y00, float x10, float y10,
+                            float x01, float y01, float x11, float y11){
+      int o = 8*node;
+      v[o] = x00; v[o+1] = y00;
+      v[o+2] = x10; v[o+3] = y10;
+      v[o+4] = x01; v[o+5] = y01;
+      v[o+6] = x11; v[o+7] = y11;
+    }
+    /** Returns: whether the interpolated value (ix, iy) is within the
+     *   tolerance of the exact value (ex, ey). A value that is infinite or
+     *   not a number is never accurate, so cells around a singularity are
+     *   refined down to the maximum depth. */
+    private boolean Accurate(double ex, double ey, double ix, double iy){
+      if (!Finite(ex) || !Finite(ey) || !Finite(ix) || !Finite(iy))
+        return false;
+      double dx = ix - ex, dy = iy - ey;
+      double tol = absolute + relative*Math.sqrt(ex*ex + ey*ey);
+      return dx*dx + dy*dy <= tol*tol;
+    }
+    /** Returns: true if "x" is neither infinite nor NaN */
+    private boolean Finite(double x){
+      return !Double.isInfinite(x) && !Double.isNaN(x);
+    }
+  }
+
+}
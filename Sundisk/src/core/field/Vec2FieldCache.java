@@ -2,6 +2,7 @@ package core.field;
 
 import java.math.*;
 
+import core.math.Parallel;
 import core.math.Vec2;
 
 /** 
@@ -23,6 +24,7 @@ public class Vec2FieldCache extends Vec2Field {
   private int[] offset;
   private double mx, my;
   private double sx, sy, ox, oy;
+  private int threads;
   
   /** Constructs a new Vec2FieldCache that approximates "field" inside the 
    * rectangular region whose corners are given by "p1" and "p2". The number
@@ -45,23 +47,45 @@ public class Vec2FieldCache extends Vec2Field {
     x = new float[size];
     y = new float[size];
     offset = new int[height];
+    SetDefaultThreads();
+  }
+  /** Replaces the field that is approximated by "field", which takes effect
+   * at the next call to Compute(). This lets one cache follow a field that
+   * is rebuilt for every frame, without allocating a new grid. */
+  public void SetField(Vec2Field field){
+    this.field = field;
+  }
+  /** Sets the number of threads Compute() uses to "threads". The cached
+   * values do not depend on the number of threads, but the underlying field
+   * must then allow get() to be called from several threads at once. */
+  public void SetThreads(int threads){
+    this.threads = threads;
+  }
+  /** Sets the number of threads Compute() uses to one. */
+  public void SetDefaultThreads(){
+    SetThreads(1);
   }
   /** Precomputes the field at every point of the grid. This must be called
-   * before any call to get(). */ 
+   * before any call to get(), and again whenever the underlying field
+   * changes. The rows of the grid are divided among the threads. */ 
   public void Compute(){
-    double isx = 1.0/sx;
-    double isy = 1.0/sy;
-    Vec2 p = new Vec2();
-    Vec2 f = new Vec2();
-    for (int j = 0, k = 0; j<height; ++j) {
-      offset[j] = k;
-      for (int i = 0; i<width; ++i, ++k) {
-        p.Set(p1.x + isx*i, p1.y + isy*j);
-        field.get(p, f);
-        x[k] = (float)f.x;
-        y[k] = (float)f.y;
+    final double isx = 1.0/sx;
+    final double isy = 1.0/sy;
+    Parallel.For(height, threads, new Parallel.Body() {
+      public void Run(int start, int end, int thread){
+        double[] f = new double[2];
+        for (int j = start; j<end; ++j) {
+          int k = j*width;
+          offset[j] = k;
+          double py = p1.y + isy*j;
+          for (int i = 0; i<width; ++i, ++k) {
+            field.get(p1.x + isx*i, py, f, 0);
+            x[k] = (float)f[0];
+            y[k] = (float)f[1];
+          }
+        }
       }
-    }
+    });
   }
   /** Sets "f" to an approximate value of the field at "p". Inside the
    *   cached region, the value is bilinearly interpolated between the four
@@ -74,6 +98,24 @@ public class Vec2FieldCache extends Vec2Field {
     if ((px<0.0) || (py<0.0) || (px>mx) || (py>my))
       return field.get(p, f);
     
+    Interpolate(px, py, null, 0, f);
+    return f;
+  }
+  /** Stores an approximate value of the field at (x, y) in out[offset] and
+   *   out[offset+1], in the same way as get(Vec2, Vec2). */
+  public void get(double x, double y, double[] out, int offset){
+    double px = (x + ox)*sx;
+    double py = (y + oy)*sy;
+    if ((px<0.0) || (py<0.0) || (px>mx) || (py>my))
+      field.get(x, y, out, offset);
+    else
+      Interpolate(px, py, out, offset, null);
+  }
+  /** Bilinearly interpolates the grid at the grid coordinates (px, py),
+   *   storing the result in "f" if it is not null, else in out[k] and
+   *   out[k+1].
+   * Requires: 0<=px<=mx and 0<=py<=my */
+  private void Interpolate(double px, double py, double[] out, int k, Vec2 f){
     int ix, iy;
     double fx, fy;
     if (px==mx) {
@@ -97,15 +139,19 @@ public class Vec2FieldCache extends Vec2Field {
     double x1 = x[o] + fx*(x[o+1] - x[o]);
     o += width;
     double x2 = x[o] + fx*(x[o+1] - x[o]);
-    f.x = x1 + fy*(x2 - x1);
+    double vx = x1 + fy*(x2 - x1);
     
     o -= width;
-    x1 = y[o] + fy*(y[o+1] - y[o]);
+    x1 = y[o] + fx*(y[o+1] - y[o]);
     o += width;
-    x2 = y[o] + fy*(y[o+1] - y[o]);
-    f.y = x1 + fy*(x2 - x1);
-    
-    return f;
+    x2 = y[o] + fx*(y[o+1] - y[o]);
+    double vy = x1 + fy*(x2 - x1);
+    if (f!=null)
+      f.Set(vx, vy);
+    else {
+      out[k] = vx;
+      out[k+1] = vy;
+    }
   }
   
 }
@@ -25,5 +25,18 @@ public class Vec2UnitField extends Vec2Field  {
       f.Unit();
     return f;
   }
+  /** Stores the value of the field at (x, y), scaled to unit magnitude,
+   *   in out[offset] and out[offset+1]. Vectors that are zero according
+   *   to Vec2.isZero() are left as they are. */
+  public void get(double x, double y, double[] out, int offset){
+    field.get(x, y, out, offset);
+    double fx = out[offset];
+    double fy = out[offset+1];
+    if ((Math.abs(fx)<Vec2.tolerance) && (Math.abs(fy)<Vec2.tolerance))
+      return;
+    double s = 1.0/Math.sqrt(fx*fx + fy*fy);
+    out[offset] = fx*s;
+    out[offset+1] = fy*s;
+  }
   
 }
@@ -86,6 +86,35 @@ public class AccumImage extends ScalarImage {
   {
     Copy(image, 0, 0);
   }
+  /** Adds the scalar and alpha values of "image" to the window of "this"
+   *   starting at (xorigin, yorigin), restricted to the rows [ymin, ymax)
+   *   of "this". The coverage is not updated, so that separate row ranges
+   *   can be added from separate threads. UpdateCoverage() must be called
+   *   once all the rows are added.
+   * Requires: the window fits inside "this" */
+  public void AddWindow(AccumImage image, int xorigin, int yorigin, int ymin, int ymax){
+    if (((xorigin+image.width)>width) || ((yorigin+image.height)>height))
+      throw new RuntimeException("AccumImage.AddWindow: Window too large");
+    if (ymin<yorigin)
+      ymin = yorigin;
+    if (ymax>(yorigin+image.height))
+      ymax = yorigin+image.height;
+    
+    for (int j = ymin; j<ymax; ++j)
+      for (int i = 0, k = offset[j] + xorigin, l = image.offset[j-yorigin]; i<image.width; ++i, ++k, ++l) {
+        f[k] += image.f[l];
+        a[k] += image.a[l];
+      }
+  }
+  /** Recounts "coverage", the number of pixels whose alpha is at least
+   *   "minalpha". */
+  public void UpdateCoverage(){
+    int count = 0;
+    for (int k = 0; k<size; ++k)
+      if (a[k]>=minalpha)
+        ++count;
+    coverage = count;
+  }
   /** Divides out the alpha component in "this", renormalizing it to 1.0 */ 
   public void Normalize(){
     for (int k = 0; k<size; ++k) {
@@ -202,6 +231,59 @@ public class AccumImage extends ScalarImage {
   public void AccumulateBilinear(Vec2 v, double s){
     AccumulateBilinear(v.x, v.y, s);
   }
+  /** Returns: the value at index "k" with the alpha divided out
+   * Requires: 0<=k<size */
+  protected double getUnchecked(int k){
+    float ak = a[k];
+    if (ak!=0.0f)
+      return (double)(f[k]/ak);
+    else
+      return 0.0;
+  }
+  /** Adds "s" and "sa" to the scalar and alpha values at index "k".
+   * Requires: 0<=k<size */
+  private void AccumulateUnchecked(int k, double s, double sa){
+    float ak = a[k];
+    float bk = ak + (float)sa;
+    f[k] += (float)s;
+    a[k] = bk;
+    if ((ak>=minalpha)!=(bk>=minalpha))
+      coverage += (bk>=minalpha) ? 1 : -1;
+  }
+  /** Bilinearly accumulates "s" to the four integer grid points surrounding
+   *   the continuous coordinate (x, y), the same as AccumulateBilinear(x, y, s),
+   *   but without checking the domain of every grid point. This is for
+   *   callers that have already tested inBounds(x, y).
+   * Requires: (x, y) is inside the domain of "this" viewed as a continuous
+   *   field, and "this" is at least 2x2 */
+  public void AccumulateBilinearUnchecked(double x, double y, double s){
+    int xi = (int)x;
+    int yi = (int)y;
+    if (xi>=(width-1))
+      xi = width-2;
+    if (yi>=(height-1))
+      yi = height-2;
+    double xf = x - xi;
+    double yf = y - yi;
+
+    int k = offset[yi] + xi;
+    double b;
+    b = (1.0-xf)*(1.0-yf);
+    AccumulateUnchecked(k, s*b, b);
+    b = xf*(1.0-yf);
+    AccumulateUnchecked(k+1, s*b, b);
+    b = (1.0-xf)*yf;
+    AccumulateUnchecked(k+width, s*b, b);
+    b = xf*yf;
+    AccumulateUnchecked(k+width+1, s*b, b);
+  }
+  /** Bilinearly accumulates s[i] at the points (x[i], y[i]) for i in
+   *   [start, end), in that order.
+   * Requires: all the points are inside the domain of "this" */
+  public void AccumulateBilinearUnchecked(double[] x, double[] y, double[] s, int start, int end){
+    for (int i = start; i<end; ++i)
+      AccumulateBilinearUnchecked(x[i], y[i], s[i]);
+  }
   /** Returns: true if an scalar or alpha value in "this" is invalid */
   public boolean hasSingularity(){
     if (hasSingularity())
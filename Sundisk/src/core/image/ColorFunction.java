@@ -0,0 +1,23 @@
+package core.image;
+
+import core.math.Vec2;
+
+/** Colors a scalar image by a vector field, writing the color of each
+* pixel straight into an RGBImage.
+*
+* This is the counterpart of the Vec3Field that
+* RGBImage.fromScalarImageMagnitude() otherwise takes, for colorings that
+* can produce the bytes of a pixel without going through a Vec3 first.
+* Color() may be called from several threads at once, for different
+* pixels.
+* @version 1.0
+*/
+
+public interface ColorFunction {
+
+  /** Sets pixel k of "image" to the color of the scalar value "value" where
+   * the field is (fx, fy). "xpos" is the point of the field the pixel lies
+   * at, and is not modified. */
+  public void Color(RGBImage image, int k, double fx, double fy, double value, Vec2 xpos);
+
+}
@@ -0,0 +1,69 @@
+package core.image;
+
+import core.field.Vec2Field;
+import core.math.Parallel;
+import core.math.Vec2;
+import core.math.Vec2Transform;
+/** Stores the samples of a field at the pixels of an image
+* = < width, height, x-buffer, y-buffer >.
+*
+* A FieldImage holds, for every pixel of an image, the two components of
+* a Vec2Field at the center of the pixel, in left-right, top-down
+* scanline order, like a ScalarImage of the same size. The field is
+* sampled once per frame, and everything that needs it at the pixels, such
+* as the coloring and the stored scalar frames, reads the samples instead
+* of evaluating the field again.
+*
+* The samples are stored as doubles, so that they are exactly the values
+* the field returned.
+* @version 1.0
+*/
+public class FieldImage {
+  /** width, height store the dimensions of the image.
+   * size = width*height, the number of samples */
+  public final int width, height, size;
+  /** x[], y[] store the components of the field in scanline order */
+  public double[] x, y;
+  /** offset[] indexes the left-most pixel of each scanline
+   * The index of pixel (i,j) is therefore offset[j]+i */
+  public final int[] offset;
+
+  /** Constructs a new FieldImage = < width, height, 0-buffer, 0-buffer > */
+  public FieldImage(int width, int height){
+    this.width = width;
+    this.height = height;
+    size = width*height;
+    x = new double[size];
+    y = new double[size];
+    offset = new int[height];
+    for (int j = 0; j<height; ++j)
+      offset[j] = width*j;
+  }
+  /** Sets 'this' to the samples of 'field' at the centers of the pixels,
+   * where 'ftoi' maps the points of the field to those of the image. The
+   * rows are divided among 'threads' threads, so 'field' must then allow
+   * get() to be called from several threads at once. */
+  public void Sample(final Vec2Field field, Vec2Transform ftoi, int threads){
+    final Vec2Transform itof = ftoi.invert();
+    Parallel.For(height, threads, new Parallel.Body() {
+      public void Run(int start, int end, int thread){
+        Vec2 xpos = new Vec2();
+        double[] v = new double[2];
+        for (int j = start; j<end; ++j)
+          for (int i = 0, k = offset[j]; i<width; ++i, ++k) {
+            xpos.x = i + 0.5;
+            xpos.y = j + 0.5;
+            itof.V(xpos);
+            field.get(xpos.x, xpos.y, v, 0);
+            Set(k, v[0], v[1]);
+          }
+      }
+    });
+  }
+  /** Sets sample k to the field (fx, fy) */
+  public void Set(int k, double fx, double fy){
+    x[k] = fx;
+    y[k] = fy;
+  }
+
+}
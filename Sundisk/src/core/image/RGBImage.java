@@ -2,6 +2,7 @@ package core.image;
 
 import core.field.Vec2Field;
 import core.field.Vec3Field;
+import core.math.Parallel;
 import core.math.Vec2;
 import core.math.Vec2Transform;
 import core.math.Vec3;
@@ -73,6 +74,47 @@ public class RGBImage {
   public void Copy(RGBImage image){
     Copy(image, 0, 0);
   }
+  /** Sets 'this' to 'image' and its mirror images. 'image' fills the
+   * top-left corner of 'this', and is reflected about the vertical center
+   * line of 'this' into the right half if 'mirrorX', and about the
+   * horizontal center line into the bottom half if 'mirrorY'. Every row is
+   * copied with System.arraycopy, or reversed in one pass, and the rows of
+   * 'image' are divided among 'threads' threads.
+   * Requires: 'image' is half as wide as 'this' if 'mirrorX', else as
+   *   wide, and half as high if 'mirrorY', else as high */
+  public void Mirror(final RGBImage image, final boolean mirrorX, final boolean mirrorY, int threads){
+    if ((image.width*(mirrorX ? 2 : 1)!=width) || (image.height*(mirrorY ? 2 : 1)!=height))
+      throw new RuntimeException("RGBImage.Mirror: Window size mismatch");
+    
+    Parallel.For(image.height, threads, new Parallel.Body() {
+      public void Run(int start, int end, int thread){
+        int w = image.width;
+        for (int j = start; j<end; ++j) {
+          int src = image.offset[j], dst = offset[j];
+          System.arraycopy(image.r, src, r, dst, w);
+          System.arraycopy(image.g, src, g, dst, w);
+          System.arraycopy(image.b, src, b, dst, w);
+          if (mirrorX) {
+            Reverse(image.r, src, r, dst + width - 1, w);
+            Reverse(image.g, src, g, dst + width - 1, w);
+            Reverse(image.b, src, b, dst + width - 1, w);
+          }
+          if (mirrorY) {
+            int row = offset[height-1-j];
+            System.arraycopy(r, dst, r, row, width);
+            System.arraycopy(g, dst, g, row, width);
+            System.arraycopy(b, dst, b, row, width);
+          }
+        }
+      }
+    });
+  }
+  /** Copies 'count' bytes of 'from' starting at 'src' to 'to', in reverse
+   * order ending at 'last' */
+  private static void Reverse(byte[] from, int src, byte[] to, int last, int count){
+    for (int i = 0; i<count; ++i)
+      to[last - i] = from[src + i];
+  }
   /** Returns: the red component of the pixel at (x, y)
    * Requires: 0<=x<width and 0<=y<height */  
   public byte getR(int x, int y){
@@ -151,28 +193,79 @@ public class RGBImage {
     fromScalarImage(image, 0, 0, R, G, B);
   }
   
+  /** Sets 'this' to the coloring of 'image' by 'func', which is given the
+   * field 'f' at the center of each pixel and the value of 'image' there,
+   * where 'ftoi' maps the points of the field to those of the image.
+   * Requires: 'image' is at least as large as 'this' */
   public void fromScalarImageMagnitude(ScalarImage image, Vec2Field f, 
     Vec2Transform ftoi, Vec3Field func)
   {
-    Vec2Transform itof = ftoi.invert();
-    Vec2 p = new Vec2(), v = new Vec2(); Vec2 xpos = new Vec2();
-    Vec3 value = new Vec3(), color = new Vec3();
-    
-    for (int j = 0, k = 0; j<height; ++j)
-      for (int i = 0; i<width; ++i, ++k) {
-        p.x = i + 0.5;
-        p.y = j + 0.5;
-        xpos = itof.V(p);
-        f.get(xpos, v);
-        value.x = v.x;
-        value.y = v.y;
-        value.z = image.f[k];
-        func.get(value, xpos, color);
-        r[k] = (byte)clamp(color.x*255, 0, 255);
-        g[k] = (byte)clamp(color.y*255, 0, 255);
-        b[k] = (byte)clamp(color.z*255, 0, 255);
+    Colorize(image, f, null, ftoi, func, null, 1);
+  }
+  /** Sets 'this' to the coloring of 'image' by 'func', given the field at
+   * the center of each pixel, already sampled into 'samples', which is of
+   * the size of 'this'. 'ftoi' maps the points of the field to those of the
+   * image, and 'func' writes the bytes of each pixel itself. The rows are
+   * divided among 'threads' threads.
+   * Requires: 'image' is at least as large as 'this' */
+  public void fromScalarImageMagnitude(ScalarImage image, FieldImage samples, 
+    Vec2Transform ftoi, ColorFunction func, int threads)
+  {
+    Colorize(image, null, samples, ftoi, null, func, threads);
+  }
+  /** Does the same as fromScalarImageMagnitude(image, f, ftoi, func) for a
+   * coloring that does not depend on the field, such as a flat color or a
+   * color by region: 'func' is given a field of 0 everywhere. The rows are
+   * divided among 'threads' threads, so 'func' must then allow get() to be
+   * called from several threads at once. */
+  public void fromScalarImageFlat(ScalarImage image, Vec2Transform ftoi, 
+    Vec3Field func, int threads)
+  {
+    Colorize(image, null, null, ftoi, func, null, threads);
+  }
+  
+  /** Colors 'this' from 'image' by 'func', or by 'cfunc' if it is not null,
+   * with the field taken from 'f', or else from 'samples', or else 0. Each
+   * thread works through its rows with its own scratch space, so nothing is
+   * allocated per pixel. */
+  private void Colorize(final ScalarImage image, final Vec2Field f, final FieldImage samples, 
+    Vec2Transform ftoi, final Vec3Field func, final ColorFunction cfunc, int threads)
+  {
+    final Vec2Transform itof = ftoi.invert();
+    Parallel.For(height, threads, new Parallel.Body() {
+      public void Run(int start, int end, int thread){
+        Vec2 xpos = new Vec2();
+        double[] v = new double[2];
+        Vec3 value = new Vec3(), color = new Vec3();
+        for (int j = start; j<end; ++j)
+          for (int i = 0, k = offset[j]; i<width; ++i, ++k) {
+            xpos.x = i + 0.5;
+            xpos.y = j + 0.5;
+            itof.V(xpos);
+            if (f!=null)
+              f.get(xpos.x, xpos.y, v, 0);
+            else if (samples!=null) {
+              v[0] = samples.x[k];
+              v[1] = samples.y[k];
+            } else {
+              v[0] = 0;
+              v[1] = 0;
+            }
+            if (cfunc!=null) {
+              cfunc.Color(RGBImage.this, k, v[0], v[1], image.f[k], xpos);
+              continue;
+            }
+            value.x = v[0];
+            value.y = v[1];
+            value.z = image.f[k];
+            func.get(value, xpos, color);
+            r[k] = (byte)clamp(color.x*255, 0, 255);
+            g[k] = (byte)clamp(color.y*255, 0, 255);
+            b[k] = (byte)clamp(color.z*255, 0, 255);
+          }
       }
-  } 
+    });
+  }
   
   public void RfromScalarImage(ScalarImage image, double R)
   {
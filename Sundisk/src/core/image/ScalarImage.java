@@ -158,6 +158,44 @@ public class ScalarImage {
   public double getBilinear(Vec2 v){
     return getBilinear(v.x, v.y);
   }
+  /** Returns: the scalar value at index "k" of f[], as returned by get().
+   * Requires: 0<=k<size */
+  protected double getUnchecked(int k){
+    return (double)f[k];
+  }
+  /** Returns: the bilinearly-interpolated value of the continuous field
+   *   at (x, y), the same as getBilinear(x, y), but without checking the
+   *   domain. This is for callers that have already tested inBounds(x, y).
+   * Requires: (x, y) is inside the domain of the field, and "this" is at
+   *   least 2x2 */
+  public double getBilinearUnchecked(double x, double y){
+    int xi = (int)x;
+    int yi = (int)y;
+    if (xi>=(width-1))
+      xi = width-2;
+    if (yi>=(height-1))
+      yi = height-2;
+    double xf = x - xi;
+    double yf = y - yi;
+
+    int k = offset[yi] + xi;
+    double b1 = getUnchecked(k);
+    double b2 = getUnchecked(k+1);
+    double b3 = getUnchecked(k+width);
+    double b4 = getUnchecked(k+width+1);
+
+    double bb1 = b1 + xf*(b2 - b1);
+    double bb2 = b3 + xf*(b4 - b3);
+
+    return bb1 + yf*(bb2 - bb1);
+  }
+  /** Samples the continuous field at the points (x[i], y[i]) for i in
+   *   [start, end), storing the values in s[i].
+   * Requires: all the points are inside the domain of the field */
+  public void getBilinearUnchecked(double[] x, double[] y, double[] s, int start, int end){
+    for (int i = start; i<end; ++i)
+      s[i] = getBilinearUnchecked(x[i], y[i]);
+  }
   /** Bilinearly accumulates "s" to the four integer grid points surrounding
    *   the continuous coordinate (x, y). */  
   public void AccumulateBilinear(double x, double y, double s){
@@ -0,0 +1,24 @@
+package core.io;
+
+import core.image.RGBImage;
+
+/** Somewhere the frames of an animation are shown as they are rendered.
+*
+* The Renderer hands every full frame to its sink, if it has one, before
+* the frame is written. An OutputWindow is the sink of an interactive
+* rendering; a rendering without a display may have no sink at all, or one
+* that reports progress or previews the frames some other way.
+*
+* Show() is called from a single thread, one frame at a time, and "image"
+* is reused once it returns, so a sink that keeps it must copy it.
+* @version 1.0
+*/
+
+public interface FrameSink {
+
+  /** Shows "image", the next frame. */
+  public void Show(RGBImage image);
+  /** Releases whatever the sink holds, after the last frame. */
+  public void Close();
+
+}
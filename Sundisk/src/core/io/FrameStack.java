@@ -0,0 +1,244 @@
+package core.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import core.image.RGBImage;
+
+/** A whole sequence of frames in a single file, which is read and written
+* through memory maps.
+*
+* The file starts with a header, followed by one slot for every frame. All
+* slots have the same size and start on a page boundary, so frame k lies at
+* a fixed offset in the file, and reading or writing it is a copy to or from
+* memory rather than a file open. A slot holds the metadata of its frame
+* (whether it has been written, its time, the random seed it was rendered
+* with, and "metasize" bytes of parameters that are up to the caller),
+* followed by the red, green and blue planes of the image.
+*
+* A single map cannot be larger than 2 GB, so the slots are mapped in
+* segments of about 1 GB, each the first time one of its frames is used.
+* The file is created at its full size up front, which most file systems
+* store sparsely until the frames are written.
+*
+* Any number of threads may read and write frames at once, as long as no
+* two of them write the same frame.
+* @version 1.0
+*/
+
+public class FrameStack {
+  /** The first four bytes of every frame stack, "SDFS" */
+  private static final int MAGIC = 0x53444653;
+  /** The version of the format */
+  private static final int VERSION = 1;
+  /** The alignment of the slots, and the size of the header */
+  private static final int PAGE = 4096;
+  /** The size of the fixed part of the metadata of a frame: the written
+   *   flag, padding, the time and the seed */
+  private static final int FRAMEHEADER = 24;
+  /** The preferred size of a mapped segment */
+  private static final long SEGMENT = 1L<<30;
+
+  private RandomAccessFile file;
+  private FileChannel channel;
+  private boolean writable;
+  private int width, height, frames, metasize;
+  /** The offset of the pixels in a slot, and the size of a slot */
+  private int pixels;
+  private long slotsize;
+  /** The number of slots in every segment, and the segments mapped so far */
+  private int perSegment;
+  private MappedByteBuffer[] segments;
+
+  /** Creates the file "filename", replacing it if it exists, to hold
+   * "frames" images of size (width, height), with "metasize" bytes of
+   * parameters for every frame, and opens it for writing. */
+  public static FrameStack Create(String filename, int width, int height, int frames, int metasize) throws IOException {
+    if ((width<=0) || (height<=0) || (frames<=0) || (metasize<0))
+      throw new IllegalArgumentException("FrameStack.Create: bad size "+width+" x "+height+" x "+frames);
+    new File(filename).delete();
+    FrameStack stack = new FrameStack(filename, true, width, height, frames, metasize);
+    ByteBuffer b = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+    b.putInt(MAGIC);
+    b.putInt(VERSION);
+    b.putInt(width);
+    b.putInt(height);
+    b.putInt(frames);
+    b.putInt(metasize);
+    b.putLong(stack.slotsize);
+    b.flip();
+    while (b.hasRemaining())
+      stack.channel.write(b, b.position());
+    stack.file.setLength(PAGE + frames*stack.slotsize);
+    return stack;
+  }
+  /** Opens the existing frame stack "filename", for writing as well as
+   * reading if "writable" is true. */
+  public static FrameStack Open(String filename, boolean writable) throws IOException {
+    RandomAccessFile f = new RandomAccessFile(filename, "r");
+    ByteBuffer b = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+    try {
+      while (b.hasRemaining())
+        if (f.getChannel().read(b, b.position())<0)
+          throw new IOException("FrameStack.Open: "+filename+" is not a frame stack");
+    } finally {
+      f.close();
+    }
+    b.flip();
+    if (b.getInt()!=MAGIC)
+      throw new IOException("FrameStack.Open: "+filename+" is not a frame stack");
+    int version = b.getInt();
+    if (version!=VERSION)
+      throw new IOException("FrameStack.Open: "+filename+" has version "+version+", not "+VERSION);
+    int width = b.getInt();
+    int height = b.getInt();
+    int frames = b.getInt();
+    int metasize = b.getInt();
+    long slotsize = b.getLong();
+    FrameStack stack = new FrameStack(filename, writable, width, height, frames, metasize);
+    if ((stack.slotsize!=slotsize) || (stack.file.length()<PAGE + frames*slotsize)) {
+      stack.Close();
+      throw new IOException("FrameStack.Open: "+filename+" is damaged");
+    }
+    return stack;
+  }
+
+  private FrameStack(String filename, boolean writable, int width, int height, int frames, int metasize) throws IOException {
+    this.writable = writable;
+    this.width = width;
+    this.height = height;
+    this.frames = frames;
+    this.metasize = metasize;
+    pixels = (FRAMEHEADER + metasize + 7) & ~7;
+    slotsize = (pixels + 3L*width*height + PAGE-1) & ~(long)(PAGE-1);
+    perSegment = (int)Math.max(1, Math.min(SEGMENT/slotsize, frames));
+    segments = new MappedByteBuffer[(frames+perSegment-1)/perSegment];
+    file = new RandomAccessFile(filename, writable ? "rw" : "r");
+    channel = file.getChannel();
+  }
+
+  public int getWidth(){
+    return width;
+  }
+  public int getHeight(){
+    return height;
+  }
+  /** Returns: the number of frames the stack holds */
+  public int getFrames(){
+    return frames;
+  }
+  /** Returns: the number of bytes of parameters of every frame */
+  public int getMetaSize(){
+    return metasize;
+  }
+
+  /** Writes "image" as frame "frame", at time "time" and rendered with the
+   * random seed "seed", with the parameters "params", which may be null and
+   * are padded with zeros up to getMetaSize() bytes. The frame only counts
+   * as written once all of it has been copied. */
+  public void Write(int frame, RGBImage image, double time, long seed, byte[] params) throws IOException {
+    if (!writable)
+      throw new IOException("FrameStack.Write: the stack is open for reading only");
+    if ((image.width!=width) || (image.height!=height))
+      throw new IllegalArgumentException("FrameStack.Write: the image is "+image.width+" x "+image.height+", not "+width+" x "+height);
+    if ((params!=null) && (params.length>metasize))
+      throw new IllegalArgumentException("FrameStack.Write: "+params.length+" bytes of parameters, at most "+metasize);
+    ByteBuffer b = Slot(frame);
+    int start = b.position();
+    b.putInt(start, 0);
+    b.putDouble(start+8, time);
+    b.putLong(start+16, seed);
+    b.position(start+FRAMEHEADER);
+    if (params!=null)
+      b.put(params);
+    for (int i = (params!=null) ? params.length : 0; i<metasize; ++i)
+      b.put((byte)0);
+    b.position(start+pixels);
+    b.put(image.r, 0, image.size);
+    b.put(image.g, 0, image.size);
+    b.put(image.b, 0, image.size);
+    b.putInt(start, 1);
+  }
+  /** Reads frame "frame" into "image", or into a new image if "image" is
+   * null or of the wrong size.
+   * Returns: the image */
+  public RGBImage Read(int frame, RGBImage image) throws IOException {
+    ByteBuffer b = Slot(frame);
+    int start = b.position();
+    if (b.getInt(start)==0)
+      throw new IOException("FrameStack.Read: frame "+frame+" has not been written");
+    if ((image==null) || (image.width!=width) || (image.height!=height))
+      image = new RGBImage(width, height);
+    b.position(start+pixels);
+    b.get(image.r, 0, image.size);
+    b.get(image.g, 0, image.size);
+    b.get(image.b, 0, image.size);
+    return image;
+  }
+  /** Returns: true if frame "frame" has been written */
+  public boolean IsWritten(int frame) throws IOException {
+    ByteBuffer b = Slot(frame);
+    return b.getInt(b.position())!=0;
+  }
+  /** Returns: the time of frame "frame" */
+  public double getTime(int frame) throws IOException {
+    ByteBuffer b = Slot(frame);
+    return b.getDouble(b.position()+8);
+  }
+  /** Returns: the random seed frame "frame" was rendered with */
+  public long getSeed(int frame) throws IOException {
+    ByteBuffer b = Slot(frame);
+    return b.getLong(b.position()+16);
+  }
+  /** Returns: the getMetaSize() bytes of parameters of frame "frame" */
+  public byte[] getParams(int frame) throws IOException {
+    ByteBuffer b = Slot(frame);
+    b.position(b.position()+FRAMEHEADER);
+    byte[] params = new byte[metasize];
+    b.get(params);
+    return params;
+  }
+
+  /** Forces the frames written so far out to the disk. */
+  public synchronized void Flush(){
+    if (writable)
+      for (int i = 0; i<segments.length; ++i)
+        if (segments[i]!=null)
+          segments[i].force();
+  }
+  /** Flushes and closes the file. The frames are not available afterwards. */
+  public synchronized void Close() throws IOException {
+    Flush();
+    for (int i = 0; i<segments.length; ++i)
+      segments[i] = null;
+    file.close();
+  }
+
+  /** Returns: a little-endian view of the segment holding frame "frame",
+   *   positioned at the start of its slot */
+  private ByteBuffer Slot(int frame) throws IOException {
+    if ((frame<0) || (frame>=frames))
+      throw new IndexOutOfBoundsException("FrameStack: frame "+frame+" is not in [0, "+frames+")");
+    int s = frame/perSegment;
+    MappedByteBuffer segment;
+    synchronized (this) {
+      segment = segments[s];
+      if (segment==null) {
+        long first = (long)s*perSegment;
+        long size = Math.min(perSegment, frames-first)*slotsize;
+        segment = channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+                              PAGE + first*slotsize, size);
+        segments[s] = segment;
+      }
+    }
+    ByteBuffer b = segment.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    b.position((int)((frame%perSegment)*slotsize));
+    return b;
+  }
+
+}
@@ -0,0 +1,608 @@
+package core.io;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import core.image.RGBImage;
+import core.math.Parallel;
+
+/** Writes RGBImages to files on background threads.
+*
+* Write() copies the image into one of the "depth" jobs of the writer and
+* returns, while one of its threads encodes the copy and writes it out. When
+* all the jobs are in use, Write() waits for one to finish, so that a fast
+* producer is held back instead of queueing up images without bound.
+* Each file is written with a single gather write of the header and the
+* pixel data through a FileChannel.
+*
+* The compressed formats split the image into strips of rows, which are
+* compressed at the same time on "compression threads" threads. Each strip
+* of a Deflate TIFF is a zlib stream of its own. The strips of a PNG are
+* parts of one zlib stream: every strip but the last ends on a byte boundary
+* with a sync flush, and starts from the last 32K of the strip before it as
+* its dictionary, so that they can simply be put one after the other. In
+* both formats every row is stored as differences from the pixel to its left
+* (the TIFF horizontal predictor, and the PNG Sub filter), which makes the
+* smooth textures of a LIC compress far better.
+*
+* The writer keeps all its state in the instance, so several writers, and
+* several threads of one writer, can write at once. An exception thrown
+* while writing is kept and rethrown by the next call to Write(), Flush()
+* or Close().
+*
+* The formats are the same as those of ImageIO:
+* TIFF: Tagged Image File Format, uncompressed 24-bit;
+* TGA: Truevision (Targa);
+* MONO_TGA: gray-scale Truevision (Targa);
+* RAW_RGB: Raw RGB pixel data;
+* RAW_X: Raw RGB pixel data, 4-pixel horizontal interleaving;
+* and in addition:
+* DEFLATE_TIFF: Tagged Image File Format, Deflate compressed 24-bit;
+* PNG: Portable Network Graphics, 24-bit;
+* @version 1.0
+*/
+
+public class ImageWriter {
+  public static final int TIFF = 0;
+  public static final int TGA = 1;
+  public static final int MONO_TGA = 2;
+  public static final int RAW_RGB = 3;
+  public static final int RAW_X = 4;
+  public static final int DEFLATE_TIFF = 5;
+  public static final int PNG = 6;
+
+  /** The number of bytes of pixel data in a strip of a compressed image */
+  private static final int STRIP = 1<<16;
+  /** The size of the window of a Deflate stream */
+  private static final int WINDOW = 1<<15;
+
+  /** An image waiting to be written, with the buffer it is encoded into */
+  private static class Job {
+    RGBImage image;
+    String filename;
+    ByteBuffer pixels;
+  }
+
+  private int format;
+  /** The Deflate compression level, and the number of threads each image
+   *   is compressed on */
+  private int level, compressthreads;
+  private ExecutorService executor;
+  /** The jobs that are not in use */
+  private BlockingQueue<Job> jobs;
+  private int depth;
+  /** The first exception thrown while writing */
+  private Throwable error;
+
+  /** Constructs an ImageWriter that writes files in "format" on "threads"
+   * threads, with at most "depth" images waiting to be written. */
+  public ImageWriter(int format, int threads, int depth){
+    this.format = format;
+    level = Deflater.DEFAULT_COMPRESSION;
+    compressthreads = Parallel.getDefaultThreads();
+    if (threads<1)
+      threads = 1;
+    if (depth<threads)
+      depth = threads;
+    this.depth = depth;
+    jobs = new ArrayBlockingQueue<Job>(depth);
+    for (int i = 0; i<depth; ++i)
+      jobs.add(new Job());
+    executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      private int count = 0;
+      public synchronized Thread newThread(Runnable r){
+        Thread thread = new Thread(r, "ImageWriter-" + (count++));
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+  /** Constructs an ImageWriter that writes files in "format" on one thread,
+   * with at most two images waiting to be written. */
+  public ImageWriter(int format){
+    this(format, 1, 2);
+  }
+
+  /** Sets the Deflate compression "level", from 1 (fastest) to 9 (smallest),
+   * and the number of threads each image is compressed on, for the
+   * compressed formats. By default the level is 6 and all the processors
+   * are used. */
+  public synchronized void SetCompression(int level, int threads){
+    this.level = level;
+    compressthreads = Math.max(threads, 1);
+  }
+  /** Returns: the usual file name extension of "format", including the dot */
+  public static String getExtension(int format){
+    switch (format) {
+      case TGA:
+      case MONO_TGA:
+        return ".tga";
+      case RAW_RGB:
+      case RAW_X:
+        return ".raw";
+      case PNG:
+        return ".png";
+      default:
+        return ".tif";
+    }
+  }
+
+  /** Starts writing a copy of "image" to "filename". "image" may be changed
+   * as soon as this returns. This waits while all the jobs are in use. */
+  public void Write(RGBImage image, String filename) throws IOException {
+    CheckError();
+    final Job job;
+    try {
+      job = jobs.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("ImageWriter.Write: " + e);
+    }
+    if ((job.image==null) || (job.image.width!=image.width) || (job.image.height!=image.height))
+      job.image = new RGBImage(image.width, image.height);
+    job.image.Copy(image);
+    job.filename = filename;
+    final int level, threads;
+    synchronized (this) {
+      level = this.level;
+      threads = compressthreads;
+    }
+    executor.execute(new Runnable() {
+      public void run(){
+        try {
+          WriteFile(job.filename, Encode(format, level, threads, job));
+        } catch (Throwable e) {
+          Fail(e);
+        } finally {
+          jobs.add(job);
+          Done();
+        }
+      }
+    });
+  }
+  /** Waits until every image handed to Write() has been written. */
+  public void Flush() throws IOException {
+    synchronized (this) {
+      try {
+        while ((jobs.size()<depth) && (error==null))
+          wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("ImageWriter.Flush: " + e);
+      }
+    }
+    CheckError();
+  }
+  /** Waits until every image handed to Write() has been written, and stops
+   * the threads of the writer. */
+  public void Close() throws IOException {
+    executor.shutdown();
+    try {
+      while (!executor.awaitTermination(1, TimeUnit.SECONDS))
+        ;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("ImageWriter.Close: " + e);
+    }
+    CheckError();
+  }
+
+  /** Writes "image" to "filename" in "format" on the calling thread. */
+  public static void WriteNow(int format, RGBImage image, String filename) throws IOException {
+    Job job = new Job();
+    job.image = image;
+    WriteFile(filename, Encode(format, Deflater.DEFAULT_COMPRESSION, Parallel.getDefaultThreads(), job));
+  }
+
+  private synchronized void Done(){
+    notifyAll();
+  }
+  private synchronized void Fail(Throwable e){
+    if (error==null)
+      error = e;
+    notifyAll();
+  }
+  private synchronized void CheckError() throws IOException {
+    if (error instanceof IOException)
+      throw (IOException)error;
+    if (error instanceof Error)
+      throw (Error)error;
+    if (error!=null) {
+      IOException e = new IOException("ImageWriter: " + error);
+      e.initCause(error);
+      throw e;
+    }
+  }
+
+  /** Writes "buffers" to "filename" with one gather write. */
+  private static void WriteFile(String filename, ByteBuffer[] buffers) throws IOException {
+    FileOutputStream stream = new FileOutputStream(filename);
+    try {
+      FileChannel channel = stream.getChannel();
+      long size = 0;
+      for (int i = 0; i<buffers.length; ++i)
+        size += buffers[i].remaining();
+      while (size>0)
+        size -= channel.write(buffers);
+    } finally {
+      stream.close();
+    }
+  }
+
+  /** Encodes job.image in "format", compressing it at "level" on "threads"
+   *   threads if the format is compressed. job.pixels is used as the buffer
+   *   of the pixel data, and replaced if it is too small.
+   * Returns: the buffers that make up the file, in order */
+  private static ByteBuffer[] Encode(int format, int level, int threads, Job job){
+    switch (format) {
+      case DEFLATE_TIFF:
+      case PNG: {
+        RGBImage image = job.image;
+        boolean png = (format==PNG);
+        int row = 3*image.width + (png ? 1 : 0);
+        job.pixels = Filter(image, png, job.pixels, threads);
+        Strip[] strips = Compress(job.pixels.array(), row, image.height, png, level, threads);
+        return png ? PNGFile(image, strips) : DeflateTIFFFile(image, strips, row);
+      }
+      default:
+        job.pixels = Pixels(format, job.image, job.pixels);
+        return new ByteBuffer[] { Header(format, job.image), job.pixels };
+    }
+  }
+
+  /** Returns: a buffer holding the file header of "image" in "format" */
+  private static ByteBuffer Header(int format, RGBImage image){
+    ByteBuffer b;
+    switch (format) {
+      case TIFF:
+        b = ByteBuffer.allocate(192).order(ByteOrder.LITTLE_ENDIAN);
+        /* Header */
+        b.putShort((short)0x4949);
+        b.putShort((short)0x002A);
+        b.putInt(0x08);
+        /* Image properties */
+        b.putShort((short)0x0D);
+        TIFFEntry(b, 0x0FE,4,1,0);
+        TIFFEntry(b, 0x100,4,1,image.width);
+        TIFFEntry(b, 0x101,4,1,image.height);
+        TIFFEntry(b, 0x102,3,3,170);
+        TIFFEntry(b, 0x103,3,1,1);
+        TIFFEntry(b, 0x106,3,1,2);
+        TIFFEntry(b, 0x111,4,1,192);
+        TIFFEntry(b, 0x115,3,1,3);
+        TIFFEntry(b, 0x116,4,1,image.height);
+        TIFFEntry(b, 0x117,4,1,3*image.width*image.height);
+        TIFFEntry(b, 0x11A,5,1,176);
+        TIFFEntry(b, 0x11B,5,1,184);
+        TIFFEntry(b, 0x128,3,1,2);
+        b.putInt(0);
+        b.putShort((short)8);
+        b.putShort((short)8);
+        b.putShort((short)8);
+        b.putInt(0x000AFC80);
+        b.putInt(0x00002710);
+        b.putInt(0x000AFC80);
+        b.putInt(0x00002710);
+        break;
+      case TGA:
+      case MONO_TGA:
+        b = ByteBuffer.allocate(18).order(ByteOrder.LITTLE_ENDIAN);
+        b.put((byte)0);
+        b.put((byte)0);
+        b.put((byte)((format==TGA) ? 2 : 3));
+        b.put((byte)0);
+        b.put((byte)0);
+        b.put((byte)0);
+        b.put((byte)0);
+        b.put((byte)0);
+        b.putShort((short)0);
+        b.putShort((short)0);
+        b.putShort((short)image.width);
+        b.putShort((short)image.height);
+        b.put((byte)((format==TGA) ? 24 : 8));
+        b.put((byte)0x20);
+        break;
+      case RAW_RGB:
+      case RAW_X:
+        b = ByteBuffer.allocate(0);
+        break;
+      default:
+        throw new IllegalArgumentException("ImageWriter: Unknown format " + format);
+    }
+    b.flip();
+    return b;
+  }
+  private static void TIFFEntry(ByteBuffer b, int tag, int type, int count, int data){
+    b.putShort((short)tag);
+    b.putShort((short)type);
+    b.putInt(count);
+    b.putInt(data);
+  }
+
+  /** Returns: the buffers of a TIFF file of "image", made of the compressed
+   *   "strips" of rows "row" bytes long */
+  private static ByteBuffer[] DeflateTIFFFile(RGBImage image, Strip[] strips, int row){
+    int n = strips.length;
+    /* The values that do not fit in the directory follow it, with the
+     * strip offsets and byte counts last, and then the strips */
+    int bits = 8 + 2 + 14*12 + 4;
+    int offsets = bits + 8 + 16;
+    int counts = offsets + 4*n;
+    int data = (n>1) ? counts + 4*n : offsets;
+    ByteBuffer b = ByteBuffer.allocate(data).order(ByteOrder.LITTLE_ENDIAN);
+    /* Header */
+    b.putShort((short)0x4949);
+    b.putShort((short)0x002A);
+    b.putInt(0x08);
+    /* Image properties */
+    b.putShort((short)14);
+    TIFFEntry(b, 0x0FE,4,1,0);
+    TIFFEntry(b, 0x100,4,1,image.width);
+    TIFFEntry(b, 0x101,4,1,image.height);
+    TIFFEntry(b, 0x102,3,3,bits);
+    TIFFEntry(b, 0x103,3,1,8);
+    TIFFEntry(b, 0x106,3,1,2);
+    TIFFEntry(b, 0x111,4,n,(n>1) ? offsets : data);
+    TIFFEntry(b, 0x115,3,1,3);
+    TIFFEntry(b, 0x116,4,1,strips[0].rows);
+    TIFFEntry(b, 0x117,4,n,(n>1) ? counts : strips[0].length);
+    TIFFEntry(b, 0x11A,5,1,bits+8);
+    TIFFEntry(b, 0x11B,5,1,bits+16);
+    TIFFEntry(b, 0x128,3,1,2);
+    TIFFEntry(b, 0x13D,3,1,2);
+    b.putInt(0);
+    b.putShort((short)8);
+    b.putShort((short)8);
+    b.putShort((short)8);
+    b.putShort((short)0);
+    b.putInt(0x000AFC80);
+    b.putInt(0x00002710);
+    b.putInt(0x000AFC80);
+    b.putInt(0x00002710);
+    if (n>1) {
+      for (int s = 0, ofs = data; s<n; ofs += strips[s++].length)
+        b.putInt(ofs);
+      for (int s = 0; s<n; ++s)
+        b.putInt(strips[s].length);
+    }
+    b.flip();
+    ByteBuffer[] buffers = new ByteBuffer[n+1];
+    buffers[0] = b;
+    for (int s = 0; s<n; ++s)
+      buffers[s+1] = ByteBuffer.wrap(strips[s].data, 0, strips[s].length);
+    return buffers;
+  }
+  /** Returns: the buffers of a PNG file of "image", with one IDAT chunk for
+   *   each of the compressed "strips" */
+  private static ByteBuffer[] PNGFile(RGBImage image, Strip[] strips){
+    int n = strips.length;
+    ByteBuffer[] buffers = new ByteBuffer[2*n+1];
+    /* Signature and header */
+    ByteBuffer b = ByteBuffer.allocate(8 + 25 + 8);
+    b.putInt(0x89504E47);
+    b.putInt(0x0D0A1A0A);
+    b.putInt(13);
+    int start = b.position();
+    b.putInt(0x49484452);
+    b.putInt(image.width);
+    b.putInt(image.height);
+    b.put((byte)8);
+    b.put((byte)2);
+    b.put((byte)0);
+    b.put((byte)0);
+    b.put((byte)0);
+    CRC32 crc = new CRC32();
+    crc.update(b.array(), start, b.position()-start);
+    b.putInt((int)crc.getValue());
+    for (int s = 0; s<n; ++s) {
+      b.putInt(strips[s].length);
+      b.putInt(0x49444154);
+      b.flip();
+      buffers[2*s] = b;
+      buffers[2*s+1] = ByteBuffer.wrap(strips[s].data, 0, strips[s].length);
+      b = ByteBuffer.allocate((s<n-1) ? 12 : 16);
+      b.putInt(strips[s].crc);
+    }
+    /* The end */
+    b.putInt(0);
+    b.putInt(0x49454E44);
+    b.putInt(0xAE426082);
+    b.flip();
+    buffers[2*n] = b;
+    return buffers;
+  }
+
+  /** A strip of a compressed image */
+  private static class Strip {
+    /** The number of rows in the strip */
+    int rows;
+    /** The compressed data, and its length */
+    byte[] data;
+    int length;
+    /** The CRC of the PNG chunk holding the strip */
+    int crc;
+
+    /** Appends "len" bytes of "b" from "off" to the data. */
+    void Put(byte[] b, int off, int len){
+      Reserve(len);
+      System.arraycopy(b, off, data, length, len);
+      length += len;
+    }
+    /** Appends the output of "deflater" for all of its input, which ends
+     * the stream if "finish" is true, and else ends with a sync flush. */
+    void Deflate(Deflater deflater, boolean finish){
+      if (finish)
+        deflater.finish();
+      while (true) {
+        Reserve(1);
+        int space = data.length-length;
+        length += deflater.deflate(data, length, space, finish ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+        if (finish ? deflater.finished() : (length<data.length))
+          return;
+      }
+    }
+    private void Reserve(int len){
+      if (length+len>data.length) {
+        byte[] d = new byte[Math.max(2*data.length, length+len)];
+        System.arraycopy(data, 0, d, 0, length);
+        data = d;
+      }
+    }
+  }
+
+  /** Stores the rows of "image" in "buf", or in a new buffer if "buf" is null
+   *   or too small, as differences from the pixel to the left. A PNG row
+   *   starts with a byte for its filter.
+   * Returns: the buffer */
+  private static ByteBuffer Filter(final RGBImage image, final boolean png, ByteBuffer buf, int threads){
+    final int row = 3*image.width + (png ? 1 : 0);
+    int size = row*image.height;
+    if ((buf==null) || (buf.capacity()<size))
+      buf = ByteBuffer.allocate(size);
+    final byte[] a = buf.array();
+    Parallel.For(image.height, threads, new Parallel.Body() {
+      public void Run(int start, int end, int thread){
+        byte[] r = image.r, g = image.g, b = image.b;
+        for (int j = start; j<end; ++j) {
+          int l = j*row, k = j*image.width;
+          if (png)
+            a[l++] = 1;
+          a[l] = r[k];
+          a[l+1] = g[k];
+          a[l+2] = b[k];
+          for (int i = 1; i<image.width; ++i) {
+            ++k;
+            l += 3;
+            a[l] = (byte)(r[k]-r[k-1]);
+            a[l+1] = (byte)(g[k]-g[k-1]);
+            a[l+2] = (byte)(b[k]-b[k-1]);
+          }
+        }
+      }
+    });
+    buf.clear();
+    buf.limit(size);
+    return buf;
+  }
+
+  /** Compresses the "rows" rows of "row" bytes in "a" as strips, each with
+   *   its own zlib stream for a TIFF, or as the parts of one zlib stream for
+   *   a PNG, on "threads" threads.
+   * Returns: the strips */
+  private static Strip[] Compress(final byte[] a, final int row, int rows, final boolean png, final int level, int threads){
+    final int perstrip = Math.max(1, STRIP/row);
+    final Strip[] strips = new Strip[(rows+perstrip-1)/perstrip];
+    for (int s = 0; s<strips.length; ++s) {
+      strips[s] = new Strip();
+      strips[s].rows = Math.min(perstrip, rows - s*perstrip);
+      strips[s].data = new byte[perstrip*row/2 + 64];
+    }
+    final int size = rows*row;
+    final Deflater[] deflaters = new Deflater[Math.max(1, Math.min(threads, strips.length))];
+    final int adler;
+    if (png) {
+      Adler32 sum = new Adler32();
+      sum.update(a, 0, size);
+      adler = (int)sum.getValue();
+    } else
+      adler = 0;
+    try {
+      Parallel.Tasks(strips.length, deflaters.length, new Parallel.Body() {
+        public void Run(int s, int end, int thread){
+          if (deflaters[thread]==null)
+            deflaters[thread] = new Deflater(level, png);
+          Deflater deflater = deflaters[thread];
+          deflater.reset();
+          Strip strip = strips[s];
+          int off = s*perstrip*row;
+          boolean last = (s==strips.length-1);
+          if (png) {
+            if (s==0)
+              strip.Put(new byte[] { 0x78, (byte)0x9C }, 0, 2);
+            else {
+              int dict = Math.max(off-WINDOW, 0);
+              deflater.setDictionary(a, dict, off-dict);
+            }
+          }
+          deflater.setInput(a, off, strip.rows*row);
+          strip.Deflate(deflater, last || !png);
+          if (png) {
+            if (last)
+              strip.Put(new byte[] { (byte)(adler>>>24), (byte)(adler>>>16), (byte)(adler>>>8), (byte)adler }, 0, 4);
+            CRC32 crc = new CRC32();
+            crc.update(new byte[] { 0x49, 0x44, 0x41, 0x54 });
+            crc.update(strip.data, 0, strip.length);
+            strip.crc = (int)crc.getValue();
+          }
+        }
+      });
+    } finally {
+      for (int t = 0; t<deflaters.length; ++t)
+        if (deflaters[t]!=null)
+          deflaters[t].end();
+    }
+    return strips;
+  }
+
+  /** Encodes the pixels of "image" in "format" into "buf", or into a new
+   *   buffer if "buf" is null or too small.
+   * Returns: the buffer, ready to be written */
+  private static ByteBuffer Pixels(int format, RGBImage image, ByteBuffer buf){
+    int size = (format==MONO_TGA) ? image.size : 3*image.size;
+    if ((buf==null) || (buf.capacity()<size))
+      buf = ByteBuffer.allocate(size);
+    byte[] a = buf.array();
+    byte[] r = image.r, g = image.g, b = image.b;
+    switch (format) {
+      case TIFF:
+      case RAW_RGB:
+        for (int k = 0, l = 0; k<image.size; ++k, l += 3) {
+          a[l] = r[k];
+          a[l+1] = g[k];
+          a[l+2] = b[k];
+        }
+        break;
+      case TGA:
+        for (int k = 0, l = 0; k<image.size; ++k, l += 3) {
+          a[l] = b[k];
+          a[l+1] = g[k];
+          a[l+2] = r[k];
+        }
+        break;
+      case MONO_TGA:
+        /* The RGB components are mixed together in (50%, 35%, 15%) proportions */
+        for (int k = 0; k<image.size; ++k)
+          a[k] = (byte)((50*(int)r[k] + 35*(int)g[k] + 15*(int)b[k])/100);
+        break;
+      case RAW_X: {
+        int n = (image.width/4)*image.height;
+        size = 12*n;
+        for (int p = 0, l = 0; p<4; ++p)
+          for (int k = 0, m = p; k<n; ++k, m += 4, l += 3) {
+            a[l] = r[m];
+            a[l+1] = g[m];
+            a[l+2] = b[m];
+          }
+        break;
+      }
+      default:
+        throw new IllegalArgumentException("ImageWriter: Unknown format " + format);
+    }
+    buf.clear();
+    buf.limit(size);
+    return buf;
+  }
+
+}
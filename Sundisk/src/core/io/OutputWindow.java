@@ -4,6 +4,8 @@ import java.lang.*;
 import java.awt.*;
 import java.awt.image.*;
 import java.awt.color.*;
+
+import core.image.RGBImage;
 /** An RGB frame-buffer accessible window
 *  = < title, width, height, byte-buffer >.
 *
@@ -12,10 +14,12 @@ import java.awt.color.*;
 * or its contents can be accessed directly via an RGB byte-buffer.
 * Since the window contents are effectively double-buffered, an explicit
 * call to Refresh() is required to update the window.
+*
+* As a FrameSink, it shows each frame it is given and refreshes itself.
 * @author Andreas Sundquist
 * @version 1.0
 */
-public class OutputWindow {
+public class OutputWindow implements FrameSink {
   
 	  /** Consturcts a new OutputWindow = < Title, Width, Height, zero-buffer >.
 	   * Because of AWT inconsistencies, it uses an ugly hack... appears to work
@@ -56,6 +60,16 @@ public class OutputWindow {
   public void Refresh(){
     f.paint(f.getGraphics());
   }
+  /** Copies "image", which must be of the size of the window, to the
+   * back-buffer and draws it to the screen */
+  public void Show(RGBImage image){
+    image.toRGBBytes(getByteBuffer());
+    Refresh();
+  }
+  /** Destroys the window */
+  public void Close(){
+    dispose();
+  }
   /** Returns: a Graphics object that can be used to draw on the back-buffer */
   public Graphics getBufferedGraphics(){
     return o.getGraphics();
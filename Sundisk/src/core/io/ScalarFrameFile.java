@@ -0,0 +1,274 @@
+package core.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import core.image.FieldImage;
+import core.image.ScalarImage;
+
+/** A sequence of scalar frames, each with the field it was computed from,
+* stored in a single file.
+*
+* A frame holds, for every pixel, the scalar value of the image and the two
+* components of the field at the center of the pixel, which is everything
+* the colorizing of a frame needs. Storing these lets the frames be colored
+* again with other settings without computing them again.
+*
+* The file starts with a header, followed by the frames, which all take the
+* same number of bytes. Each frame starts with its number and its time,
+* followed by the scalar values, the x components and the y components of
+* the field, each in scanline order, as floats or as half-precision floats.
+* Half-precision values keep 11 significant bits, and a field larger than
+* 65504 is stored as 65504.
+*
+* Frames are added to the end of the file, and read back in any order.
+* @version 1.0
+*/
+
+public class ScalarFrameFile {
+  public static final int FLOAT = 4;
+  public static final int HALF = 2;
+
+  /** The first four bytes of every file, "SDSF" */
+  private static final int MAGIC = 0x53445346;
+  /** The version of the format */
+  private static final int VERSION = 1;
+  /** The size of the header of the file, and of each frame */
+  private static final int HEADER = 32;
+  private static final int FRAMEHEADER = 16;
+
+  private RandomAccessFile file;
+  private FileChannel channel;
+  private int width, height, size, precision;
+  private long framesize;
+  private int count;
+  /** The buffer a frame is encoded into or decoded from, and the frame of
+   *   the file it holds, or -1 */
+  private ByteBuffer buf;
+  private int loaded = -1;
+  /** The field at every pixel */
+  private float[] fx, fy;
+
+  /** Creates the file "filename", replacing it if it exists, for frames of
+   * size (width, height), stored with "precision", FLOAT or HALF. */
+  public static ScalarFrameFile Create(String filename, int width, int height, int precision) throws IOException {
+    if ((precision!=FLOAT) && (precision!=HALF))
+      throw new IllegalArgumentException("ScalarFrameFile: Unknown precision " + precision);
+    new File(filename).delete();
+    ScalarFrameFile frames = new ScalarFrameFile(filename, width, height, precision);
+    ByteBuffer b = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+    b.putInt(MAGIC);
+    b.putInt(VERSION);
+    b.putInt(width);
+    b.putInt(height);
+    b.putInt(precision);
+    b.position(HEADER);
+    b.flip();
+    while (b.hasRemaining())
+      frames.channel.write(b, b.position());
+    return frames;
+  }
+  /** Opens the existing file "filename", to which more frames may be added. */
+  public static ScalarFrameFile Open(String filename) throws IOException {
+    RandomAccessFile f = new RandomAccessFile(filename, "r");
+    ByteBuffer b = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+    try {
+      while (b.hasRemaining())
+        if (f.getChannel().read(b, b.position())<0)
+          throw new IOException("ScalarFrameFile.Open: "+filename+" is not a scalar frame file");
+    } finally {
+      f.close();
+    }
+    b.flip();
+    if (b.getInt()!=MAGIC)
+      throw new IOException("ScalarFrameFile.Open: "+filename+" is not a scalar frame file");
+    int version = b.getInt();
+    if (version!=VERSION)
+      throw new IOException("ScalarFrameFile.Open: "+filename+" has version "+version+", not "+VERSION);
+    int width = b.getInt();
+    int height = b.getInt();
+    int precision = b.getInt();
+    ScalarFrameFile frames = new ScalarFrameFile(filename, width, height, precision);
+    frames.count = (int)((frames.file.length() - HEADER)/frames.framesize);
+    return frames;
+  }
+
+  private ScalarFrameFile(String filename, int width, int height, int precision) throws IOException {
+    this.width = width;
+    this.height = height;
+    this.precision = precision;
+    size = width*height;
+    framesize = FRAMEHEADER + 3L*precision*size;
+    buf = ByteBuffer.allocate((int)framesize).order(ByteOrder.LITTLE_ENDIAN);
+    fx = new float[size];
+    fy = new float[size];
+    file = new RandomAccessFile(filename, "rw");
+    channel = file.getChannel();
+  }
+
+  public int getWidth(){
+    return width;
+  }
+  public int getHeight(){
+    return height;
+  }
+  public int getPrecision(){
+    return precision;
+  }
+  /** Returns: the number of frames in the file */
+  public int getCount(){
+    return count;
+  }
+
+  /** Adds frame "index" at time "time" to the end of the file, made of the
+   * scalar values of "image" and the field "samples" already sampled at
+   * the centers of its pixels.
+   * Requires: "image" and "samples" are of the size of the file */
+  public synchronized void Write(int index, double time, ScalarImage image, FieldImage samples) throws IOException {
+    if ((image.width!=width) || (image.height!=height) || (samples.width!=width) || (samples.height!=height))
+      throw new IllegalArgumentException("ScalarFrameFile.Write: the image is "+image.width+" x "+image.height+", not "+width+" x "+height);
+    for (int k = 0; k<size; ++k) {
+      fx[k] = (float)samples.x[k];
+      fy[k] = (float)samples.y[k];
+    }
+    Append(index, time, image);
+  }
+  /** Appends frame "index" at time "time" of the scalar values of "image"
+   * and the field in fx and fy to the file */
+  private void Append(int index, double time, ScalarImage image) throws IOException {
+    loaded = -1;
+    buf.clear();
+    buf.putInt(index);
+    buf.putInt(0);
+    buf.putDouble(time);
+    Put(image.f);
+    Put(fx);
+    Put(fy);
+    buf.flip();
+    long position = HEADER + count*framesize;
+    while (buf.hasRemaining())
+      position += channel.write(buf, position);
+    ++count;
+  }
+  /** Reads frame "n" of the file, the n-th one written, into the scalar
+   * values of "image" and the field components "x" and "y".
+   * Returns: the number the frame was written with */
+  public synchronized int Read(int n, ScalarImage image, float[] x, float[] y) throws IOException {
+    Load(n);
+    int index = buf.getInt(0);
+    buf.position(FRAMEHEADER);
+    Get(image.f);
+    Get(x);
+    Get(y);
+    return index;
+  }
+  /** Reads frame "n" of the file, the n-th one written, into the scalar
+   * values of "image" and the field samples "samples".
+   * Returns: the number the frame was written with */
+  public synchronized int Read(int n, ScalarImage image, FieldImage samples) throws IOException {
+    int index = Read(n, image, fx, fy);
+    for (int k = 0; k<size; ++k)
+      samples.Set(k, fx[k], fy[k]);
+    return index;
+  }
+  /** Returns: the number frame "n" of the file was written with */
+  public synchronized int getIndex(int n) throws IOException {
+    Load(n);
+    return buf.getInt(0);
+  }
+  /** Returns: the time of frame "n" of the file */
+  public synchronized double getTime(int n) throws IOException {
+    Load(n);
+    return buf.getDouble(8);
+  }
+  /** Removes all but the first "n" frames from the file. */
+  public synchronized void Truncate(int n) throws IOException {
+    if ((n>=0) && (n<count)) {
+      count = n;
+      channel.truncate(HEADER + count*framesize);
+    }
+  }
+  /** Forces the frames out to the disk and closes the file. */
+  public synchronized void Close() throws IOException {
+    channel.force(true);
+    file.close();
+  }
+
+  /** Reads frame "n" into the buffer */
+  private void Load(int n) throws IOException {
+    if ((n<0) || (n>=count))
+      throw new IndexOutOfBoundsException("ScalarFrameFile: frame "+n+" is not in [0, "+count+")");
+    if (n==loaded)
+      return;
+    loaded = -1;
+    buf.clear();
+    long position = HEADER + n*framesize;
+    while (buf.hasRemaining()) {
+      int read = channel.read(buf, position);
+      if (read<0)
+        throw new IOException("ScalarFrameFile: the file ends inside frame "+n);
+      position += read;
+    }
+    loaded = n;
+  }
+  /** Appends "values" to the buffer with the precision of the file */
+  private void Put(float[] values){
+    if (precision==FLOAT)
+      for (int k = 0; k<size; ++k)
+        buf.putFloat(values[k]);
+    else
+      for (int k = 0; k<size; ++k)
+        buf.putShort(ToHalf(values[k]));
+  }
+  /** Reads "values" from the buffer with the precision of the file */
+  private void Get(float[] values){
+    if (precision==FLOAT)
+      for (int k = 0; k<size; ++k)
+        values[k] = buf.getFloat();
+    else
+      for (int k = 0; k<size; ++k)
+        values[k] = FromHalf(buf.getShort());
+  }
+
+  /** Returns: "x" as a half-precision float, rounded to the nearest, with
+   *   values beyond the range of a half stored as the largest half and NaN
+   *   stored as zero */
+  public static short ToHalf(float x){
+    int bits = Float.floatToRawIntBits(x);
+    int sign = (bits>>>16) & 0x8000;
+    if (x!=x)
+      return 0;
+    float a = Math.abs(x);
+    if (a>=65504f)
+      return (short)(sign | 0x7BFF);
+    if (a<6.1035156e-5f)
+      /* Subnormal halves are multiples of 2^-24 */
+      return (short)(sign | Math.round(a*16777216f));
+    int e = ((bits>>>23) & 0xFF) - 127 + 15;
+    int m = bits & 0x7FFFFF;
+    int h = (e<<10) | (m>>>13);
+    int rest = m & 0x1FFF;
+    /* Round to nearest, ties to even; a carry into the exponent is correct */
+    if ((rest>0x1000) || ((rest==0x1000) && ((h&1)!=0)))
+      ++h;
+    return (short)(sign | h);
+  }
+  /** Returns: the half-precision float "h" as a float */
+  public static float FromHalf(short h){
+    int sign = (h & 0x8000)<<16;
+    int e = (h>>>10) & 0x1F;
+    int m = h & 0x3FF;
+    if (e==0) {
+      float a = m/16777216f;
+      return (sign!=0) ? -a : a;
+    }
+    if (e==31)
+      return Float.intBitsToFloat(sign | 0x7F800000 | (m<<13));
+    return Float.intBitsToFloat(sign | ((e - 15 + 127)<<23) | (m<<13));
+  }
+
+}
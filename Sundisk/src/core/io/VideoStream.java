@@ -0,0 +1,176 @@
+package core.io;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import core.image.RGBImage;
+import core.math.Parallel;
+
+/** Streams a sequence of RGBImages as uncompressed video, to be encoded by
+* another program as the frames are rendered.
+*
+* The stream goes to the standard output, to a file or named pipe, or to
+* the standard input of an encoder that the VideoStream starts itself. The
+* frames must all be of the same size, and are written in the order they are
+* given.
+*
+* Available formats are:
+* Y4M: YUV4MPEG2, 4:2:0 chroma averaged over 2x2 pixels, with the BT.601
+*   studio range colors, which any encoder that reads YUV4MPEG2 accepts as
+*   it is. The width and the height must be even.
+* RGB24: Raw RGB pixel data, left-right, top-down, with no header, so the
+*   reader must be told the size, e.g. "-f rawvideo -pix_fmt rgb24 -s WxH"
+*   for ffmpeg.
+*
+* The conversion to YUV is done on "threads" threads, a pair of rows at a
+* time.
+* @version 1.0
+*/
+
+public class VideoStream {
+  public static final int Y4M = 0;
+  public static final int RGB24 = 1;
+
+  private OutputStream stream;
+  /** The encoder the stream is written to, or null */
+  private Process process;
+  private int format, framerate, threads;
+  private int width, height;
+  /** The encoded frame, including its header of "header" bytes */
+  private byte[] frame;
+  private int header;
+  private int frames;
+
+  /** Constructs a VideoStream in "format" at "framerate" frames per second,
+   * to the standard output if "output" is "-", and else to the file or named
+   * pipe "output". */
+  public VideoStream(String output, int format, int framerate) throws IOException {
+    this(null, output.equals("-") ? new FileOutputStream(FileDescriptor.out) : new FileOutputStream(output),
+         format, framerate);
+  }
+  /** Constructs a VideoStream in "format" at "framerate" frames per second,
+   * to the standard input of the program started with "command", whose
+   * output and error go to those of this program. */
+  public VideoStream(String[] command, int format, int framerate) throws IOException {
+    this(Start(command), null, format, framerate);
+  }
+  /** Constructs a VideoStream to "output", or to the standard input of
+   * "process" if "output" is null. */
+  private VideoStream(Process process, OutputStream output, int format, int framerate){
+    this.process = process;
+    if (output==null)
+      output = process.getOutputStream();
+    stream = new BufferedOutputStream(output, 1<<16);
+    if ((format!=Y4M) && (format!=RGB24))
+      throw new IllegalArgumentException("VideoStream: Unknown format " + format);
+    this.format = format;
+    this.framerate = framerate;
+    threads = Parallel.getDefaultThreads();
+  }
+  private static Process Start(String[] command) throws IOException {
+    ProcessBuilder builder = new ProcessBuilder(command);
+    builder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+    builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+    return builder.start();
+  }
+
+  /** Sets the number of threads the frames are converted on, by default the
+   * number of processors. */
+  public void SetThreads(int threads){
+    this.threads = Math.max(threads, 1);
+  }
+  /** Returns: the number of frames written so far */
+  public int getFrames(){
+    return frames;
+  }
+
+  /** Writes "image" as the next frame. The stream header is written with the
+   * first frame, which sets the size of the video. */
+  public void Write(RGBImage image) throws IOException {
+    if (frame==null) {
+      width = image.width;
+      height = image.height;
+      if ((format==Y4M) && (((width&1)!=0) || ((height&1)!=0)))
+        throw new IllegalArgumentException("VideoStream: Y4M needs an even size, not "+width+" x "+height);
+      if (format==Y4M)
+        stream.write(("YUV4MPEG2 W"+width+" H"+height+" F"+framerate+":1 Ip A1:1 C420jpeg XYSCSS=420JPEG\n").getBytes("US-ASCII"));
+      byte[] h = (format==Y4M) ? "FRAME\n".getBytes("US-ASCII") : new byte[0];
+      header = h.length;
+      frame = new byte[header + ((format==Y4M) ? width*height*3/2 : width*height*3)];
+      System.arraycopy(h, 0, frame, 0, header);
+    }
+    if ((image.width!=width) || (image.height!=height))
+      throw new IllegalArgumentException("VideoStream: the frame is "+image.width+" x "+image.height+", not "+width+" x "+height);
+    if (format==Y4M)
+      ToY4M(image);
+    else
+      ToRGB24(image);
+    stream.write(frame);
+    stream.flush();
+    ++frames;
+  }
+  /** Ends the stream. If the stream goes to an encoder, this waits for the
+   * encoder to finish, and throws an exception if it fails. */
+  public void Close() throws IOException {
+    stream.close();
+    if (process!=null) {
+      int status;
+      try {
+        status = process.waitFor();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("VideoStream.Close: " + e);
+      }
+      if (status!=0)
+        throw new IOException("VideoStream.Close: the encoder exited with status " + status);
+    }
+  }
+
+  /** Converts "image" into the Y, Cb and Cr planes of the frame */
+  private void ToY4M(final RGBImage image){
+    final int ofs = header;
+    final int cw = width/2;
+    final int cbofs = ofs + width*height;
+    final int crofs = cbofs + cw*(height/2);
+    Parallel.For(height/2, threads, new Parallel.Body() {
+      public void Run(int start, int end, int thread){
+        byte[] r = image.r, g = image.g, b = image.b;
+        for (int cj = start; cj<end; ++cj)
+          for (int ci = 0; ci<cw; ++ci) {
+            int k = 2*cj*width + 2*ci;
+            int l = ofs + k;
+            int rs = 0, gs = 0, bs = 0;
+            for (int q = 0; q<4; ++q) {
+              int kk = k + (q&1) + ((q>>1)*width);
+              int R = r[kk]&0xFF, G = g[kk]&0xFF, B = b[kk]&0xFF;
+              frame[l + (q&1) + ((q>>1)*width)] = (byte)(((66*R + 129*G + 25*B + 128)>>8) + 16);
+              rs += R;
+              gs += G;
+              bs += B;
+            }
+            /* The chroma of the average of the 2x2 pixels, rounded */
+            int c = cj*cw + ci;
+            frame[cbofs + c] = (byte)(((-38*rs - 74*gs + 112*bs + 512)>>10) + 128);
+            frame[crofs + c] = (byte)(((112*rs - 94*gs - 18*bs + 512)>>10) + 128);
+          }
+      }
+    });
+  }
+  /** Copies "image" into the frame as interleaved RGB */
+  private void ToRGB24(final RGBImage image){
+    Parallel.For(height, threads, new Parallel.Body() {
+      public void Run(int start, int end, int thread){
+        byte[] r = image.r, g = image.g, b = image.b;
+        for (int k = start*width, l = 3*k; k<end*width; ++k, l += 3) {
+          frame[l] = r[k];
+          frame[l+1] = g[k];
+          frame[l+2] = b[k];
+        }
+      }
+    });
+  }
+
+}
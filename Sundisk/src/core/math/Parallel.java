@@ -0,0 +1,128 @@
+package core.math;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Runs loops over an integer range on several threads.
+ *
+ * The range [0, n) is handed out to a number of threads, and the calling
+ * thread waits until the whole range is done. For() divides the range into
+ * one contiguous block per thread, while Tasks() hands out the indices one at
+ * a time to whichever thread is free. In both cases each index is processed
+ * exactly once, so a loop body that only writes to the data belonging to its
+ * own indices gives the same result no matter how the threads are scheduled.
+ *
+ * Any exception thrown by the loop body is rethrown in the calling thread.
+ * The worker threads are daemon threads that are shared by all callers.
+ * @version 1.0
+ */
+public class Parallel {
+
+  /** The body of a parallel loop. */
+  public interface Body {
+    /** Processes the indices [start, end). "thread" is the number of the
+     *   thread running this block, from 0 to threads-1, so that the body
+     *   can keep scratch storage for every thread. */
+    public void Run(int start, int end, int thread);
+  }
+
+  /** Returns: the number of processors available, the default number of
+   *   threads to use. */
+  public static int getDefaultThreads(){
+    return Runtime.getRuntime().availableProcessors();
+  }
+
+  /** Runs "body" over [0, n), divided into "threads" contiguous blocks of
+   *   nearly equal size. If "threads" is 1 or less, the body is simply
+   *   called on the current thread. */
+  public static void For(int n, int threads, final Body body){
+    if (threads>n)
+      threads = n;
+    if (threads<=1) {
+      if (n>0)
+        body.Run(0, n, 0);
+      return;
+    }
+    final int blocks = threads;
+    final int total = n;
+    Run(threads, new Body() {
+      public void Run(int start, int end, int thread){
+        body.Run((int)((long)total*thread/blocks), (int)((long)total*(thread+1)/blocks), thread);
+      }
+    });
+  }
+
+  /** Runs "body" once for every index in [0, n), with each index handed out
+   *   to the next free thread. This balances the load when the amount of
+   *   work per index varies. Each call to the body covers one index. */
+  public static void Tasks(final int n, int threads, final Body body){
+    if (threads>n)
+      threads = n;
+    if (threads<=1) {
+      for (int i = 0; i<n; ++i)
+        body.Run(i, i+1, 0);
+      return;
+    }
+    final AtomicInteger next = new AtomicInteger(0);
+    Run(threads, new Body() {
+      public void Run(int start, int end, int thread){
+        int i;
+        while ((i = next.getAndIncrement())<n)
+          body.Run(i, i+1, thread);
+      }
+    });
+  }
+
+  /** Calls body.Run(0, 0, thread) for every thread in [0, threads), the
+   *   first of them on the current thread, and waits for all of them. */
+  private static void Run(int threads, final Body body){
+    Future<?>[] futures = new Future<?>[threads];
+    for (int t = 1; t<threads; ++t) {
+      final int thread = t;
+      futures[t] = pool.submit(new Runnable() {
+        public void run(){
+          body.Run(0, 0, thread);
+        }
+      });
+    }
+    Throwable error = null;
+    try {
+      body.Run(0, 0, 0);
+    } catch (Throwable e) {
+      error = e;
+    }
+    for (int t = 1; t<threads; ++t) {
+      try {
+        futures[t].get();
+      } catch (java.util.concurrent.ExecutionException e) {
+        if (error==null)
+          error = e.getCause();
+      } catch (InterruptedException e) {
+        if (error==null)
+          error = e;
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (error instanceof RuntimeException)
+      throw (RuntimeException)error;
+    if (error instanceof Error)
+      throw (Error)error;
+    if (error!=null)
+      throw new RuntimeException("Parallel.Run: "+error, error);
+  }
+
+  /** The shared pool of worker threads. It grows as needed, so that loops
+   *   started from inside other loops never wait on each other. */
+  private static final ExecutorService pool = Executors.newCachedThreadPool(new ThreadFactory() {
+    private final AtomicInteger count = new AtomicInteger(0);
+    public Thread newThread(Runnable r){
+      Thread thread = new Thread(r, "Parallel-"+count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+}
@@ -104,6 +104,18 @@ public class ColorCoding {
       f.y = factor1*(p.y-y1)*r1 + factor2*(p.y-y2)*r2;
       return f;
     }
+
+    public void get(double x, double y, double[] out, int offset)
+    {
+      double factor1 = 1.;
+      double factor2 = 1.;
+      double R1 = ((x-x1)*(x-x1) + (y-y1)*(y-y1));
+      double R2 = ((x-x2)*(x-x2) + (y-y2)*(y-y2));
+      double r1 = Math.pow(R1,-1.5);
+      double r2 = Math.pow(R2,-1.5);
+      out[offset] = factor1*(x-x1)*r1 + factor2*(x-x2)*r2;
+      out[offset+1] = factor1*(y-y1)*r1 + factor2*(y-y2)*r2;
+    }
   }
   
   static class Field1 extends Vec2Field {
@@ -120,6 +132,12 @@ public class ColorCoding {
 	      f.y = BCT*(p.x-width/2.)+ACT;
 	      return f;
 	    }
+
+	    public void get(double x, double y, double[] out, int offset)
+	    {
+	      out[offset] = 0;
+	      out[offset+1] = BCT*(x-width/2.)+ACT;
+	    }
 	  }
   
   public static void main(String[] args)
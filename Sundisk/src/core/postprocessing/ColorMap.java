@@ -0,0 +1,132 @@
+package core.postprocessing;
+
+import core.image.ColorFunction;
+import core.image.RGBImage;
+import core.math.Vec2;
+import core.math.Vec3;
+
+/** The coloring of the Colorizer by field magnitude, tabulated.
+*
+* The color of a pixel depends on the magnitude m of the field there and on
+* the LIC intensity z. Below the break point s, the color has the target
+* hue and saturation and the value V*(m/s)^fallOff, and is scaled by z.
+* Above it, the saturation falls off as S*sqrt(s/m), and the color is
+* scaled by z brightened towards white, by 1-sqrt(s/m), or with "brighten"
+* false by (1-(s/m)^(1/4))^2, up to 1.
+*
+* The colors depend on m alone, so they are converted to RGB once, for
+* BINS+1 steps of m/s in [0, 1] below the break point and of sqrt(s/m) in
+* [0, 1] above it. A pixel then costs a few square roots and a table lookup
+* instead of the powers and the HSV conversion. Its color is that of the
+* nearest step, scaled and brightened exactly, which puts its components
+* within 1 of those of the Colorizer for intensities up to 1.
+*
+* With fallOff below 1 the value rises too steeply near m = 0, and with
+* fallOff above 16 near m = s, for the nearest step of m/s to stay within
+* 1, so the steps below the break point are then taken of (m/s)^fallOff
+* instead, at the cost of one power per pixel there.
+*
+* The tables do not change once they are built, so any number of threads
+* may color pixels at once, and nothing is allocated per pixel.
+* @version 1.0
+*/
+
+public class ColorMap implements ColorFunction {
+  /** The number of steps each table is divided into */
+  public static final int BINS = 4096;
+
+  private final double hue, saturation, value, saturationPoint, fallOff;
+  private final boolean brighten;
+  /** true if the steps below the break point are of (m/s)^fallOff rather
+   *   than of m/s */
+  private final boolean powered;
+  /** The RGB colors as fractions of 255, three components per step, first
+   *   the BINS+1 steps below the break point, then those above it */
+  private final double[] colors;
+
+  /** Constructs the table for the Colorizer with target hue, saturation and
+   * value (hue, saturation, value), break point "saturationPoint", fall off
+   * "fallOff" and brightening "brighten", not coloring flat. */
+  public ColorMap(double hue, double saturation, double value, double saturationPoint, double fallOff, boolean brighten){
+    this.hue = hue;
+    this.saturation = saturation;
+    this.value = value;
+    this.saturationPoint = saturationPoint;
+    this.fallOff = fallOff;
+    this.brighten = brighten;
+    /* A step of m/s moves the value by at most value*fallOff/BINS otherwise */
+    powered = (fallOff<1.0) || (fallOff>16.0);
+    colors = new double[6*(BINS+1)];
+    for (int i = 0; i<=BINS; ++i) {
+      double t = (double)i/BINS;
+      double v = powered ? t : Math.pow(t, fallOff);
+      Put(3*i, Colorizer.HSBtoRGB((float)hue, (float)saturation, (float)(value*v)));
+      Put(3*(BINS+1+i), Colorizer.HSBtoRGB((float)hue, (float)(saturation*t), (float)value));
+    }
+  }
+
+  /** Returns: true if this is the table for these settings */
+  public boolean Matches(double hue, double saturation, double value, double saturationPoint, double fallOff, boolean brighten){
+    return (this.hue==hue) && (this.saturation==saturation) && (this.value==value) &&
+      (this.saturationPoint==saturationPoint) && (this.fallOff==fallOff) && (this.brighten==brighten);
+  }
+
+  /** Sets pixel k of "image" to the color of intensity "intensity" where
+   * the field is (fx, fy). */
+  public void Color(RGBImage image, int k, double fx, double fy, double intensity, Vec2 xpos){
+    double m = Math.sqrt(fx*fx + fy*fy);
+    int e = Entry(m);
+    double z = Scale(m, intensity);
+    image.r[k] = Byte(z*colors[e]*255);
+    image.g[k] = Byte(z*colors[e+1]*255);
+    image.b[k] = Byte(z*colors[e+2]*255);
+  }
+  /** Sets "f" to the color of intensity "intensity" where the field is
+   * (fx, fy), with components from 0 to 1, as Colorizer.get() does.
+   * Returns: "f" */
+  public Vec3 get(double fx, double fy, double intensity, Vec3 f){
+    double m = Math.sqrt(fx*fx + fy*fy);
+    int e = Entry(m);
+    double z = Scale(m, intensity);
+    f.x = z*colors[e];
+    f.y = z*colors[e+1];
+    f.z = z*colors[e+2];
+    return f;
+  }
+
+  /** Returns: the index in "colors" of the step for field magnitude "m" */
+  private int Entry(double m){
+    if (m>saturationPoint)
+      return 3*(BINS+1 + (int)(Math.sqrt(saturationPoint/m)*BINS + 0.5));
+    /* m/saturationPoint is NaN only for a zero field and break point, which is black either way */
+    double t = m/saturationPoint;
+    if (powered)
+      t = Math.pow(t, fallOff);
+    return 3*(int)(t*BINS + 0.5);
+  }
+  /** Returns: what the color is scaled by for field magnitude "m" and
+   *   intensity "intensity" */
+  private double Scale(double m, double intensity){
+    if (m<=saturationPoint)
+      return intensity;
+    double w = Math.sqrt(saturationPoint/m);
+    double add = 1.0 - (brighten ? w : Math.sqrt(w));
+    double z = intensity + (brighten ? add : add*add);
+    return (z>1.0) ? 1.0 : z;
+  }
+  /** Stores the packed color "rgb" at index "e" of "colors" */
+  private void Put(int e, int rgb){
+    colors[e] = (double)((rgb>>16) & 0xFF)/255;
+    colors[e+1] = (double)((rgb>>8) & 0xFF)/255;
+    colors[e+2] = (double)(rgb & 0xFF)/255;
+  }
+  /** Returns: "x" clamped to [0, 255], as RGBImage does */
+  private static byte Byte(double x){
+    if (x<0)
+      return 0;
+    if (x>255)
+      return (byte)255;
+    return (byte)x;
+  }
+
+}
@@ -1,6 +1,6 @@
 package core.postprocessing;
 
-import java.awt.Color;
+import core.field.RegionMap;
 import core.field.Vec3Field;
 import core.math.Vec;
 import core.math.Vec3;
@@ -13,8 +13,11 @@ import simulations.objects.BaseObject;
  * It can simply add a color, or add a color and color code according to the magnitude of the field
  * which is used to generate the LIC, in a variety of ways, or add a color which is determined by the
  * region of the image.  Colorizer does the colorization in
- * HSV color space and then converts to RGB color space.  
- * Uses JAVA's Color class for the HSV -> RGB conversion method.
+ * HSV color space and then converts to RGB color space, with the same conversion as JAVA's
+ * Color.HSBtoRGB(), done here so that coloring does not load AWT on machines without a display.
+ * Coloring by field magnitude is tabulated in a ColorMap, see getColorMap().
+ * get() allocates nothing of its own, and may be called from several threads at once if the
+ * experiment allows getRegionHSVW() to be.
  * 
  * @author Andreas Sundquist
  * @version 1.0
@@ -59,6 +62,13 @@ public class Colorizer extends Vec3Field {
     public Vec3 Ydir;
     /** This is the scale factor.  */
     public double scale;
+    /** The steps in space between neighbouring pixels, if we color by region, see getFrame() */
+    private volatile Frame frame;
+    /** The region colors of the experiment tabulated over the image, if they are, see SetRegionMap() */
+    private RegionMap regions;
+    /** The tabulated colors if we color by field magnitude, built the first time they are needed,
+     * and again if the settings change. */
+    private ColorMap map;
     /** This constructor is used when we are not coloring by region.  
      * @param MyTargetHue Color hue of field.
      * @param MyTargetSaturation Color saturation of field, only used it flatcolor = true.
@@ -136,6 +146,25 @@ public class Colorizer extends Vec3Field {
         this.Ydir = Ydir;
         this.scale = scale;
     }
+    /** Makes the colorizer take the region colors and the field from "snapshot", an experiment 
+     * returned by BaseExperiment.Snapshot(), rather than from the live experiment and source, so 
+     * that a frame can be colored while the experiment evolves to the next one.
+     * @param snapshot The frozen view of the experiment.
+     */
+    public void Bind(BaseExperiment snapshot)
+    {
+        this.experiment = snapshot;
+        this.emsource = snapshot.getEMSource();
+    }
+    /** Makes the coloring by region take the hue, saturation, value and white of each pixel from "regions",
+     * the values of experiment.getRegionHSVW() tabulated over the image for the current target and region
+     * colors, wherever it covers the image.  Elsewhere, or if "regions" is null, the experiment is called.
+     * @param regions The region colors, four values per region.
+     */
+    public void SetRegionMap(RegionMap regions)
+    {
+        this.regions = regions;
+    }
     /**
     * Takes the input p which codes the x and y field components at this point in the array 
     * and the image value, and returns an RGB color f for the pixel at this point in the array.  
@@ -143,158 +172,133 @@ public class Colorizer extends Vec3Field {
     * this point in the array, and p.z is the image value of the LIC image at this point in the array (0-255).
     * @param f   The RGB values of the color that we are returning for this image value at this point in the
     * array, based on the field magnitude given by the sqrt of the sum of the squares of p.x and p.y (for flatColor
-    * not equal to true).  This method is called from RGBImage.fromScalarImageMagnitude
+    * not equal to true).  This method is called from RGBImage.fromScalarImageMagnitude,
+    * or from RGBImage.fromScalarImageFlat for flatColor equal to true
     * @return The RGB color stored as a Vec3.  */   
     public Vec3 get(Vec3 p, Vec2 xpos, Vec3 f)
     {
-      double AbsR = Math.sqrt(p.x*p.x + p.y*p.y);
-      double MySaturation = 1.0;
-      double MyValue = 1.0;
-      double MyHue = 1.;
+      /* Coloring by field magnitude depends only on the magnitude and the image value, and is tabulated */
+      if (flatColor == false)
+        return getColorMap().get(p.x, p.y, p.z, f);
+
+      double z = p.z;
+      double MySaturation = TargetSaturation;
+      double MyValue = TargetValue;
+      double MyHue = TargetHue;
       double MyWhite = 0.;
       /* we reconstruct below the original vector position r in space for this location in the image map, 
        * so that when we want to color according to region in the map we can provide the orginal vector position
-       * to determine color to the method experiment.getHue 
+       * to determine color to the method experiment.getHue.  f holds r until it is set to the color, so that
+       * nothing is allocated for every pixel. 
       */
-      Vec3 r = new Vec3(0.,0.,0);
-      Vec3 xgrid, ygrid, xunit,yunit, origin;
-  	  xunit = Xdir.unit();
-	  yunit = Ydir.unit();
-	  xgrid = xunit.scale(scale);
-	  ygrid = yunit.scale(scale);
-	  origin = symVec3; 
-	  r.Set(origin).AddScaled(xgrid, xpos.x).AddScaled(ygrid, xpos.y);
- 
-      if ( AbsR > saturationPoint ) {
-          MySaturation = TargetSaturation*IncreaseSat(AbsR);
-          MyValue = TargetValue;
-      }
-      else {
-          MyValue = TargetValue*DecreaseVal(AbsR);
-          MySaturation = TargetSaturation;
-      }
-      
-      if ( flatColor ) {
-          MySaturation = TargetSaturation;
-          MyValue = TargetValue;
-      }     
+      Frame frame = getFrame();
+      Vec3 r = f;
+      r.x = symVec3.x + frame.xgrid.x*xpos.x + frame.ygrid.x*xpos.y;
+      r.y = symVec3.y + frame.xgrid.y*xpos.x + frame.ygrid.y*xpos.y;
+      r.z = symVec3.z + frame.xgrid.z*xpos.x + frame.ygrid.z*xpos.y;
 
-      Vec3 RGBVec;
-      
-      if (flatColor == false) 
-      {
-    	  RGBVec = ConvertToRGB( (float)TargetHue, (float)MySaturation, (float)MyValue);
-          /* if we are above the saturationPoint and not in color mode 1 (flatColor=true), we apply the Brighten function,  
-           * which flushes out the DLIC grain at high field magnitudes (ie, within AbsR)*/
-    	  if ( AbsR > saturationPoint )
-    	  {
-    		  f.x = Brighten(AbsR, p)*(RGBVec.x/255);
-    		  f.y = Brighten(AbsR, p)*(RGBVec.y/255);
-    		  f.z = Brighten(AbsR, p)*(RGBVec.z/255);
-    	  }
-    	  else
-    	  {
-    		  f.x = (p.z)*(RGBVec.x/255);
-    		  f.y = (p.z)*(RGBVec.y/255);
-    		  f.z = (p.z)*(RGBVec.z/255);
-    	  }
+	  // Color Mode 1 if no experiment is specified
+	  // Color Mode 4 if we have an experiment with a method that gives us the hue for various regions of the image
+      int region = ((experiment != null) && (regions != null)) ? regions.getRegion(xpos.x, xpos.y) : -1;
+      if (region >= 0) {
+	      MyHue = regions.getValue(region, 0);
+	      MySaturation = regions.getValue(region, 1);
+	      MyValue = regions.getValue(region, 2);
+	      MyWhite = regions.getValue(region, 3);
       }
-	  else
-	  {
-		  // Color Mode 1 if no experiment is specified
-		  // Color Mode 4 if we have an experiment with a method that gives us the hue for various regions of the image
-	      MySaturation = TargetSaturation;
-	      MyValue = TargetValue;
-	      MyHue = TargetHue;
-	      Vec MyRegionHSVW = null;
-	      if (experiment != null) MyRegionHSVW = experiment.getRegionHSVW(TargetHue, TargetSaturation, TargetValue, r, RegionHue, RegionSaturation, RegionValue, RegionWhite);
+      else if (experiment != null) {
+	      Vec MyRegionHSVW = experiment.getRegionHSVW(TargetHue, TargetSaturation, TargetValue, r, RegionHue, RegionSaturation, RegionValue, RegionWhite);
 	      MyHue= MyRegionHSVW.x[0];
 	      MySaturation= MyRegionHSVW.x[1];
 	      MyValue= MyRegionHSVW.x[2];
 	      MyWhite = MyRegionHSVW.x[3];
-	      if (MyWhite < 0.5) {
-	      RGBVec = ConvertToRGB( (float)MyHue, (float)MySaturation, (float)MyValue);
-		  	f.x = (p.z)*(RGBVec.x/255);
-		  	f.y = (p.z)*(RGBVec.y/255);
-		  	f.z = (p.z)*(RGBVec.z/255);}
-	      else {
-	       //  we force the region to be white if MyWhite > .5
-			  f.x = 1.;
-			  f.y = 1.;
-			  f.z = 1.;}
-	  }
+      }
+      if (MyWhite < 0.5) {
+    	  int RGBInt = HSBtoRGB( (float)MyHue, (float)MySaturation, (float)MyValue);
+    	  f.x = z*((double)((RGBInt >> 16) & 0xFF)/255);
+    	  f.y = z*((double)((RGBInt >> 8) & 0xFF)/255);
+    	  f.z = z*((double)(RGBInt & 0xFF)/255);}
+      else {
+       //  we force the region to be white if MyWhite > .5
+		  f.x = 1.;
+		  f.y = 1.;
+		  f.z = 1.;}
         
       return f;
     }
   
     /**
-     * Defines the value of S in HSV if we are above the break point in field strength.
-     * @param fieldMag The value of magnitude of the field used to generate the LIC at this point.
-     * @return S
+     * Converts HSB to packed RGB exactly as java.awt.Color.HSBtoRGB() does, rounding each component
+     * and letting out of range values spill into the neighbouring bits in the same way.
+     * @return The color as 0xFFRRGGBB.
     */
-    private double IncreaseSat(double fieldMag)
+    static int HSBtoRGB(float Hue, float Saturation, float Brightness)
     {
-      double S = Math.abs(Math.pow((saturationPoint/fieldMag), 0.5));
-      return S;
+      int r = 0, g = 0, b = 0;
+      if (Saturation == 0) {
+        r = g = b = (int) (Brightness * 255.0f + 0.5f);
+      } else {
+        float h = (Hue - (float)Math.floor(Hue)) * 6.0f;
+        float f = h - (float)Math.floor(h);
+        float p = Brightness * (1.0f - Saturation);
+        float q = Brightness * (1.0f - Saturation * f);
+        float t = Brightness * (1.0f - (Saturation * (1.0f - f)));
+        switch ((int) h) {
+          case 0: r = (int) (Brightness * 255.0f + 0.5f); g = (int) (t * 255.0f + 0.5f); b = (int) (p * 255.0f + 0.5f); break;
+          case 1: r = (int) (q * 255.0f + 0.5f); g = (int) (Brightness * 255.0f + 0.5f); b = (int) (p * 255.0f + 0.5f); break;
+          case 2: r = (int) (p * 255.0f + 0.5f); g = (int) (Brightness * 255.0f + 0.5f); b = (int) (t * 255.0f + 0.5f); break;
+          case 3: r = (int) (p * 255.0f + 0.5f); g = (int) (q * 255.0f + 0.5f); b = (int) (Brightness * 255.0f + 0.5f); break;
+          case 4: r = (int) (t * 255.0f + 0.5f); g = (int) (p * 255.0f + 0.5f); b = (int) (Brightness * 255.0f + 0.5f); break;
+          case 5: r = (int) (Brightness * 255.0f + 0.5f); g = (int) (p * 255.0f + 0.5f); b = (int) (q * 255.0f + 0.5f); break;
+        }
+      }
+      return 0xff000000 | (r << 16) | (g << 8) | b;
     }
     /**
-     * Defines the value of V in HSV if we are below the break point in field strength.
-     * @param fieldMag The value of magnitude of the field used to generate the LIC at this point.
-     * @return V
+     * Returns: the steps in space between neighbouring pixels of the image, worked out from Xdir, Ydir and scale
+     * once, and again if any of them is replaced.
     */
-    private double DecreaseVal(double fieldMag)
+    private Frame getFrame()
     {
-      double V = Math.pow((fieldMag/saturationPoint),fallOff);
-      return V;
+      Frame f = frame;
+      if ((f == null) || (f.Xdir != Xdir) || (f.Ydir != Ydir) || (f.scale != scale)) {
+        f = new Frame(Xdir, Ydir, scale);
+        frame = f;
+      }
+      return f;
     }
     /**
-     * Converts our HSV values to RGB values.  
-     * @param Hue H of HSV, as specified.
-     * @param Saturation S of HSV, computed based on the break point and fieldMag if flatColor == false.
-     * @param Value V of HSV, computed based on the break point and fieldMag if flatColor == false.
-     * @return The RGB colors stored in a Vec3.  
+     * Returns: the tabulated colors for coloring by field magnitude with the current settings.
+     * Changing the settings makes the next call build them again.
     */
-    private Vec3 ConvertToRGB( float Hue, float Saturation, float Value)
+    public ColorMap getColorMap()
     {
-      int RGBInt = Color.HSBtoRGB( Hue, Saturation, Value);
-      Color MyColor = new Color(RGBInt);
-      int MyRed = MyColor.getRed();
-      int MyGreen = MyColor.getGreen();
-      int MyBlue = MyColor.getBlue();
-      Vec3 MyVec = new Vec3((double)MyRed, (double)MyGreen, (double)MyBlue);
-      return MyVec;
-    }
-    /**
-     * Brightens the image if we are well above the break point.  This flushes out the grain in the LIC.  
-     * @param fieldMag The magnitude of the field at this point in the array.
-     * @param p The quantity p.z is the only component of p used here, and it is the image value of the LIC image 
-     * at this point in the array (0-255).
-     * @return The brightened value of the image pixel.  
-    */   
-    private double Brighten(double fieldMag, Vec3 p){
-    	double totalBright;
-    	/* if we are in color mode 2 (bBrigthen = true), we really flush out 
-    	 * the DLIC grain at high field values, otherwise not so much (for 
-    	 * color mode 1 (bBrigthen = false)).  Note we always flush it out to some extent. */
-    	if (bBrighten == true) 
-    	{
-    		double brightAdd = ( 1.0 - IncreaseSat(fieldMag));
-    		totalBright = (p.z) + brightAdd;
-    	}
-    	else
-    	{
-    		double brightAdd = ( 1.0 - Math.pow(IncreaseSat(fieldMag),0.5));
-    		totalBright = (p.z) + Math.pow(brightAdd,2);
-    	}
-        
-        if (totalBright > 1.0)
-            totalBright = 1.0;
-            
-        return totalBright;
+      ColorMap m = map;
+      if ((m == null) || !m.Matches(TargetHue, TargetSaturation, TargetValue, saturationPoint, fallOff, bBrighten)) {
+        m = new ColorMap(TargetHue, TargetSaturation, TargetValue, saturationPoint, fallOff, bBrighten);
+        map = m;
+      }
+      return m;
     }
     /** A local way to print a string */ 
   	private static void println(String s){
     	System.out.println(s);
   	}
+  	
+    /** The steps in space between neighbouring pixels along x and y of the image, for Xdir, Ydir and scale */
+    private static class Frame
+    {
+      final Vec3 Xdir, Ydir;
+      final double scale;
+      final Vec3 xgrid, ygrid;
+      Frame(Vec3 Xdir, Vec3 Ydir, double scale)
+      {
+        this.Xdir = Xdir;
+        this.Ydir = Ydir;
+        this.scale = scale;
+        xgrid = Xdir.unit().scale(scale);
+        ygrid = Ydir.unit().scale(scale);
+      }
+    }
   }
 
@@ -2,6 +2,7 @@ package core.postprocessing;
 
 import java.io.*;
 import core.image.RGBImage;
+import core.io.FrameStack;
 import core.io.ImageIO;
 
 /** Blends together frames of an animation to produce a continuous loop.
@@ -32,6 +33,10 @@ public class Periodify {
    * trying to read a non-existent image file.  For example, if frames = 100 and overlap = 30,
    * then the input image files must be numbered from 0 to 129, that is, there are 130 of them. */
   static int overlap = 5;
+  /** If this is true, the input sequence is read from the frame stack "infname" followed by ".frames",
+   * as written by the Renderer, and the output sequence is written into the frame stack "outfname"
+   * followed by ".frames", rather than one TIFF file per frame. */
+  static boolean stack = false;
   
   /** Returns one of the input images to blend for output frame "frame". 
    * @param frame The number of the output frame to be blended.
@@ -62,6 +67,18 @@ public class Periodify {
   }
  /** Creates and writes the blended image files. */ 
   public static void main(String[] args){
+      if (stack) {
+        try {
+          in = FrameStack.Open(infname+".frames", false);
+          out = FrameStack.Create(outfname+".frames", in.getWidth(), in.getHeight(), frames, 0);
+        } catch (IOException e) {
+          println("Error opening frame stack: "+e);
+          System.exit(1);
+        }
+        width = in.getWidth();
+        height = in.getHeight();
+      }
+
       byte[] buf0R = new byte[width*height];
       byte[] buf0G = new byte[width*height];
       byte[] buf0B = new byte[width*height];
@@ -83,11 +100,11 @@ public class Periodify {
          {
             print("Frame "+frame+": ");
             print("Loading "+frame0(frame)+" & "+frame1(frame)+"... ");
-            buf0Image = ImageIO.ReadTIFF(infname+PadZeros(frame0(frame), 4)+".tif");
+            buf0Image = Load(frame0(frame), buf0Image);
             buf0R = buf0Image.r; 
             buf0G = buf0Image.g;
             buf0B = buf0Image.b;
-            buf1Image = ImageIO.ReadTIFF(infname+PadZeros(frame1(frame), 4)+".tif");
+            buf1Image = Load(frame1(frame), buf1Image);
             buf1R = buf1Image.r;
             buf1G = buf1Image.g;
             buf1B = buf1Image.b;
@@ -101,20 +118,59 @@ public class Periodify {
             bufImage.b = bufB;
                   
              print("Saving "+frame+"... ");
-             ImageIO.WriteTIFF(bufImage, outfname+PadZeros(frame, 4)+".tif");
+             Save(frame, bufImage);
          }
          else
          {
-             buf0Image = ImageIO.ReadTIFF(infname+PadZeros(frame0(frame), 4)+".tif");
-             ImageIO.WriteTIFF( buf0Image, outfname+PadZeros(frame, 4)+".tif");
+             buf0Image = Load(frame0(frame), buf0Image);
+             Save(frame, buf0Image);
          }
          
          println("");
       }
+      if (stack) {
+        try {
+          in.Close();
+          out.Close();
+        } catch (IOException e) {
+          println("Error closing frame stack: "+e);
+        }
+      }
       println("Execution finished normally, all image files requested have been combined and a periodic sequence produced.");
     System.exit(0);
   }
       
+  /** Loads input frame "frame", from the input frame stack into "image" if
+   *   "stack" is true, or else from its TIFF file.
+   *   @param frame The number of the input frame.
+   *   @param image The image the frame may be loaded into.
+   *   @return The loaded image, or null if it could not be loaded.  */
+  static RGBImage Load(int frame, RGBImage image){
+    if (!stack)
+      return ImageIO.ReadTIFF(infname+PadZeros(frame, 4)+".tif");
+    try {
+      return in.Read(frame, image);
+    } catch (IOException e) {
+      println("Error reading frame "+frame+": "+e);
+      return null;
+    }
+  }
+  /** Saves "image" as output frame "frame", into the output frame stack if
+   *   "stack" is true, or else to its TIFF file.
+   *   @param frame The number of the output frame.
+   *   @param image The image to be saved.  */
+  static void Save(int frame, RGBImage image){
+    if (!stack) {
+      ImageIO.WriteTIFF(image, outfname+PadZeros(frame, 4)+".tif");
+      return;
+    }
+    try {
+      out.Write(frame, image, in.getTime(frame0(frame)), in.getSeed(frame0(frame)), null);
+    } catch (IOException e) {
+      println("Error writing frame "+frame+": "+e);
+    }
+  }
+
   /** Loads a monochrome TGA image specified by "fname" into the byte buffer
    *   "buf". The buffer "buf" needs to be at least of size width*height. 
    *   @param fname The name of the input TGA image.
@@ -166,7 +222,7 @@ public class Periodify {
    *   @param buf The blended image.  */  
   static void Blend(byte[] buf0, byte[] buf1, double blend, byte[] buf) {
     double s = 1.0/Math.sqrt(blend*blend + (1-blend)*(1-blend));
-    for (int k = width*height-1; k>=0; --k) {
+    for (int k = buf.length-1; k>=0; --k) {
       int i0 = i(buf0[k]);
       int i1 = i(buf1[k]);
       double o = i0 + blend*(i1-i0);
@@ -179,6 +235,18 @@ public class Periodify {
     }
   }
  
+  /** Blends together the color images "image0" and "image1" to produce "image", 
+   *   channel by channel, in the same way as Blend() does for a single buffer.
+   *   @param image0 The first image to be blended.
+   *   @param image1 The second image to be blended.
+   *   @param blend The blending coefficient (blend = 0 gives all "image0"). 
+   *   @param image The blended image, of the same size as the other two.  */
+  public static void Blend(RGBImage image0, RGBImage image1, double blend, RGBImage image) {
+    Blend(image0.r, image1.r, blend, image.r);
+    Blend(image0.g, image1.g, blend, image.g);
+    Blend(image0.b, image1.b, blend, image.b);
+  }
+ 
   /** For byte b >= 0 return int b, otherwise return 256 + int b.
    * @param b The byte.   
    * @return The integer defined above.  */
@@ -196,6 +264,8 @@ public class Periodify {
     return (int)Math.floor(x + 0.5);
   }
   
+  /** The input and output frame stacks, when "stack" is true */
+  static FrameStack in = null, out = null;
   static FileOutputStream file = null;
   static byte[] bytes = new byte[8];
  
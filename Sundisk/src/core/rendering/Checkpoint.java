@@ -0,0 +1,80 @@
+package core.rendering;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import core.dflic.DFLIC;
+import simulations.experiments.BaseExperiment;
+
+/**
+ *  Writes and reads the checkpoints of a rendering, from which the Renderer can resume an interrupted run.
+ *
+ *  A checkpoint holds everything that carries over from one frame to the next: the elements and the
+ *  random number generator of the DFLIC, and the state of the experiment and its source.  It is a
+ *  binary file made of a header, the number of the frame to be rendered next, the state written by
+ *  DFLIC.WriteState() and the state written by BaseExperiment.WriteState(), in that order.
+ *
+ *  The checkpoint is written to a temporary file first, which is forced to disk and then moved over the
+ *  previous checkpoint in one atomic rename, so that a run that dies while a checkpoint is written still
+ *  leaves either the previous checkpoint or the new one intact.
+ *
+ * @version 1.0
+ */
+class Checkpoint {
+	/** The first four bytes of every checkpoint, "SDCK" */
+	private static final int MAGIC = 0x5344434B;
+	/** The version of the format */
+	private static final int VERSION = 1;
+
+	/** Writes a checkpoint of "dflic" and "experiment" to "filename", from which the rendering resumes at
+	 * frame "frame". */
+	static void Write(String filename, int frame, DFLIC dflic, BaseExperiment experiment) throws IOException {
+		File file = new File(filename);
+		File temp = new File(filename + ".tmp");
+		FileOutputStream stream = new FileOutputStream(temp);
+		try {
+			FileChannel channel = stream.getChannel();
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1<<16));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(frame);
+			dflic.WriteState(out);
+			experiment.WriteState(out);
+			out.flush();
+			channel.force(true);
+		} finally {
+			stream.close();
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/** Restores "dflic" and "experiment" from the checkpoint in "filename".
+	 * Returns: the frame at which the rendering resumes */
+	static int Read(String filename, DFLIC dflic, BaseExperiment experiment) throws IOException {
+		FileInputStream stream = new FileInputStream(filename);
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(stream.getChannel()), 1<<16));
+			if (in.readInt() != MAGIC)
+				throw new IOException("Checkpoint.Read: " + filename + " is not a checkpoint");
+			int version = in.readInt();
+			if (version != VERSION)
+				throw new IOException("Checkpoint.Read: " + filename + " has version " + version + ", not " + VERSION);
+			int frame = in.readInt();
+			dflic.ReadState(in);
+			experiment.ReadState(in);
+			return frame;
+		} finally {
+			stream.close();
+		}
+	}
+}
@@ -0,0 +1,300 @@
+package core.rendering;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import core.dflic.DFLIC;
+import core.field.EMVec2Field;
+import core.field.Vec2Field;
+import core.field.Vec2FieldAdaptiveCache;
+import core.field.Vec2FieldCache;
+import core.image.AccumImage;
+import core.image.FieldImage;
+import core.image.RGBImage;
+import core.io.FrameStack;
+import core.io.ImageWriter;
+import core.math.Vec2;
+import core.math.Vec2Transform;
+import core.math.Vec3;
+import core.postprocessing.Periodify;
+import simulations.experiments.BaseExperiment;
+
+/**
+ *  The ChunkRenderer renders the frames of a Renderer in several chunks at once, each on its own thread.
+ *
+ *  Every frame of the DFLIC is computed from the texture of the frame before, so one DFLIC can only
+ *  render a sequence in order.  The ChunkRenderer splits the frames to be rendered into consecutive
+ *  chunks, each with a DFLIC of its own.  The DFLIC of every chunk but the first starts from noise
+ *  "warmup" frames before the chunk does, so that its texture has settled into streaks by the first
+ *  frame that is written.  The warm-up frames are computed but not written.
+ *
+ *  The textures of two chunks differ where they meet, so each chunk goes on for "overlap" frames past
+ *  its end, and these frames are cross-faded into the first frames of the next chunk with the blend
+ *  Periodify uses to join the end of a sequence to its beginning.  Whichever of the two chunks writes
+ *  such a frame second does the blending.
+ *
+ *  The experiment is evolved in order on the calling thread, which takes a snapshot of it for every
+ *  frame before the chunks start (see BaseExperiment.Snapshot()).  The chunks bind their fields to these
+ *  snapshots, and a snapshot is dropped once every chunk that uses it is done with it.
+ *
+ * @version 1.0
+ */
+class ChunkRenderer {
+
+	/** A frame that is written by two chunks, and blended from both */
+	private static class Seam {
+		/** The chunk that goes on past its end into this frame */
+		int chunk;
+		/** The blending coefficient, 1.0 for all of the chunk that goes on past its end */
+		double blend;
+		/** A copy of the image of whichever chunk wrote the frame first, or null */
+		RGBImage first;
+		/** True if "first" is from the chunk that goes on past its end */
+		boolean firstOld;
+	}
+
+	/** The renderer whose settings are used */
+	private Renderer renderer;
+	/** The fields of the live experiment, which are bound to the snapshot of every frame */
+	private EMVec2Field field, dfield;
+	/** The center of the image in the field plane and in space */
+	private Vec2 symVec2;
+	private Vec3 symVec3;
+	/** The number of chunks, and the number of frames around the start of a chunk */
+	private int count, warmup, overlap;
+	/** For every chunk, the first frame computed, the first frame written, and the last frame computed
+	 * and written */
+	private int[] start, begin, stop;
+	/** The snapshot of the experiment at every frame, while a chunk still uses it */
+	private BaseExperiment[] snapshots;
+	/** The number of chunks that still use the snapshot of every frame */
+	private int[] uses;
+	/** The frames written by two chunks, by filename */
+	private Map<String, Seam> seams;
+	/** The seed of the random number generator of every chunk */
+	private long[] seeds;
+	/** The stack the frames are written into, or null to write them to files */
+	private FrameStack stack;
+	/** The first exception thrown by any of the chunks */
+	private Throwable error;
+
+	/** Constructs a ChunkRenderer for the settings of "renderer", which renders the frames from the fields
+	 * "field" and "dfield" of its experiment.  The seeds of the chunks are drawn from "random".  The frames
+	 * are written into "stack", unless it is null. */
+	ChunkRenderer(Renderer renderer, EMVec2Field field, EMVec2Field dfield, Vec2 symVec2, Vec3 symVec3,
+			Random random, FrameStack stack) {
+		this.renderer = renderer;
+		this.stack = stack;
+		this.field = field;
+		this.dfield = dfield;
+		this.symVec2 = symVec2;
+		this.symVec3 = symVec3;
+
+		int first = Math.max(renderer.startFrame, 0);
+		int last = Math.min(renderer.endFrame, renderer.frames - 1);
+		int n = last - first + 1;
+		count = Math.max(1, Math.min(renderer.chunks, n));
+		warmup = Math.max(renderer.chunkwarmup, 0);
+		/* The overlap is kept below the length of the shortest chunk, so that no frame is shared by
+		 * more than two chunks */
+		overlap = Math.max(Math.min(renderer.chunkoverlap, n/count - 1), 0);
+
+		start = new int[count];
+		begin = new int[count];
+		stop = new int[count];
+		seeds = new long[count];
+		for (int k = 0; k<count; ++k) {
+			begin[k] = first + (int)(((long)n*k)/count);
+			int end = first + (int)(((long)n*(k+1))/count);
+			start[k] = (k==0) ? begin[k] : Math.max(begin[k] - warmup, 0);
+			stop[k] = (k==count-1) ? last : Math.min(end - 1 + overlap, last);
+			seeds[k] = random.nextLong();
+		}
+
+		seams = new HashMap<String, Seam>();
+		for (int k = 1; k<count; ++k)
+			for (int frame = begin[k]; frame<=stop[k-1]; ++frame) {
+				Seam seam = new Seam();
+				seam.chunk = k-1;
+				seam.blend = (overlap - (frame - begin[k]))/(1.*overlap);
+				seams.put(Filename(frame), seam);
+			}
+
+		snapshots = new BaseExperiment[last+1];
+		uses = new int[last+1];
+		for (int k = 0; k<count; ++k)
+			for (int frame = start[k]; frame<=stop[k]; ++frame)
+				++uses[frame];
+	}
+
+	/** Evolves the experiment through the frames to be rendered, taking the snapshots, and then renders
+	 * the chunks and waits until all of them are written. */
+	void Render() {
+		BaseExperiment experiment = renderer.experiment;
+		for (int frame = 0; frame<snapshots.length; ++frame) {
+			if (uses[frame]>0) snapshots[frame] = experiment.Snapshot();
+			experiment.Evolve(renderer.dt);
+		}
+
+		Thread[] threads = new Thread[count];
+		for (int k = 0; k<count; ++k) {
+			println("Chunk " + k + " renders frames " + start[k] + " to " + stop[k] + ", writing from frame " + begin[k]);
+			final int chunk = k;
+			threads[k] = new Thread("ChunkRenderer-" + k) {
+				public void run() {
+					try {
+						RenderChunk(chunk);
+					} catch (Throwable e) {
+						Fail(e);
+					}
+				}
+			};
+			threads[k].start();
+		}
+		for (int k = 0; k<count; ++k) {
+			try {
+				threads[k].join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("ChunkRenderer.Render: " + e, e);
+			}
+		}
+		synchronized (this) {
+			if (error instanceof RuntimeException) throw (RuntimeException)error;
+			if (error instanceof Error) throw (Error)error;
+			if (error != null) throw new RuntimeException("ChunkRenderer: " + error, error);
+		}
+	}
+
+	/** Renders the frames of chunk "chunk", on the thread of the chunk. */
+	private void RenderChunk(final int chunk) {
+		final AccumImage output = new AccumImage(renderer.output.width, renderer.output.height);
+		BaseExperiment snapshot = Snapshot(start[chunk]);
+		EMVec2Field cfield = field.Bind(snapshot);
+		EMVec2Field cdfield = (dfield != null) ? dfield.Bind(snapshot) : null;
+
+		/* Cache the fields in the same way as the Renderer does, over the image padded by streamlen */
+		int threads = Math.max(1, renderer.threads/count);
+		Vec2Field ffield = renderer.CacheField(cfield, symVec2, threads, false);
+		Vec2Field fdfield = (cdfield != null) ? renderer.CacheField(cdfield, symVec2, threads, false) : null;
+
+		DFLIC dflic = new DFLIC(ffield, fdfield, output, new Vec2Transform(symVec2, 1));
+		dflic.SetRandom(new Random(seeds[chunk]));
+		dflic.SetStreamLen(renderer.streamlen);
+		dflic.SetInputFilterKernel(renderer.ikernel);
+		dflic.SetInputFilterRepeat(renderer.filterRepeat);
+		dflic.SetThreads(Math.max(1, renderer.threads/count));
+
+		/* Only the first chunk shows its frames, since the chunks finish their frames out of order */
+		FramePipeline pipeline = new FramePipeline((chunk==0) ? renderer.window : null, renderer.symmetry,
+				renderer.width, renderer.height, output.width, output.height, renderer.pipelinedepth, renderer.imageformat, false) {
+			void Write(RGBImage image, String filename, int index, double time) throws InterruptedException {
+				RGBImage joined = Join(chunk, image, filename);
+				if (joined != null) super.Write(joined, filename, index, time);
+			}
+		};
+		pipeline.SetThreads(Math.max(1, renderer.threads/count));
+		if (stack != null) pipeline.SetFrameStack(stack, seeds[chunk]);
+		final FieldImage samples = renderer.ColorsByField() ? new FieldImage(output.width, output.height) : null;
+
+		for (int frame = start[chunk]; frame<=stop[chunk]; ++frame) {
+			/* The previous frame must be colorized before the caches and the output change */
+			pipeline.AwaitColorized();
+			if (renderer.frameprint) println("Chunk " + chunk + ": frame " + frame + ((frame<begin[chunk]) ? " (warm-up)" : ""));
+			if (frame>start[chunk]) {
+				snapshot = Snapshot(frame);
+				cfield = field.Bind(snapshot);
+				cdfield = (dfield != null) ? dfield.Bind(snapshot) : null;
+			}
+			ffield = Update(ffield, cfield);
+			fdfield = Update(fdfield, cdfield);
+			if (ffield == cfield) dflic.SetField(cfield);
+			if (fdfield == cdfield) dflic.SetDField(cdfield);
+
+			dflic.Compute();
+			output.Rescale(1.5, 0.0);
+			output.Rescale(0.5, 0.5);
+			if (frame>=begin[chunk]) {
+				final BaseExperiment csnapshot = snapshot;
+				final Vec2Field colorfield = ffield;
+				pipeline.Colorize(Filename(frame), frame, frame*renderer.dt, new FramePipeline.Colorizing() {
+					public void Run(RGBImage rgbimage) {
+						renderer.SampleField(samples, colorfield, symVec2);
+						renderer.ColorizeFrame(rgbimage, output, samples, symVec2, symVec3, csnapshot);
+					}
+				});
+			}
+			dflic.Evolve(renderer.dt, renderer.dt);
+			Release(frame);
+		}
+		pipeline.Finish();
+	}
+
+	/** Points "cached", if it is a cache, at "field" and recomputes it.
+	 * Returns: "cached" if it is a cache, else "field" */
+	private static Vec2Field Update(Vec2Field cached, Vec2Field field) {
+		if (cached instanceof Vec2FieldCache) {
+			((Vec2FieldCache)cached).SetField(field);
+			((Vec2FieldCache)cached).Compute();
+			return cached;
+		}
+		if (cached instanceof Vec2FieldAdaptiveCache) {
+			((Vec2FieldAdaptiveCache)cached).SetField(field);
+			((Vec2FieldAdaptiveCache)cached).Compute();
+			return cached;
+		}
+		return field;
+	}
+
+	/** Blends the image of a frame of chunk "chunk" with the image of the other chunk, if the frame
+	 * "filename" is shared by two chunks.
+	 * Returns: the image to be written to "filename", or null if the other chunk has not written it yet */
+	private RGBImage Join(int chunk, RGBImage image, String filename) {
+		Seam seam = seams.get(filename);
+		if (seam == null) return image;
+		boolean old = (chunk == seam.chunk);
+		RGBImage first;
+		synchronized (seam) {
+			if (seam.first == null) {
+				seam.first = new RGBImage(image.width, image.height);
+				seam.first.Copy(image);
+				seam.firstOld = old;
+				return null;
+			}
+			first = seam.first;
+			seam.first = null;
+		}
+		/* As in Periodify, a blend of 0.0 gives the new chunk and 1.0 the chunk that goes on past its end */
+		if (old)
+			Periodify.Blend(first, image, seam.blend, first);
+		else
+			Periodify.Blend(image, first, seam.blend, first);
+		return first;
+	}
+
+	/** Returns: the snapshot of the experiment at "frame" */
+	private synchronized BaseExperiment Snapshot(int frame) {
+		return snapshots[frame];
+	}
+
+	/** Counts one chunk less that uses the snapshot at "frame", dropping it once no chunk does. */
+	private synchronized void Release(int frame) {
+		if (--uses[frame] == 0) snapshots[frame] = null;
+	}
+
+	/** Records "e" if it is the first exception thrown by a chunk. */
+	private synchronized void Fail(Throwable e) {
+		if (error == null) error = e;
+	}
+
+	/** Returns: the name of the file of "frame" */
+	private String Filename(int frame) {
+		return renderer.fname + Renderer.PadZeros(frame, 4) + ImageWriter.getExtension(renderer.imageformat);
+	}
+
+	/** A local way to print a string */
+	private static void println(String s) {
+		System.out.println(s);
+	}
+}
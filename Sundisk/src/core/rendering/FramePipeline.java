@@ -0,0 +1,378 @@
+package core.rendering;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import core.image.RGBImage;
+import core.io.FrameStack;
+import core.io.ImageWriter;
+import core.io.FrameSink;
+import core.io.VideoStream;
+
+/**
+ *  The FramePipeline carries the rendered frames of the Renderer through colorizing, reconstruction
+ *  of the full image from its symmetric part, display and writing to disk.
+ *
+ *  Each of these four stages runs on its own thread and hands the frame on to the next stage through
+ *  a bounded queue, so that the Renderer can go on computing the next frame while the earlier ones
+ *  are still being displayed and written.  The images are taken from two pools, one of images the
+ *  size of the computed part and one of full size images, and are given back once the frame has
+ *  gone through the last stage that uses them.  When all the images of a pool are in use, the
+ *  stage that needs one waits, which keeps the pipeline at most "depth" frames ahead.
+ *
+ *  Colorizing reads the scalar image and the fields of the current frame, so the Renderer must
+ *  call AwaitColorized() before it changes them.  The later stages only use their own images.
+ *
+ *  The write stage hands each frame to an ImageWriter, which copies it and writes the file on a
+ *  thread of its own, so a slow disk holds up neither the display nor the Renderer until the
+ *  writer has "depth" files waiting.  Alternatively the frames are copied into the slots of a
+ *  FrameStack, see SetFrameStack(), or streamed as video, see SetVideoStream().
+ *
+ *  If a stage throws an exception, the remaining frames still pass through the pipeline so that
+ *  no stage is left waiting, but nothing more is done with them, and the exception is rethrown
+ *  in the rendering thread by the next call to Colorize(), AwaitColorized() or Finish().
+ *
+ * @version 1.0
+ */
+class FramePipeline {
+
+	/** Fills in the colors of one frame. */
+	interface Colorizing {
+		/** Sets "image", the size of the computed part, to the colored version of the frame. */
+		public void Run(RGBImage image);
+	}
+
+	/** A frame on its way through the pipeline.  A frame with a null filename marks the end. */
+	private static class Frame {
+		String filename;
+		/** The number and the time of the frame */
+		int index;
+		double time;
+		Colorizing colorizing;
+		RGBImage part;
+		RGBImage full;
+	}
+
+	/** The sink the frames are displayed in, or null */
+	private FrameSink sink;
+	/** The symmetry of the image, one of the Renderer.SYM_ constants */
+	private int symmetry;
+	/** The size of the full image */
+	private int width, height;
+	/** If this is true, the stages print what they are doing */
+	private boolean print;
+	/** The images of the size of the computed part, and of the full size, that are not in use */
+	private BlockingQueue<RGBImage> parts, fulls;
+	/** The queues between the stages */
+	private BlockingQueue<Frame> tocolor, tomirror, todisplay, towrite;
+	/** Writes the frames to disk in the background */
+	private ImageWriter writer;
+	/** The stack the frames are written into instead of files, or null, and the seed recorded with them */
+	private FrameStack stack;
+	private long seed;
+	/** The video stream the frames are written to instead of files, or null */
+	private VideoStream video;
+	private Thread[] threads;
+	/** The number of threads the full image is reconstructed on */
+	private int mirrorthreads = 1;
+	/** The number of frames handed to Colorize(), and the number of them that are colorized and written */
+	private int submitted, colorized, written;
+	/** The first exception thrown by any of the stages */
+	private Throwable error;
+
+	/** Constructs a pipeline for images of size (width, height), of which the part (partWidth,
+	 * partHeight) is computed and the rest follows from "symmetry", and starts its threads.  The
+	 * frames are shown in "sink", unless it is null, and written in "format", one of the ImageWriter
+	 * constants.  Each pool holds "depth" images. */
+	FramePipeline(FrameSink sink, int symmetry, int width, int height, int partWidth, int partHeight,
+			int depth, int format, boolean print) {
+		this.sink = sink;
+		this.symmetry = symmetry;
+		this.width = width;
+		this.height = height;
+		this.print = print;
+		if (depth < 1) depth = 1;
+		parts = new ArrayBlockingQueue<RGBImage>(depth);
+		fulls = new ArrayBlockingQueue<RGBImage>(depth);
+		for (int i = 0; i < depth; ++i) {
+			parts.add(new RGBImage(partWidth, partHeight));
+			if (symmetry != Renderer.SYM_NONE) fulls.add(new RGBImage(width, height));
+		}
+		tocolor = new ArrayBlockingQueue<Frame>(depth);
+		tomirror = new ArrayBlockingQueue<Frame>(depth);
+		todisplay = new ArrayBlockingQueue<Frame>(depth);
+		towrite = new ArrayBlockingQueue<Frame>(depth);
+		writer = new ImageWriter(format, 1, depth);
+
+		threads = new Thread[] {
+			new Stage("Colorize", tocolor, tomirror) {
+				void Process(Frame frame) throws InterruptedException {
+					frame.part = parts.take();
+					try {
+						frame.colorizing.Run(frame.part);
+					} catch (Throwable e) {
+						/* Record the failure before AwaitColorized() wakes up */
+						Fail(e);
+					}
+					frame.colorizing = null;
+					Colorized();
+				}
+				void Skip(Frame frame) {
+					if (frame.colorizing != null) Colorized();
+				}
+			},
+			new Stage("Mirror", tomirror, todisplay) {
+				void Process(Frame frame) throws InterruptedException {
+					if (symmetry == Renderer.SYM_NONE) {
+						frame.full = frame.part;
+					} else {
+						if (print) println("Reconstructing the full image using the symmetry properties specified. ");
+						frame.full = fulls.take();
+						Reconstruct(frame.part, frame.full);
+						parts.add(frame.part);
+					}
+					frame.part = null;
+				}
+			},
+			new Stage("Display", todisplay, towrite) {
+				void Process(Frame frame) {
+					/* Show the full RGB image in the sink */
+					if (sink == null) return;
+					sink.Show(frame.full);
+				}
+			},
+			new Stage("Write", towrite, null) {
+				void Process(Frame frame) throws InterruptedException {
+					/* Write the full RGB image to disk */
+					if (print) println("Writing image to file " + frame.filename);
+					Write(frame.full, frame.filename, frame.index, frame.time);
+				}
+			}
+		};
+		for (int i = 0; i < threads.length; ++i) threads[i].start();
+	}
+
+	/** Sets the number of threads the full image of each frame is mirrored from its computed part on, one by
+	 * default.  The rows of the part are divided among them. */
+	void SetThreads(int threads) {
+		mirrorthreads = Math.max(threads, 1);
+	}
+
+	/** Writes the frames into the slots of "stack" from now on, rather than to files, together with their
+	 * time and the random seed "seed". */
+	void SetFrameStack(FrameStack stack, long seed) {
+		this.stack = stack;
+		this.seed = seed;
+	}
+
+	/** Writes the frames to "video" from now on, in the order they are handed to Colorize(), rather than to
+	 * files.  The conversion of each frame runs on the threads of the video stream. */
+	void SetVideoStream(VideoStream video) {
+		this.video = video;
+	}
+
+	/** Hands frame "index", at time "time", to the pipeline, to be colorized by "colorizing" and then written
+	 * to "filename".  This waits while the colorize stage is full. */
+	void Colorize(String filename, int index, double time, Colorizing colorizing) {
+		CheckError();
+		Frame frame = new Frame();
+		frame.filename = filename;
+		frame.index = index;
+		frame.time = time;
+		frame.colorizing = colorizing;
+		synchronized (this) {
+			++submitted;
+		}
+		Put(tocolor, frame);
+	}
+
+	/** Waits until every frame handed to Colorize() has been colorized, after which the scalar image
+	 * and the fields it was colored from may change. */
+	synchronized void AwaitColorized() {
+		try {
+			while ((colorized < submitted) && (error == null)) wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("FramePipeline.AwaitColorized: " + e, e);
+		}
+		CheckError();
+	}
+
+	/** Waits until every frame handed to Colorize() has been written to disk. */
+	void AwaitWritten() {
+		synchronized (this) {
+			try {
+				while ((written < submitted) && (error == null)) wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("FramePipeline.AwaitWritten: " + e, e);
+			}
+		}
+		try {
+			writer.Flush();
+		} catch (IOException e) {
+			Fail(e);
+		}
+		if (stack != null) stack.Flush();
+		CheckError();
+	}
+
+	/** Waits until every frame has been written, and stops the threads of the pipeline. */
+	void Finish() {
+		Put(tocolor, new Frame());
+		for (int i = 0; i < threads.length; ++i) {
+			try {
+				threads[i].join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("FramePipeline.Finish: " + e, e);
+			}
+		}
+		try {
+			writer.Close();
+		} catch (IOException e) {
+			Fail(e);
+		}
+		CheckError();
+	}
+
+	/** Writes the full image of frame "index", at time "time", to "filename", into the frame stack or to the video.  This is
+	 * called on the thread of the write stage, and "image" goes back to its pool afterwards, so a subclass that
+	 * keeps it must copy it.  The default hands a copy to the ImageWriter of the pipeline, and waits only while
+	 * the writer is full. */
+	void Write(RGBImage image, String filename, int index, double time) throws InterruptedException {
+		try {
+			if (stack != null)
+				stack.Write(index, image, time, seed, null);
+			else if (video != null)
+				video.Write(image);
+			else
+				writer.Write(image, filename);
+		} catch (IOException e) {
+			throw new RuntimeException("FramePipeline.Write: " + e, e);
+		}
+	}
+
+	/** Sets "outimage" to the full image, using the assumed symmetry properties to fill in what
+	 * lies outside the computed part "rgbimage". */
+	private void Reconstruct(RGBImage rgbimage, RGBImage outimage) {
+		switch (symmetry) {
+			case Renderer.SYM_VERTICAL:
+				outimage.Mirror(rgbimage, true, false, mirrorthreads);
+				break;
+			case Renderer.SYM_HORIZONTAL:
+				outimage.Mirror(rgbimage, false, true, mirrorthreads);
+				break;
+			case Renderer.SYM_BOTH:
+				outimage.Mirror(rgbimage, true, true, mirrorthreads);
+				break;
+			default:
+				outimage.Copy(rgbimage);
+				break;
+		}
+	}
+
+	/** Counts one more frame as colorized. */
+	private synchronized void Colorized() {
+		++colorized;
+		notifyAll();
+	}
+
+	/** Counts one more frame as written. */
+	private synchronized void Written() {
+		++written;
+		notifyAll();
+	}
+
+	/** Records "e" if it is the first exception thrown by a stage. */
+	private synchronized void Fail(Throwable e) {
+		if (error == null) error = e;
+		notifyAll();
+	}
+
+	/** Rethrows the first exception thrown by a stage, if there was one. */
+	private synchronized void CheckError() {
+		if (error instanceof RuntimeException) throw (RuntimeException)error;
+		if (error instanceof Error) throw (Error)error;
+		if (error != null) throw new RuntimeException("FramePipeline: " + error, error);
+	}
+
+	/** Puts "frame" into "queue", waiting for room if necessary. */
+	private static void Put(BlockingQueue<Frame> queue, Frame frame) {
+		try {
+			queue.put(frame);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("FramePipeline.Put: " + e, e);
+		}
+	}
+
+	/** A thread that takes the frames from one queue, processes them, and puts them into the next
+	 * queue, or gives back their images if it is the last stage. */
+	private abstract class Stage extends Thread {
+		private BlockingQueue<Frame> in, out;
+
+		Stage(String name, BlockingQueue<Frame> in, BlockingQueue<Frame> out) {
+			super("FramePipeline-" + name);
+			this.in = in;
+			this.out = out;
+			setDaemon(true);
+		}
+
+		/** Does the work of this stage on "frame". */
+		abstract void Process(Frame frame) throws InterruptedException;
+
+		/** Called instead of Process() once a stage has failed. */
+		void Skip(Frame frame) {
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					Frame frame = in.take();
+					if (frame.filename != null) {
+						boolean failed;
+						synchronized (FramePipeline.this) {
+							failed = (error != null);
+						}
+						if (failed)
+							Skip(frame);
+						else {
+							try {
+								Process(frame);
+							} catch (InterruptedException e) {
+								throw e;
+							} catch (Throwable e) {
+								Fail(e);
+							}
+						}
+						if (out == null) {
+							Release(frame);
+							Written();
+						}
+					}
+					if (out != null)
+						out.put(frame);
+					if (frame.filename == null)
+						return;
+				}
+			} catch (InterruptedException e) {
+				Fail(e);
+			}
+		}
+	}
+
+	/** Gives the images of "frame" back to their pools. */
+	private void Release(Frame frame) {
+		if (frame.part != null) parts.add(frame.part);
+		if ((frame.full != null) && (frame.full != frame.part))
+			(symmetry == Renderer.SYM_NONE ? parts : fulls).add(frame.full);
+		frame.part = frame.full = null;
+	}
+
+	/** A local way to print a string */
+	private static void println(String s) {
+		System.out.println(s);
+	}
+}
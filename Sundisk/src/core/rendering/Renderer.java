@@ -1,20 +1,34 @@
 package core.rendering;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.*;
 import simulations.objects.BaseObject;
 import simulations.Constants;
 import core.dflic.DFLIC;
 import core.field.EMVec2Field;
+import core.field.RegionMap;
+import core.field.Vec2Field;
+import core.field.Vec2FieldAdaptiveCache;
+import core.field.Vec2FieldCache;
 import core.image.AccumImage;
+import core.image.FieldImage;
 import core.image.RGBImage;
+import core.image.ScalarImage;
 import core.io.ImageIO;
+import core.io.FrameStack;
+import core.io.ImageWriter;
+import core.io.ScalarFrameFile;
+import core.io.VideoStream;
+import core.io.FrameSink;
 import core.io.OutputWindow;
 import core.math.Vec;
 import core.math.Vec2;
 import core.math.Vec2Transform;
 import core.math.Vec3;
+import core.postprocessing.ColorMap;
 import core.postprocessing.Colorizer;
 import simulations.experiments.*;
 
@@ -56,8 +70,9 @@ public class Renderer {
 	public static final int CM_COLOR_4 = 4;
 
 	
-	/** As the rendering proceeds, the program displays an output image on the screen frame by frame in "window".*/
-	OutputWindow window;
+	/** As the rendering proceeds, the program displays an output image on the screen frame by frame in "window",
+	 * an OutputWindow unless another FrameSink was set, or null when rendering headless without one.*/
+	FrameSink window;
 	/** The image as actually computed, which depending on the symmetry can be either 1/4 or 1/2 or the full
 	 * final image written to file and displayed in "window".   That is, it may have dimensions <br>
 	 * (width/2,height/2)---SYM_BOTH--------symmetric about vertical and horizontal, <br>
@@ -65,11 +80,6 @@ public class Renderer {
 	 * (width,height/2)-----SYM_HORIZONTAL--symmetric about horizontal axis, <br>
 	 * (width,height)-------SYM_NONE--------no symmetry */
     AccumImage output;
-	/** The rgb verzion of output with the same dimensions as output.  */
-    RGBImage rgbimage; 
-	/** The rgb version of output which now has the full (width,height) dimensions, with the 
-	 * additional information (if any) computed from the assumed symmetry of the image.  */
-    RGBImage outimage;
     /** width of output image in pixels */	
 	int width;
 	/** half of the width of the output image in pixels.  This is used in situations with symmetry. */
@@ -174,6 +184,58 @@ public class Renderer {
   	/** if we are not using a random seed, the default seed that is set (this can be changed by SetSeedSet */
   	int seedset;
   	BaseExperiment experiment;
+  	/** The number of threads used to compute each frame.  With more than one thread, FLIC divides
+  	 * the image into tiles that are computed in parallel. */
+  	int threads;
+  	/** if this is true, the default value, time-dependent sources tabulate their state at every retarded
+  	 * time that occurs in the image once per frame, rather than recomputing it for every field point */
+  	boolean retardedtables;
+  	/** The number of field cache grid points per pixel, or zero (the default) to evaluate the fields
+  	 * directly.  If positive, field and dfield are precomputed on a grid over the padded image once per
+  	 * frame, and FLIC, the evolution of DFLIC and the colorizing interpolate between the grid points. */
+  	double fieldcache;
+  	/** The relative tolerance of an adaptive field cache, or zero (the default) for a uniform one.  If positive
+  	 * and fieldcache is positive, the fieldcache grid is only the coarsest level, and its cells are refined
+  	 * wherever bilinear interpolation misses the field by more than this fraction of its magnitude. */
+  	double fieldcachetolerance;
+  	/** The number of frames that may be waiting to be colorized, reconstructed, displayed or written
+  	 * while the next frames are computed.  Each stage of the frame pipeline holds this many images. */
+  	int pipelinedepth;
+  	/** The format the frames are written in, one of the ImageWriter constants, TIFF by default */
+  	int imageformat;
+  	/** if this is true, the frames are written into a single frame stack file rather than one file each */
+  	boolean framestack;
+  	/** The file or named pipe the frames are streamed to as video, "-" for the standard output, or null */
+  	String videooutput;
+  	/** The command of the encoder the frames are streamed to as video, or null */
+  	String[] videoencoder;
+  	/** The format of the video, one of the VideoStream constants, Y4M by default */
+  	int videoformat;
+  	/** The number of frames per second of the video */
+  	int videoframerate;
+  	/** The precision the scalar frames are stored with for recoloring, one of the ScalarFrameFile constants,
+  	 * or zero (the default) to store none */
+  	int scalarframes;
+  	/** if this is true, the renderer opens no window and does not wait for the user at the end, so that it can run
+  	 * as a batch job on a machine without a display.  It is true by default when java.awt.headless is set. */
+  	boolean headless;
+  	/** The sink the frames are shown in instead of the window, or null */
+  	FrameSink framesink;
+  	/** The tabulated colors of the last frame colored by field magnitude, kept while the color settings stay the same */
+  	private ColorMap colormap;
+  	/** The region colors of an experiment whose regions are static, tabulated over the image for the whole sequence */
+  	private RegionMap colorregions;
+  	/** The number of chunks the rendered frames are split into, which are rendered at the same time on
+  	 * their own threads, or 1 (the default) to render all the frames in order. */
+  	int chunks;
+  	/** The number of frames the DFLIC of a chunk computes, but does not write, before the chunk starts */
+  	int chunkwarmup;
+  	/** The number of frames over which one chunk is cross-faded into the next */
+  	int chunkoverlap;
+  	/** The number of frames between checkpoints, or zero (the default) to write none */
+  	int checkpointinterval;
+  	/** if this is true, the rendering resumes from the checkpoint left by an earlier run, if there is one */
+  	boolean resume;
   	
   	/**  flag to make sure the renderer has all the required info before running */
   	boolean OKToRun;
@@ -217,6 +279,25 @@ public class Renderer {
   		this.frameprint = true;
   		this.randomseed = true;
   		this.seedset = 1117518289;
+  		this.threads = 1;
+  		this.retardedtables = true;
+  		this.fieldcache = 0.;
+  		this.fieldcachetolerance = 0.;
+  		this.pipelinedepth = 2;
+  		this.imageformat = ImageWriter.TIFF;
+  		this.framestack = false;
+  		this.videooutput = null;
+  		this.videoencoder = null;
+  		this.videoformat = VideoStream.Y4M;
+  		this.videoframerate = 30;
+  		this.scalarframes = 0;
+  		this.headless = Boolean.getBoolean("java.awt.headless");
+  		this.framesink = null;
+  		this.chunks = 1;
+  		this.chunkwarmup = 30;
+  		this.chunkoverlap = 10;
+  		this.checkpointinterval = 0;
+  		this.resume = false;
   	
   	}
 
@@ -552,6 +633,247 @@ public class Renderer {
   		this.randomseed = randomseed;
   	}
   	
+	/** GetThreads() returns the number of threads used to compute each frame. */
+  	public int GetThreads() {
+  		return this.threads;
+  	}
+  	
+  	/** SetThreads() sets the number of threads used to compute each frame.  The DFLIC result
+  	 * depends only on the random seed and the number of threads, not on the timing of the threads. */
+  	public void SetThreads(int threads) {
+  		this.threads = threads;
+  	}
+  	
+	/** GetRetardedTables() returns whether sources tabulate their retarded state once per frame. */
+  	public boolean GetRetardedTables() {
+  		return this.retardedtables;
+  	}
+  	
+  	/** SetRetardedTables() sets whether sources tabulate their retarded state once per frame (true, the default)
+  	 * or compute it directly at every field point (false).  The tables are interpolated, so the fields differ
+  	 * from the direct ones only by a tiny interpolation error. */
+  	public void SetRetardedTables(boolean retardedtables) {
+  		this.retardedtables = retardedtables;
+  	}
+  	
+	/** GetFieldCache() returns the number of field cache grid points per pixel, zero if there is no cache. */
+  	public double GetFieldCache() {
+  		return this.fieldcache;
+  	}
+  	
+  	/** SetFieldCache() sets the number of grid points per pixel at which field and dfield are precomputed
+  	 * once per frame, for example 0.5 for a grid point every other pixel.  Zero, the default, evaluates the
+  	 * fields directly.  Between the grid points the fields are interpolated bilinearly, so the cache trades
+  	 * a small interpolation error for one field evaluation per grid point instead of several per streamline step. */
+  	public void SetFieldCache(double fieldcache) {
+  		this.fieldcache = fieldcache;
+  	}
+  	
+	/** GetFieldCacheTolerance() returns the relative tolerance of the adaptive field cache, zero if it is uniform. */
+  	public double GetFieldCacheTolerance() {
+  		return this.fieldcachetolerance;
+  	}
+  	
+  	/** SetFieldCacheTolerance() makes the field cache adaptive, for example 0.01 to refine the grid set by
+  	 * SetFieldCache() wherever the interpolated field is off by more than 1% of its magnitude.  This keeps the
+  	 * cache accurate near point sources, where the fields change quickly, without a fine grid everywhere.
+  	 * Zero, the default, uses a uniform grid.  It has no effect unless SetFieldCache() is also used. */
+  	public void SetFieldCacheTolerance(double fieldcachetolerance) {
+  		this.fieldcachetolerance = fieldcachetolerance;
+  	}
+  	
+	/** GetPipelineDepth() returns the number of frames the output pipeline may hold. */
+  	public int GetPipelineDepth() {
+  		return this.pipelinedepth;
+  	}
+  	
+  	/** SetPipelineDepth() sets the number of frames the output pipeline may hold (2 by default, at least 1).
+  	 * Colorizing, reconstruction of the full image from its symmetry, display and writing each run on their
+  	 * own thread, so that the next frame is computed while the earlier ones are finished and written. */
+  	public void SetPipelineDepth(int pipelinedepth) {
+  		this.pipelinedepth = pipelinedepth;
+  	}
+  	
+	/** GetImageFormat() returns the format the frames are written in. */
+  	public int GetImageFormat() {
+  		return this.imageformat;
+  	}
+  	
+  	/** SetImageFormat() sets the format the frames are written in, one of ImageWriter.TIFF (the default),
+  	 * ImageWriter.DEFLATE_TIFF or ImageWriter.PNG.  The last two are lossless and compressed, several times
+  	 * smaller than TIFF for LIC textures, and each frame is compressed in strips on all the processors.
+  	 * The file name extension follows the format. */
+  	public void SetImageFormat(int imageformat) {
+  		this.imageformat = imageformat;
+  	}
+  	
+	/** GetFrameStack() returns whether the frames are written into a single frame stack file. */
+  	public boolean GetFrameStack() {
+  		return this.framestack;
+  	}
+  	
+  	/** SetFrameStack() makes the renderer write all the frames into the single file named by the file name followed
+  	 * by ".frames", a core.io.FrameStack with a slot for every frame, in place of one image file per frame.  Each
+  	 * slot also records the time of the frame and the random seed.  On network storage this avoids the cost of
+  	 * creating thousands of files, and Periodify can read the frames back directly.  The image format does not
+  	 * apply to a frame stack, which is uncompressed. */
+  	public void SetFrameStack(boolean framestack) {
+  		this.framestack = framestack;
+  	}
+  	
+	/** GetVideoOutput() returns the file or pipe the frames are streamed to as video, or null. */
+  	public String GetVideoOutput() {
+  		return this.videooutput;
+  	}
+  	
+  	/** SetVideoOutput() streams the frames as video to the file or named pipe "videooutput", or to the standard
+  	 * output if it is "-", in place of writing image files, so that an encoder can read them as they are rendered,
+  	 * with no files in between.  When the video goes to the standard output, everything printed from this call on
+  	 * goes to the standard error, so it should be called before the other Set methods, which print their values.
+  	 * The frames are converted to the video format on all the processors.  Null, the default, writes image files. */
+  	public void SetVideoOutput(String videooutput) {
+  		if ("-".equals(videooutput))
+  			/* The standard output carries the video, so nothing else may be printed to it */
+  			System.setOut(System.err);
+  		this.videooutput = videooutput;
+  	}
+  	
+	/** GetVideoEncoder() returns the command of the encoder the frames are streamed to, or null. */
+  	public String[] GetVideoEncoder() {
+  		return this.videoencoder;
+  	}
+  	
+  	/** SetVideoEncoder() starts the encoder "videoencoder", a program and its arguments, and streams the frames
+  	 * as video to its standard input in place of writing image files.  For example, with the Y4M format,
+  	 * {"ffmpeg", "-i", "-", "out.mp4"}.  The rendering waits for the encoder to finish at the end. */
+  	public void SetVideoEncoder(String[] videoencoder) {
+  		this.videoencoder = videoencoder;
+  	}
+  	
+	/** GetVideoFormat() returns the format of the video stream. */
+  	public int GetVideoFormat() {
+  		return this.videoformat;
+  	}
+  	
+  	/** SetVideoFormat() sets the format of the video stream, VideoStream.Y4M (the default) for YUV4MPEG2 with 4:2:0
+  	 * chroma, or VideoStream.RGB24 for raw RGB with no header. */
+  	public void SetVideoFormat(int videoformat) {
+  		this.videoformat = videoformat;
+  	}
+  	
+	/** GetVideoFrameRate() returns the number of frames per second of the video stream. */
+  	public int GetVideoFrameRate() {
+  		return this.videoframerate;
+  	}
+  	
+  	/** SetVideoFrameRate() sets the number of frames per second recorded in the video stream, 30 by default. */
+  	public void SetVideoFrameRate(int videoframerate) {
+  		this.videoframerate = videoframerate;
+  	}
+  	
+	/** GetScalarFrames() returns the precision the scalar frames are stored with, zero if they are not stored. */
+  	public int GetScalarFrames() {
+  		return this.scalarframes;
+  	}
+  	
+  	/** SetScalarFrames() stores the scalar image of every frame, before it is colored, together with the field it
+  	 * is colored by, in the file named by the file name followed by ".scalars", with the precision "scalarframes",
+  	 * ScalarFrameFile.HALF (2 bytes per value) or ScalarFrameFile.FLOAT (4 bytes).  StartRecolor() can then color
+  	 * the sequence again with other color settings, without computing the DFLIC.  Zero, the default, stores
+  	 * nothing.  Chunked rendering (see SetChunks()) does not store scalar frames. */
+  	public void SetScalarFrames(int scalarframes) {
+  		this.scalarframes = scalarframes;
+  	}
+  	
+	/** GetHeadless() returns true if the renderer runs without a window and without waiting for the user. */
+  	public boolean GetHeadless() {
+  		return this.headless;
+  	}
+  	
+  	/** SetHeadless() makes the renderer run as a batch job: it opens no window, so that nothing of AWT is loaded,
+  	 * and at the end it returns from StartRender() instead of waiting for [Enter] and exiting.  StartRender()
+  	 * then returns true if all the frames were rendered and written, and false if it could not start; an error
+  	 * during the rendering is thrown.  A FrameSink set with SetFrameSink() is still shown the frames.  The
+  	 * default is true if the JVM runs with java.awt.headless set, and false otherwise. */
+  	public void SetHeadless(boolean headless) {
+  		this.headless = headless;
+  	}
+  	
+	/** GetFrameSink() returns the sink the frames are shown in instead of the window, or null. */
+  	public FrameSink GetFrameSink() {
+  		return this.framesink;
+  	}
+  	
+  	/** SetFrameSink() shows the frames in "framesink" as they are rendered, instead of in a new OutputWindow, for
+  	 * instance to report progress from a batch job.  It is closed when the rendering ends.  Null, the default,
+  	 * shows them in an OutputWindow, or nowhere when rendering headless. */
+  	public void SetFrameSink(FrameSink framesink) {
+  		this.framesink = framesink;
+  	}
+  	
+	/** GetChunks() returns the number of chunks the rendered frames are split into. */
+  	public int GetChunks() {
+  		return this.chunks;
+  	}
+  	
+  	/** SetChunks() splits the frames from startFrame to endFrame into "chunks" consecutive chunks, which are
+  	 * rendered at the same time on their own threads, each with its own DFLIC and threads/chunks threads.
+  	 * The DFLIC of each chunk starts from noise a few frames early (see SetChunkWarmup()), and consecutive
+  	 * chunks are cross-faded where they meet (see SetChunkOverlap()).  The default, 1, renders all frames
+  	 * in order with one DFLIC. */
+  	public void SetChunks(int chunks) {
+  		this.chunks = chunks;
+  	}
+  	
+	/** GetChunkWarmup() returns the number of warm-up frames computed before each chunk. */
+  	public int GetChunkWarmup() {
+  		return this.chunkwarmup;
+  	}
+  	
+  	/** SetChunkWarmup() sets the number of frames (30 by default) the DFLIC of a chunk is computed, but not
+  	 * written, before the chunk starts, so that its texture has settled from the starting noise into streaks.
+  	 * It should be at least the number of frames a streak takes to form in the serial rendering. */
+  	public void SetChunkWarmup(int chunkwarmup) {
+  		this.chunkwarmup = chunkwarmup;
+  	}
+  	
+	/** GetChunkOverlap() returns the number of frames over which consecutive chunks are cross-faded. */
+  	public int GetChunkOverlap() {
+  		return this.chunkoverlap;
+  	}
+  	
+  	/** SetChunkOverlap() sets the number of frames (10 by default) each chunk goes on past its end, which are
+  	 * blended into the first frames of the next chunk in the same way Periodify joins the end of a sequence
+  	 * to its beginning.  Zero cuts from one chunk to the next. */
+  	public void SetChunkOverlap(int chunkoverlap) {
+  		this.chunkoverlap = chunkoverlap;
+  	}
+  	
+	/** GetCheckpointInterval() returns the number of frames between checkpoints, zero if none are written. */
+  	public int GetCheckpointInterval() {
+  		return this.checkpointinterval;
+  	}
+  	
+  	/** SetCheckpointInterval() makes the renderer write a checkpoint every "checkpointinterval" frames, once the
+  	 * frames before it are written, to the file name followed by ".checkpoint".  The checkpoint holds the state of
+  	 * the DFLIC and the experiment, so that SetResume() can continue an interrupted run from there.  Zero, the
+  	 * default, writes no checkpoints.  Chunked rendering (see SetChunks()) does not write checkpoints. */
+  	public void SetCheckpointInterval(int checkpointinterval) {
+  		this.checkpointinterval = checkpointinterval;
+  	}
+  	
+	/** GetResume() returns whether the rendering resumes from the last checkpoint. */
+  	public boolean GetResume() {
+  		return this.resume;
+  	}
+  	
+  	/** SetResume() makes the rendering resume from the checkpoint left by an earlier run with the same settings,
+  	 * restoring the DFLIC and the experiment and going on with the frame after it.  If there is no checkpoint,
+  	 * the rendering starts from the beginning as usual. */
+  	public void SetResume(boolean resume) {
+  		this.resume = resume;
+  	}
+  	
 	/** GetOrigin() returns the origin of the plot, non-zero only if there is no symmetry. */
   	public Vec3 GetOrigin() {
   		return this.origin;
@@ -577,6 +899,22 @@ public class Renderer {
   		println("Ydir			" + Ydir.toVector3d());
   		println("Symmetry Mode	" + symmetry);
   		println("Color Mode:		" + colorMode);
+  		println("Threads:		" + threads);
+  		println("Retarded Tables:	" + retardedtables);
+  		println("Field Cache:		" + fieldcache);
+  		println("Field Cache Tolerance:	" + fieldcachetolerance);
+  		println("Pipeline Depth:	" + pipelinedepth);
+  		println("Image Format:		" + imageformat);
+  		println("Frame Stack:		" + framestack);
+  		println("Scalar Frames:		" + scalarframes);
+  		println("Headless:		" + headless);
+  		if ((videooutput != null) || (videoencoder != null))
+  			println("Video:			" + ((videoencoder != null) ? videoencoder[0] : videooutput) + ", format " + videoformat + ", " + videoframerate + " fps");
+  		println("Chunks:			" + chunks);
+  		if (chunks > 1)
+  			println("Chunk Warmup, Overlap:	" + chunkwarmup + ", " + chunkoverlap);
+  		println("Checkpoint Interval:	" + checkpointinterval);
+  		println("Resume:			" + resume);
   		
   		if (colorMode != 0) 
   		{
@@ -621,31 +959,34 @@ public class Renderer {
   	}
   	/** InitOutputWindow() is only used internally by Renderer. */
   	void InitOutputWindow(){
-  		window = new OutputWindow("DFLIC", width, height);	
-  		outimage = new RGBImage(width, height);	
+  		if (framesink != null) window = framesink;
+  		else if (headless) window = null;
+  		else window = new OutputWindow("DFLIC", width, height);	
   	}
   
   	/** StartRender() starts the program rendering.  If for whatever reason the renderer doesn't have sufficient information
-  	* to start the rendering process, it will tell you with a message in the console.*/
-  	public void StartRender() 
+  	* to start the rendering process, it will tell you with a message in the console and return false.  Unless the renderer
+  	* is headless (see SetHeadless()), it waits for the user and exits once the frames are written; when headless it
+  	* returns true. */
+  	public boolean StartRender() 
   	{
   		if (frames == 0 ) {
   			println("core.rendering.Renderer is terminating execution because");
   			println("the user has not set the number of frames in the animation " +
   					"by a call to renderer.SetFrames()");
-  			return;
+  			return false;
   		}
   		if ( (origin.len() != 0.) &&  (symmetry != SYM_NONE) ) {
   			println("core.rendering.Renderer is terminating execution because");
   			println("the origin is not equal to zero and symmetry is not equal to SYM_NONE");
-  			return; 
+  			return false;
   		}
   		if (CheckStatus() != true) {
   			println("core.rendering.Renderer is terminating execution");
   			println("because an experiment was not specified, or " +
   					"because user did not set FieldType or FieldMotionType, " +
   					"or an odd width or height was set.");
-  			return;
+  			return false;
   		}
   		if (CheckStatus() == true) {
   			println("Starting DFLIC");
@@ -661,40 +1002,9 @@ public class Renderer {
   		    BaseObject emsource = experiment.getEMSource();
 			EMVec2Field field;
 			EMVec2Field dfield = null;	    
-		    Vec3 symVec3;
-		    Vec2 symVec2;
-		    
-		    switch (symmetry) {
-		    	case Renderer.SYM_NONE:
-		    		symVec3 = new Vec3(origin.x,0,origin.z);
-		    		symVec2 = new Vec2(halfWidth, halfHeight);
-		    		output = new AccumImage(width, height);
-					rgbimage = new RGBImage(width, height);
-		    		break;
-		    	case Renderer.SYM_VERTICAL:
-		    		symVec3 = origin;
-		    		symVec3 = new Vec3(-halfWidth/2,0,origin.z);
-		    		symVec2 = new Vec2(halfWidth/2, halfHeight);
-		    		output = new AccumImage(halfWidth, height);
-					rgbimage = new RGBImage(halfWidth, height);
-		    		break;
-		    	case Renderer.SYM_HORIZONTAL:
-		    		symVec3 = new Vec3(origin.x,0,halfHeight/2);
-		    		symVec2 = new Vec2(halfWidth, halfHeight/2);
-		    		output = new AccumImage(width, halfHeight);
-					rgbimage = new RGBImage(width, halfHeight);
-		    		break;
-		    	case Renderer.SYM_BOTH:
-		    		symVec3 = new Vec3(-halfWidth/2,0,halfHeight/2);
-		    		symVec2 = new Vec2(halfWidth/2, halfHeight/2);
-		    		output = new AccumImage(halfWidth, halfHeight);
-					rgbimage = new RGBImage(halfWidth, halfHeight);
-		    		break;
-		    	default:
-		    		symVec3 = new Vec3(0,0,0);
-		    		symVec2 = new Vec2(halfWidth, halfHeight);
-		    		break;
-		    }
+		    Vec3 symVec3 = new Vec3();
+		    Vec2 symVec2 = new Vec2();
+		    SetupSymmetry(symVec2, symVec3);
 		    			
 		    
 		    if (experiment.FieldType == Constants.FIELD_EFIELD)
@@ -738,23 +1048,98 @@ public class Renderer {
 		    if (experiment.FieldMotionType == Constants.FIELD_MOTION_VRBFIELD) {
 	    		println("Our D field is along B with speed determined by region of the image ");
 		    	dfield = new EMVec2Field(field, EMVec2Field.VRBfieldMotion,experiment,RegionFlow);}
+		    
+		  /* Tabulate the flow speeds of the regions over the padded image, here once if they do not change with
+		   *   time, else at the start of every frame, rather than asking the experiment for every particle */
+		    RegionMap flowregions = null;
+		    if ((experiment.FieldMotionType == Constants.FIELD_MOTION_VREFIELD) || 
+		    		(experiment.FieldMotionType == Constants.FIELD_MOTION_VRBFIELD)) {
+		    	flowregions = dfield.NewRegionMap(new Vec2(-symVec2.x - streamlen, -symVec2.y - streamlen), 
+		    			output.width + 2*streamlen, output.height + 2*streamlen, 1);
+		    	if (experiment.RegionsStatic()) ComputeFlowRegions(flowregions);
+		    	dfield.SetRegionMap(flowregions);
+		    }
+		    colorregions = null;
+  		
   		
+  		  /* Tell the source how far from the origin the fields will be needed, so that
+  		   *   it can tabulate its state at the retarded times once per frame.  This covers
+  		   *   the output image plus a margin of streamlen, more than DFLIC pads its input by. */
+  		    if (retardedtables)
+  		    	emsource.SetObserverRange(field.getRadius(-symVec2.x - streamlen, -symVec2.y - streamlen,
+  		    			output.width - symVec2.x + streamlen, output.height - symVec2.y + streamlen));
+  		
+  		  /* In chunked mode every chunk binds its own fields and caches to snapshots of the experiment,
+  		   *   and renders its frames on its own thread. */
+  		    FrameStack stack = framestack ? OpenFrameStack() : null;
+  		    VideoStream video = OpenVideoStream();
+  		    if ((chunks > 1) && (video != null))
+  		    	println("The video needs the frames in order, so they are rendered in one chunk");
+  		    if ((chunks > 1) && (video == null)) {
+  		    	PrintRenderInfo();
+  		    	new ChunkRenderer(this, field, dfield, symVec2, symVec3, random, stack).Render();
+  		    	CloseFrameStack(stack);
+  		    	return EndRender();
+  		    }
+  		
+  		  /* If requested, cache field and dfield on a grid over the same region, and use the caches
+  		   *   in place of the fields.  They are recomputed at the start of every frame. */
+  		    Vec2Field ffield = CacheField(field, symVec2, threads, true);
+  		    Vec2Field fdfield = (dfield != null) ? CacheField(dfield, symVec2, threads, false) : null;
   		
   		  /* Construct a new DFLIC object that will be used to render the
    		  *   sequence of animation frames over time. The only parameter changed
    		  *   is the convolution kernel width */
-  	 		DFLIC dflic = new DFLIC(field, dfield, output, new Vec2Transform(symVec2, 1));
+  	 		DFLIC dflic = new DFLIC(ffield, fdfield, output, new Vec2Transform(symVec2, 1));
    		 	dflic.SetRandom(random);
   		  	dflic.SetStreamLen(streamlen);
   		  	
   		  	dflic.SetInputFilterKernel(ikernel);
    		 	dflic.SetInputFilterRepeat(filterRepeat);
+   		 	dflic.SetThreads(threads);
   	
   			PrintRenderInfo();
+  			
+  		  /* Colorizing, reconstruction of the full image, display and writing run on the threads of
+  		   *   the pipeline.  Colorizing reads a snapshot of the experiment taken when the frame was
+  		   *   computed, so it overlaps the evolution of both dflic and the experiment, but it also reads
+  		   *   the scalar image and the field caches, so it has to finish before the next frame is computed. */
+  			FramePipeline pipeline = new FramePipeline(window, symmetry, width, height, output.width, output.height,
+  					pipelinedepth, imageformat, frameprint);
+  			pipeline.SetThreads(threads);
+  			if (stack != null) pipeline.SetFrameStack(stack, randomseed ? seed : seedset);
+  			else if (video != null) pipeline.SetVideoStream(video);
+  			final Vec2 cVec2 = symVec2;
+  			final Vec3 cVec3 = symVec3;
+  			
+  		  /* If requested, restore the DFLIC and the experiment from the last checkpoint and go on from there */
+  			String checkpoint = fname + ".checkpoint";
+  			int firstFrame = 0;
+  			if (resume) {
+  				if (new File(checkpoint).exists()) {
+  					try {
+  						firstFrame = Checkpoint.Read(checkpoint, dflic, experiment);
+  					} catch (IOException e) {
+  						throw new RuntimeException("Renderer: cannot resume from " + checkpoint + ": " + e, e);
+  					}
+  					println("Resuming at frame " + firstFrame + " from checkpoint " + checkpoint);
+  				} else
+  					println("There is no checkpoint " + checkpoint + " to resume from, starting at frame 0");
+  			}
+  			final ScalarFrameFile scalars = (scalarframes != 0) ? OpenScalarFrames(firstFrame) : null;
+  		  /* The field is sampled at the pixels once per frame, for both the colors and the scalar frames */
+  			final FieldImage samples = (ColorsByField() || (scalars != null)) ? new FieldImage(output.width, output.height) : null;
   		
-  			for (int frame = 0; frame < frames; ++frame) {
+  			for (int frame = firstFrame; frame < frames; ++frame) {
   				if(frameprint) println("Frame "+frame+"...");
       			if ((frame>=startFrame) && (frame<=endFrame)) {
+      				pipeline.AwaitColorized();
+      				if ((flowregions != null) && !experiment.RegionsStatic()) ComputeFlowRegions(flowregions);
+      				if (ffield != field) {
+      					if(frameprint) println("Computing field cache...");
+      					ComputeCache(ffield, frameprint);
+      					ComputeCache(fdfield, frameprint);
+      				}
       				if(frameprint) println("Computing DFLIC...");
       				/* Compute the next frame image */
        				dflic.Compute();      	 			
@@ -762,94 +1147,18 @@ public class Renderer {
       				output.Rescale(0.5, 0.5);
       				if(frameprint) println(" ");
       				if(frameprint) println("Converting image, adding color if specified. ");
-        			/* Rescale the output image range from [-1, 1] to [0, 1] */
-        			//output.Rescale(0.5, 0.5);
-       			 	/* Turn the scalar image in output into an RGB image in rgbimage, with
-       			 	 * the same dimensions as output. */
-        			switch (colorMode) {
-        				case Renderer.CM_GREYSCALE:
-        					rgbimage.fromScalarImage(output, 0, 0, 256, 256, 256);
-        					break;
-        				case Renderer.CM_COLOR_1:
-        					rgbimage.fromScalarImageMagnitude(output, field, new Vec2Transform(symVec2, 1.0), 
-        							new Colorizer(colorHue,colorSaturation,colorValue,colorStrength,fallOff, false, true, RegionHue, RegionSaturation, RegionValue, RegionWhite, experiment,emsource, symVec3, Xdir, Ydir, scale));
-        					break;
-        				case Renderer.CM_COLOR_2:
-        					rgbimage.fromScalarImageMagnitude(output, field, new Vec2Transform(symVec2, 1.0), 
-        							new Colorizer(colorHue,colorSaturation,colorValue,colorStrength,fallOff, false, false));
-							break;
-        				case Renderer.CM_COLOR_3:
-        					rgbimage.fromScalarImageMagnitude(output, field, new Vec2Transform(symVec2, 1.0), 
-        							new Colorizer(colorHue,colorSaturation,colorValue,colorStrength,fallOff, true, false));
-							break;
-           				case Renderer.CM_COLOR_4:
-           			// 		println("Region Saturation Renderer:	(" + RegionSaturation.x[0]+ ", "+ RegionSaturation.x[1]+", "+RegionSaturation.x[2]+")");
-        					rgbimage.fromScalarImageMagnitude(output, field, new Vec2Transform(symVec2, 1.0), 
-        					new Colorizer(colorHue,colorSaturation,colorValue,colorStrength,fallOff, false, true, RegionHue, RegionSaturation, RegionValue, RegionWhite, experiment,emsource, symVec3, Xdir, Ydir, scale));
-							break;
-						default:
-							rgbimage.fromScalarImage(output, 0, 0, 256, 256, 256);
-							break;
-        			}
-        			
-       			 	/* Use the  RGB image in rgbimage to produce the full image outimage, with
-       			 	 * dimensions (width,height), using the assumed symmetry properties of the image. */
-        			if(frameprint) println("Reconstructing the full image using the symmetry properties specified. ");
-        			switch (symmetry) {
-        				case Renderer.SYM_NONE:
-        					outimage = rgbimage;
-        					break;
-        				case Renderer.SYM_VERTICAL:
-        					for (int j = 0; j<height; ++j)
-          						for (int i = 0; i<halfWidth; ++i) {
-           						byte r = rgbimage.getR(i,j);
-            					byte g = rgbimage.getG(i,j);
-            					byte b = rgbimage.getB(i,j);
-            					outimage.Set(i, j, r, g, b);
-            					outimage.Set(width-1-i, j, r, g, b);
-            
-            					//outimage.Set(i, height-1-j, r, g, b);
-            					//outimage.Set(width-1-i, height*2-1-j, r, g, b);
-          					}
-          					break;
-          				case Renderer.SYM_HORIZONTAL:
-          					for (int i = 0; i<width; ++i)
-          						for (int j = 0; j<halfHeight; ++j) {
-           						byte r = rgbimage.getR(i,j);
-            					byte g = rgbimage.getG(i,j);
-            					byte b = rgbimage.getB(i,j);
-            					outimage.Set(i, j, r, g, b);
-            					//outimage.Set(width-1-i, j, r, g, b);
-            
-            					outimage.Set(i, height-1-j, r, g, b);
-            					//outimage.Set(width-1-i, height*2-1-j, r, g, b);
-          					}
-          					break;
-          				case Renderer.SYM_BOTH:
-          					for (int j = 0; j<halfHeight; ++j)
-          						for (int i = 0; i<halfWidth; ++i) {
-           						byte r = rgbimage.getR(i,j);
-            					byte g = rgbimage.getG(i,j);
-            					byte b = rgbimage.getB(i,j);
-            					outimage.Set(i, j, r, g, b);
-            					outimage.Set(width-1-i, j, r, g, b);
-            
-            					outimage.Set(i, height-1-j, r, g, b);
-            					outimage.Set(width-1-i, height-1-j, r, g, b);
-          					}
-          					break;
-          				default:
-          					outimage = rgbimage;
-          					break;
-        			}
-        			
-        			/* Copy the full RGB image to the window and update the screen */
-       				outimage.toRGBBytes(window.getByteBuffer());
-       				window.Refresh();
-      	
-        			/* Write the full RGB image to disk */
-       				if(frameprint) println("Writing image to file "+fname+PadZeros(frame, 4)+".tif");
-       				ImageIO.WriteTIFF(outimage, fname+PadZeros(frame, 4)+".tif");
+       			 	/* Turn the scalar image in output into an RGB image with the same dimensions as output,
+       			 	 * and pass it on to be reconstructed, displayed and written */
+      				final BaseExperiment snapshot = experiment.Snapshot();
+      				final Vec2Field cfield = (ffield == field) ? field.Bind(snapshot) : ffield;
+      				final int cframe = frame;
+      				pipeline.Colorize(fname+PadZeros(frame, 4)+ImageWriter.getExtension(imageformat), frame, frame*dt, new FramePipeline.Colorizing() {
+      					public void Run(RGBImage rgbimage) {
+      						SampleField(samples, cfield, cVec2);
+      						ColorizeFrame(rgbimage, output, samples, cVec2, cVec3, snapshot);
+      						if (scalars != null) WriteScalarFrame(scalars, cframe, output, samples);
+      					}
+      				});
        				if(frameprint) println("Evolving dflic one time step " + dt);
      				dflic.Evolve(dt, dt);
      			}  			
@@ -859,9 +1168,231 @@ public class Renderer {
       			
       			if(frameprint) println("Evolving experiment one time step " + dt);
        			experiment.Evolve(dt);
-    		}
+       			
+       		  /* Write a checkpoint from which the next frame can be rendered, once the frames before it are on disk */
+       			if ((checkpointinterval > 0) && ((frame+1) % checkpointinterval == 0) && (frame+1 < frames)) {
+       				pipeline.AwaitWritten();
+       				if(frameprint) println("Writing checkpoint " + checkpoint);
+       				try {
+       					Checkpoint.Write(checkpoint, frame+1, dflic, experiment);
+       				} catch (IOException e) {
+       					println("Could not write checkpoint " + checkpoint + ": " + e);
+       				}
+       			}
+  			}
+  			pipeline.Finish();
+  			CloseFrameStack(stack);
+  			CloseVideoStream(video);
+  			CloseScalarFrames(scalars);
+  			return EndRender();
+  		}
+  		return false;
+  	}
+  	
+  	/** StartRecolor() colors again the frames stored by an earlier rendering with SetScalarFrames(), with the current
+  	 * color settings, and writes them in the same way as StartRender() would, but without computing the DFLIC, so that
+  	 * a sequence can be colored again at the speed of the disk.  The renderer must have the same image size, symmetry,
+  	 * file name and time step as the rendering that stored the frames, and the same experiment, which is evolved along
+  	 * with the frames for the color modes that color by region.  Like StartRender(), it returns false if it cannot start,
+  	 * and true once the frames are written if the renderer is headless. */
+  	public boolean StartRecolor()
+  	{
+  		if (CheckStatus() != true) {
+  			println("core.rendering.Renderer is terminating execution");
+  			println("because an experiment was not specified, or " +
+  					"because user did not set FieldType or FieldMotionType, " +
+  					"or an odd width or height was set.");
+  			return false;
+  		}
+  		String name = fname + ".scalars";
+  		final ScalarFrameFile scalars;
+  		try {
+  			scalars = ScalarFrameFile.Open(name);
+  		} catch (IOException e) {
+  			println("core.rendering.Renderer is terminating execution because");
+  			println("the scalar frames " + name + " cannot be read: " + e);
+  			return false;
+  		}
+  		final Vec3 symVec3 = new Vec3();
+  		final Vec2 symVec2 = new Vec2();
+  		SetupSymmetry(symVec2, symVec3);
+  		colorregions = null;
+  		if ((scalars.getWidth() != output.width) || (scalars.getHeight() != output.height)) {
+  			println("core.rendering.Renderer is terminating execution because");
+  			println("the scalar frames are " + scalars.getWidth() + " x " + scalars.getHeight() + 
+  					", but the image size and symmetry give " + output.width + " x " + output.height);
+  			return false;
+  		}
+  		println("Recoloring " + scalars.getCount() + " frames from " + name);
+  		InitOutputWindow();
+  		PrintRenderInfo();
+  		FrameStack stack = framestack ? OpenFrameStack() : null;
+  		VideoStream video = OpenVideoStream();
+  		FramePipeline pipeline = new FramePipeline(window, symmetry, width, height, output.width, output.height,
+  				pipelinedepth, imageformat, frameprint);
+  		pipeline.SetThreads(threads);
+  		if (stack != null) pipeline.SetFrameStack(stack, 0);
+  		else if (video != null) pipeline.SetVideoStream(video);
+  		
+  		final FieldImage samples = new FieldImage(output.width, output.height);
+  		int evolved = 0;
+  		try {
+  			for (int n = 0; n < scalars.getCount(); ++n) {
+  				/* The previous frame must be colorized before the scalar image and the field are read into */
+  				pipeline.AwaitColorized();
+  				int frame = scalars.Read(n, output, samples);
+  				if(frameprint) println("Recoloring frame " + frame + "...");
+  				for (; evolved < frame; ++evolved) experiment.Evolve(dt);
+  				final BaseExperiment snapshot = experiment.Snapshot();
+  				pipeline.Colorize(fname+PadZeros(frame, 4)+ImageWriter.getExtension(imageformat), frame, scalars.getTime(n), new FramePipeline.Colorizing() {
+  					public void Run(RGBImage rgbimage) {
+  						ColorizeFrame(rgbimage, output, samples, symVec2, symVec3, snapshot);
+  					}
+  				});
+  			}
+  		} catch (IOException e) {
+  			throw new RuntimeException("Renderer: cannot read the scalar frames " + name + ": " + e, e);
+  		}
+  		pipeline.Finish();
+  		CloseFrameStack(stack);
+  		CloseVideoStream(video);
+  		CloseScalarFrames(scalars);
+  		return EndRender();
+  	}
+  /** Sets "symVec2" to the center of the image in the field plane and "symVec3" to the center in space, and creates
+   *  the output image, of the size of the part of the image that is computed, for the symmetry. */
+  	private void SetupSymmetry(Vec2 symVec2, Vec3 symVec3) {
+  		switch (symmetry) {
+  			case Renderer.SYM_NONE:
+  				symVec3.Set(origin.x,0,origin.z);
+  				symVec2.Set(halfWidth, halfHeight);
+  				output = new AccumImage(width, height);
+  				break;
+  			case Renderer.SYM_VERTICAL:
+  				symVec3.Set(-halfWidth/2,0,origin.z);
+  				symVec2.Set(halfWidth/2, halfHeight);
+  				output = new AccumImage(halfWidth, height);
+  				break;
+  			case Renderer.SYM_HORIZONTAL:
+  				symVec3.Set(origin.x,0,halfHeight/2);
+  				symVec2.Set(halfWidth, halfHeight/2);
+  				output = new AccumImage(width, halfHeight);
+  				break;
+  			case Renderer.SYM_BOTH:
+  				symVec3.Set(-halfWidth/2,0,halfHeight/2);
+  				symVec2.Set(halfWidth/2, halfHeight/2);
+  				output = new AccumImage(halfWidth, halfHeight);
+  				break;
+  			default:
+  				symVec3.Set(0,0,0);
+  				symVec2.Set(halfWidth, halfHeight);
+  				break;
+  		}
+  	}
+  /** Opens the file the scalar frames are stored in.  If the rendering resumes at frame "firstFrame", the frames stored
+   *  before it are kept, and otherwise the file is created anew. */
+  	private ScalarFrameFile OpenScalarFrames(int firstFrame) {
+  		String name = fname + ".scalars";
+  		try {
+  			if ((firstFrame > 0) && new File(name).exists()) {
+  				ScalarFrameFile scalars = ScalarFrameFile.Open(name);
+  				if ((scalars.getWidth() == output.width) && (scalars.getHeight() == output.height)) {
+  					int n = 0;
+  					while ((n < scalars.getCount()) && (scalars.getIndex(n) < firstFrame)) ++n;
+  					scalars.Truncate(n);
+  					return scalars;
+  				}
+  				scalars.Close();
+  			}
+  			println("Storing the scalar frames in " + name);
+  			ScalarFrameFile scalars = ScalarFrameFile.Create(name, output.width, output.height, scalarframes);
+  			return scalars;
+  		} catch (IOException e) {
+  			throw new RuntimeException("Renderer: cannot open the scalar frames " + name + ": " + e, e);
+  		}
+  	}
+  /** Stores the scalar image "output" of frame "frame" and the field "samples" it is colored by in "scalars".  This is
+   *  called on the colorize thread of the pipeline. */
+  	private void WriteScalarFrame(ScalarFrameFile scalars, int frame, AccumImage output, FieldImage samples) {
+  		try {
+  			scalars.Write(frame, frame*dt, output, samples);
+  		} catch (IOException e) {
+  			throw new RuntimeException("Renderer: cannot store scalar frame " + frame + ": " + e, e);
+  		}
+  	}
+  /** Closes the file of scalar frames, if there is one. */
+  	private void CloseScalarFrames(ScalarFrameFile scalars) {
+  		if (scalars == null) return;
+  		try {
+  			scalars.Close();
+  		} catch (IOException e) {
+  			println("Could not close the scalar frames " + fname + ".scalars: " + e);
+  		}
+  	}
+  /** Opens the frame stack the frames are written into, keeping the frames already in it if the rendering resumes,
+   *  and otherwise creating it anew. */
+  	private FrameStack OpenFrameStack() {
+  		String name = fname + ".frames";
+  		try {
+  			if (resume && new File(name).exists()) {
+  				FrameStack stack = FrameStack.Open(name, true);
+  				if ((stack.getWidth() == width) && (stack.getHeight() == height) && (stack.getFrames() == frames))
+  					return stack;
+  				stack.Close();
+  			}
+  			println("Writing the frames into frame stack " + name);
+  			return FrameStack.Create(name, width, height, frames, 0);
+  		} catch (IOException e) {
+  			throw new RuntimeException("Renderer: cannot open frame stack " + name + ": " + e, e);
+  		}
+  	}
+  /** Opens the video stream the frames are streamed to, if one is requested.
+   *  Returns: the video stream, or null */
+  	private VideoStream OpenVideoStream() {
+  		try {
+  			if (videoencoder != null) {
+  				println("Streaming the frames to the encoder " + videoencoder[0]);
+  				return new VideoStream(videoencoder, videoformat, videoframerate);
+  			}
+  			if (videooutput == null) return null;
+  			if (videooutput.equals("-"))
+  				println("Streaming the frames to the standard output");
+  			else
+  				println("Streaming the frames to " + videooutput);
+  			return new VideoStream(videooutput, videoformat, videoframerate);
+  		} catch (IOException e) {
+  			throw new RuntimeException("Renderer: cannot open the video stream: " + e, e);
+  		}
+  	}
+  /** Ends the video stream, if there is one, and waits for its encoder to finish. */
+  	private void CloseVideoStream(VideoStream video) {
+  		if (video == null) return;
+  		try {
+  			video.Close();
+  		} catch (IOException e) {
+  			println("Could not finish the video stream: " + e);
+  		}
+  		println(video.getFrames() + " frames were streamed as video");
+  	}
+  /** Closes the frame stack, if there is one, once all the frames are written into it. */
+  	private void CloseFrameStack(FrameStack stack) {
+  		if (stack == null) return;
+  		try {
+  			stack.Close();
+  		} catch (IOException e) {
+  			println("Could not close frame stack " + fname + ".frames: " + e);
+  		}
+  	}
+  /** Reports that the rendering is finished, and waits for the user before closing the window and exiting, or when
+   *  headless closes the sink and returns true. */
+  	private boolean EndRender() {
   		   println("");
   		   println("Execution finished normally, all image files requested have been generated.");
+  		   if (headless) {
+  			   if (window != null) window.Close();
+  			   window = null;
+  			   return true;
+  		   }
   		   
   		   try {
   		      System.out.println("Hit [Enter] to quit...");
@@ -870,14 +1401,118 @@ public class Renderer {
   		     System.out.println(e.getMessage());
   		   }
   		    /* Clean up */
-  		    window.dispose();
+  		    if (window != null) window.Close();
   		    System.exit(0);
+  		    return true;
+  	}
+  /** Sets "rgbimage" to the colored version of "output", according to the color mode, taking the
+   *  region colors from "snapshot", a frozen view of the experiment at the time of the frame, and the
+   *  field from "samples", the field sampled at the pixels, which may be null unless ColorsByField(). */
+  	void ColorizeFrame(RGBImage rgbimage, AccumImage output, FieldImage samples, Vec2 symVec2, Vec3 symVec3, BaseExperiment snapshot) {
+  		BaseObject emsource = snapshot.getEMSource();
+  		switch (colorMode) {
+  			case Renderer.CM_GREYSCALE:
+  				rgbimage.fromScalarImage(output, 0, 0, 256, 256, 256);
+  				break;
+  			case Renderer.CM_COLOR_1:
+  			case Renderer.CM_COLOR_4: {
+  				/* The flat and regional colors do not depend on the field, so it is not sampled */
+  				Colorizer colorizer = new Colorizer(colorHue,colorSaturation,colorValue,colorStrength,fallOff, false, true, RegionHue, RegionSaturation, RegionValue, RegionWhite, snapshot,emsource, symVec3, Xdir, Ydir, scale);
+  				colorizer.SetRegionMap(GetColorRegions(snapshot, output, symVec2, symVec3));
+  				rgbimage.fromScalarImageFlat(output, new Vec2Transform(symVec2, 1.0), colorizer, threads);
+  				break;
+  			}
+  			case Renderer.CM_COLOR_2:
+  				rgbimage.fromScalarImageMagnitude(output, samples, new Vec2Transform(symVec2, 1.0), GetColorMap(false), threads);
+  				break;
+  			case Renderer.CM_COLOR_3:
+  				rgbimage.fromScalarImageMagnitude(output, samples, new Vec2Transform(symVec2, 1.0), GetColorMap(true), threads);
+  				break;
+  			default:
+  				rgbimage.fromScalarImage(output, 0, 0, 256, 256, 256);
+  				break;
+  		}
+  	}
+  /** Returns a cache of "field" over the image padded by streamlen, with fieldcache grid points per pixel, adaptive if
+   *  fieldcachetolerance is positive, and computed on "threads" threads, or "field" itself if the fields are not cached.
+   *  The size of the grid is printed if "print" is true.  The cache must be computed, see ComputeCache(), before use. */
+  	Vec2Field CacheField(Vec2Field field, Vec2 symVec2, int threads, boolean print) {
+  		if (fieldcache <= 0.) return field;
+  		Vec2 p1 = new Vec2(-symVec2.x - streamlen, -symVec2.y - streamlen);
+  		Vec2 p2 = new Vec2(output.width - symVec2.x + streamlen, output.height - symVec2.y + streamlen);
+  		int cacheWidth = (int)Math.ceil((p2.x - p1.x)*fieldcache) + 1;
+  		int cacheHeight = (int)Math.ceil((p2.y - p1.y)*fieldcache) + 1;
+  		if (fieldcachetolerance > 0.) {
+  			Vec2FieldAdaptiveCache cache = new Vec2FieldAdaptiveCache(field, p1, p2, cacheWidth, cacheHeight);
+  			cache.SetTolerance(fieldcachetolerance, 0.);
+  			cache.SetThreads(threads);
+  			if (print) println("Adaptive field cache base grid is " + cacheWidth + " x " + cacheHeight);
+  			return cache;
+  		}
+  		Vec2FieldCache cache = new Vec2FieldCache(field, p1, p2, cacheWidth, cacheHeight);
+  		cache.SetThreads(threads);
+  		if (print) println("Field cache grid is " + cacheWidth + " x " + cacheHeight);
+  		return cache;
+  	}
+  /** Computes "cached" again if it is a cache made by CacheField(), printing the size of an adaptive cache if "print"
+   *  is true. */
+  	static void ComputeCache(Vec2Field cached, boolean print) {
+  		if (cached instanceof Vec2FieldCache)
+  			((Vec2FieldCache)cached).Compute();
+  		else if (cached instanceof Vec2FieldAdaptiveCache) {
+  			Vec2FieldAdaptiveCache tree = (Vec2FieldAdaptiveCache)cached;
+  			tree.Compute();
+  			if (print) println(" " + tree.getNodeCount() + " nodes in " + tree.getBuildTime() + " ms");
   		}
   	}
+  /** Returns: true if the color mode colors by the magnitude of the field, which is then sampled at the pixels */
+  	boolean ColorsByField() {
+  		return (colorMode == Renderer.CM_COLOR_2) || (colorMode == Renderer.CM_COLOR_3);
+  	}
+  /** Sets "samples", if it is not null, to the field "ffield" at the centers of the pixels of the image. */
+  	void SampleField(FieldImage samples, Vec2Field ffield, Vec2 symVec2) {
+  		if (samples != null) samples.Sample(ffield, new Vec2Transform(symVec2, 1.0), threads);
+  	}
+  /** Returns the tabulated colors of the color modes by field magnitude for the current color settings, brightened
+   *  more if "brighten" is true, which are built again only when the settings change.  Frames of several chunks are
+   *  colored at once, hence the lock. */
+  	private synchronized ColorMap GetColorMap(boolean brighten) {
+  		if ((colormap == null) || !colormap.Matches(colorHue, colorSaturation, colorValue, colorStrength, fallOff, brighten))
+  			colormap = new ColorMap(colorHue, colorSaturation, colorValue, colorStrength, fallOff, brighten);
+  		return colormap;
+  	}
+  /** Returns the region colors of "snapshot" tabulated over the image "output", if its regions are static, which are
+   *  found the first time they are needed in a rendering.  Regions that change with time are left to the Colorizer to
+   *  ask the experiment for, since a map of them would be used for one frame only.  Returns null then, or if there
+   *  are too many regions to tabulate. */
+  	private synchronized RegionMap GetColorRegions(final BaseExperiment snapshot, AccumImage output, Vec2 symVec2, Vec3 symVec3) {
+  		if (!snapshot.RegionsStatic()) return null;
+  		if (colorregions == null) {
+  			colorregions = new RegionMap(symVec3, Xdir.unit().scale(scale), Ydir.unit().scale(scale), 
+  					new Vec2(-symVec2.x, -symVec2.y), output.width, output.height, 4);
+  			boolean mapped = colorregions.Compute(new RegionMap.Regions() {
+  				public void get(Vec3 r, double[] values) {
+  					Vec hsvw = snapshot.getRegionHSVW(colorHue, colorSaturation, colorValue, r, RegionHue, RegionSaturation, RegionValue, RegionWhite);
+  					for (int n = 0; n < 4; ++n) values[n] = hsvw.x[n];
+  				}
+  			}, threads);
+  			if (frameprint) println(mapped ? "Color regions: " + colorregions.getCount() : "Too many color regions to tabulate");
+  		}
+  		return colorregions.getCount() > 0 ? colorregions : null;
+  	}
+  /** Finds the flow speeds of the regions of the experiment at every cell of "flowregions". */
+  	private void ComputeFlowRegions(RegionMap flowregions) {
+  		boolean mapped = flowregions.Compute(new RegionMap.Regions() {
+  			public void get(Vec3 r, double[] values) {
+  				values[0] = experiment.getFlowSpeed(r, RegionFlow);
+  			}
+  		}, threads);
+  		if (!mapped && frameprint) println("Too many flow regions to tabulate");
+  	}
   /** A method to pad the names of the image files produced with beginning zeroes. 
    *  The string representation of N is padded up to a length 'len'. For example:
  	  *   (N,len) = (12,4) => returns "0012" */  	
-  	private static String PadZeros(int x, int len){
+  	static String PadZeros(int x, int len){
     	String s = new Integer(x).toString();
    		 StringBuffer z = new StringBuffer();
     	for (int i = s.length(); i<len; ++i)
@@ -1,5 +1,9 @@
 package simulations.experiments;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 import simulations.objects.*;
 import core.math.Vec;
 import core.math.Vec2;
@@ -62,4 +66,74 @@ abstract public class BaseExperiment {
 	abstract public void Evolve(double dt);
 	abstract public Vec getRegionHSVW(double TargetHue, double TargetSaturation, double TargetValue, Vec3 r, Vec RegionHue, Vec RegionSaturation, Vec RegionValue, Vec RegionWhite);
 	abstract public double getFlowSpeed(Vec3 r, Vec RegionFlow);
+	
+	/** Returns true if the regions of getRegionHSVW() and getFlowSpeed() do not change as the experiment evolves.  
+	 * The renderer then tabulates them over the image once for the whole sequence (see core.field.RegionMap), 
+	 * rather than once for every frame.  The default is false, which is always correct. */
+	public boolean RegionsStatic() {
+		return false;
+	}
+	
+	/** Writes the state that Evolve() changes to "out", for a checkpoint of the rendering.  The default writes the
+	 * state of the EM source (see BaseObject.WriteState()); an experiment that keeps more state of its own, such as
+	 * its time or the coordinates it integrates, must override this and ReadState() to write that as well. */
+	public void WriteState(DataOutput out) throws IOException {
+		getEMSource().WriteState(out);
+	}
+	
+	/** Restores the state written by WriteState() from "in", so that the experiment continues from there. */
+	public void ReadState(DataInput in) throws IOException {
+		getEMSource().ReadState(in);
+	}
+	
+	/** Returns a frozen view of the experiment at the present time, whose getEMSource() returns a frozen copy 
+	 * (see BaseObject.Snapshot()) of the EM source.  The view is not changed by later calls to Evolve() on the 
+	 * experiment, so the fields and colors of one frame can be computed from it on other threads while the 
+	 * experiment evolves to the next frame.  Calling Evolve() or ConstructEMSource() on the view has no effect.  
+	 * The region colors and flow speeds are still taken from the experiment itself, which is right for the 
+	 * experiments whose regions do not move with time; an experiment whose regions do move must override this 
+	 * method and freeze them as well. */
+	public BaseExperiment Snapshot() {
+		return new FrozenExperiment(this, getEMSource().Snapshot());
+	}
+	
+	/** The frozen view of an experiment returned by the default Snapshot() */
+	private static class FrozenExperiment extends BaseExperiment {
+		/** the experiment the view was taken of */
+		private BaseExperiment experiment;
+		/** the frozen copy of the EM source of the experiment */
+		private BaseObject source;
+		
+		FrozenExperiment(BaseExperiment experiment, BaseObject source) {
+			this.experiment = experiment;
+			this.source = source;
+			FieldType = experiment.FieldType;
+			FieldMotionType = experiment.FieldMotionType;
+			Fnorm = experiment.Fnorm;
+			FluidFlowSpeed = experiment.FluidFlowSpeed;
+			Fpower = experiment.Fpower;
+			numberSmallSteps = experiment.numberSmallSteps;
+			eps = experiment.eps;
+		}
+		public void ConstructEMSource() {
+		}
+		public BaseObject getEMSource() {
+			return source;
+		}
+		public void Evolve(double dt) {
+		}
+		public Vec getRegionHSVW(double TargetHue, double TargetSaturation, double TargetValue, Vec3 r, Vec RegionHue, Vec RegionSaturation, Vec RegionValue, Vec RegionWhite) {
+			return experiment.getRegionHSVW(TargetHue, TargetSaturation, TargetValue, r, RegionHue, RegionSaturation, RegionValue, RegionWhite);
+		}
+		public double getFlowSpeed(Vec3 r, Vec RegionFlow) {
+			return experiment.getFlowSpeed(r, RegionFlow);
+		}
+		public boolean RegionsStatic() {
+			return experiment.RegionsStatic();
+		}
+		/** A view is already frozen, so it is its own snapshot */
+		public BaseExperiment Snapshot() {
+			return this;
+		}
+	}
 }
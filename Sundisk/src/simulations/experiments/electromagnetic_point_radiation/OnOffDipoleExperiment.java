@@ -91,4 +91,9 @@ public class OnOffDipoleExperiment extends BaseExperiment {
     public double getFlowSpeed(Vec3 r, Vec RegionFlow) {
 	    double MyFlowSpeed = 0;;
  		return MyFlowSpeed;	}  
+    
+    /** The regions of this experiment do not depend on the position or the time, so they are tabulated once. */
+    public boolean RegionsStatic() {
+    	return true;
+    }
 }
@@ -120,4 +120,9 @@ public class SwingingDipoleExperiment extends BaseExperiment {
     public double getFlowSpeed(Vec3 r, Vec RegionFlow) {
 	    double MyFlowSpeed = 0;;
  		return MyFlowSpeed;	}
+    
+    /** The hue of every region is fixed, so the renderer only needs to tabulate the regions once. */
+    public boolean RegionsStatic() {
+    	return true;
+    }
 }
@@ -147,4 +147,9 @@ public class SwingingDipoleExperimentNumericalCheck extends BaseExperiment {
     public double getFlowSpeed(Vec3 r, Vec RegionFlow) {
 	    double MyFlowSpeed = 0;;
  		return MyFlowSpeed;	}
+    
+    /** As in SwingingDipoleExperiment, the regions do not move with time. */
+    public boolean RegionsStatic() {
+    	return true;
+    }
 }
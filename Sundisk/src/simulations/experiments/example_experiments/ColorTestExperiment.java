@@ -1,5 +1,9 @@
 package simulations.experiments.example_experiments;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 import simulations.Constants;
 import simulations.objects.BaseObject;
 import simulations.objects.EMCollection;
@@ -99,6 +103,17 @@ public class ColorTestExperiment extends BaseExperiment{
      // charge.v = new Vec3(0, 0, v);
     }
     
+    /** Writes the time of the experiment, and the state of its source. */
+    public void WriteState(DataOutput out) throws IOException {
+      out.writeDouble(t);
+      super.WriteState(out);
+    }
+    /** Restores the time of the experiment, and the state of its source. */
+    public void ReadState(DataInput in) throws IOException {
+      t = in.readDouble();
+      super.ReadState(in);
+    }
+    
 public double getHue(double TargetHue, Vec2 xpos, Vec RegionColor, Vec RegionParameter ){
      return TargetHue;}
 
@@ -1,5 +1,9 @@
 package simulations.objects;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 import core.math.Vec3;
 
 /**
@@ -14,7 +18,7 @@ import core.math.Vec3;
  * @version 1.0
  */
 
-public abstract class BaseObject {
+public abstract class BaseObject implements Cloneable {
 /**
  * Sets 'E' to the value of the electric field at 'x'. 'x' is not modified.
  * Returns: resulting 'E'
@@ -32,7 +36,21 @@ public abstract class BaseObject {
  * @return B the magnetic field at the observer's position
    */
   public abstract Vec3 Bfield(Vec3 x, Vec3 B);
-  
+
+  /**
+   * Sets 'E' and 'B' to the values of the electric and magnetic fields at 'x'.
+   * 'x' is not modified.  The default calls Efield() and Bfield(); objects
+   * whose two fields share intermediate results override it to compute
+   * them together.
+   * @param x the position of the observer
+   * @param E the electric field at the observer's position
+   * @param B the magnetic field at the observer's position
+   */
+  public void EBfield(Vec3 x, Vec3 E, Vec3 B){
+    Efield(x, E);
+    Bfield(x, B);
+  }
+
   /**
    * Sets 'P' to the value of the Pauli field at 'x'. 'x' is not modified.
    * Returns: resulting 'P'.
@@ -74,5 +92,44 @@ public abstract class BaseObject {
    * @param dt the time step*/ 
   public void Evolve(double dt){
   }
-  
+
+  /** Tells the object that its fields will only be needed at distances up to
+   *   'range' from the origin, so that objects with a time-dependent state can
+   *   tabulate it for every retarded time in that range once per frame.  A
+   *   range of zero or less turns the tabulation off.  Objects without such
+   *   state ignore this.
+   * @param range the largest distance of an observer from the origin */
+  public void SetObserverRange(double range){
+  }
+
+  /** Writes the state that Evolve() changes, such as the time and position of
+   *   the object, to 'out', so that a checkpoint of a rendering can restore it
+   *   with ReadState().  The default writes nothing, which is right for
+   *   objects that do not change with time.
+   * @param out the stream the state is written to */
+  public void WriteState(DataOutput out) throws IOException {
+  }
+
+  /** Restores the state written by WriteState() from 'in'.
+   * @param in the stream the state is read from */
+  public void ReadState(DataInput in) throws IOException {
+  }
+
+  /** Returns: a copy of the object in its present state, which is not
+   *   changed by later calls to Evolve() on 'this'.  The fields of the copy
+   *   may be evaluated from other threads while 'this' goes on evolving, so
+   *   that one frame can be drawn while the experiment moves on to the next.
+   *   The copy itself must not be evolved.  The default is a shallow copy,
+   *   which is enough for objects whose state is held in primitive fields;
+   *   objects that change other objects in place, such as the Vec3 of their
+   *   position, override it to copy those as well.
+   * @return the frozen copy of the object */
+  public BaseObject Snapshot(){
+    try {
+      return (BaseObject)clone();
+    } catch (CloneNotSupportedException e) {
+      throw new RuntimeException("BaseObject.Snapshot: " + e, e);
+    }
+  }
+
 }
\ No newline at end of file
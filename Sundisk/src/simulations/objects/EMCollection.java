@@ -1,6 +1,9 @@
 package simulations.objects;
 
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.*;
 
 import core.math.Vec3;
@@ -17,8 +20,6 @@ public class EMCollection extends BaseObject{
   public EMCollection(){
     sources = new Vector();
   }
- /** a temporary location for computation of the total electric field and etc. */ 
-  private Vec3 temp = new Vec3();
  /** This method computes the total electric field of all the EM objects in the collection 
    * @param x the position of the observer 
    * @param E the total electric field at the position of the observer 
@@ -26,6 +27,7 @@ public class EMCollection extends BaseObject{
    * */
   public Vec3 Efield(Vec3 x, Vec3 E){
     E.SetZero();
+    Vec3 temp = new Vec3();
     Enumeration enumeration = sources.elements();
     while (enumeration.hasMoreElements()) {
       BaseObject source = (BaseObject)enumeration.nextElement();
@@ -41,6 +43,7 @@ public class EMCollection extends BaseObject{
    * */ 
   public Vec3 Bfield(Vec3 x, Vec3 B){
     B.SetZero();
+    Vec3 temp = new Vec3();
     Enumeration enumeration = sources.elements();
 //	System.out.println( " Bfield called  " + x.x );
     while (enumeration.hasMoreElements()) {
@@ -52,7 +55,25 @@ public class EMCollection extends BaseObject{
     }
     return B;
   }
-  
+
+  /** This method computes the total electric and magnetic fields of all the EM objects in the
+   * collection, letting each object compute its own two fields together
+   * @param x the position of the observer
+   * @param E the total electric field at the position of the observer
+   * @param B the total magnetic field at the position of the observer
+   * */
+  public void EBfield(Vec3 x, Vec3 E, Vec3 B){
+    E.SetZero();
+    B.SetZero();
+    Vec3 tempE = new Vec3(), tempB = new Vec3();
+    for (Object o : sources) {
+      BaseObject source = (BaseObject)o;
+      source.EBfield(x, tempE, tempB);
+      E.Add(tempE);
+      B.Add(tempB);
+    }
+  }
+
   /** This method computes the total Pauli field of all the EM objects in the collection 
    * @param x the position of the observer 
    * @param P the total Pauli field at the position of the observer 
@@ -60,6 +81,7 @@ public class EMCollection extends BaseObject{
    * */ 
     public Vec3 Pfield(Vec3 x, Vec3 P){
         P.SetZero();
+        Vec3 temp = new Vec3();
         Enumeration enumeration = sources.elements();
         while (enumeration.hasMoreElements()) {
           BaseObject source = (BaseObject)enumeration.nextElement();
@@ -77,10 +99,56 @@ public class EMCollection extends BaseObject{
       em.Evolve(dt);
     }
   }
+  /** Passes the observer range on to all the base objects in the collection,
+   * including those that are added later.
+   * @param range the largest distance of an observer from the origin */
+  public void SetObserverRange(double range){
+    this.range = range;
+    for (Object o : sources) {
+      BaseObject em = (BaseObject)o;
+      em.SetObserverRange(range);
+    }
+  }
+  /** Writes the state of all the base objects in the collection, in order.
+   * @param out the stream the state is written to */
+  public void WriteState(DataOutput out) throws IOException {
+    out.writeInt(sources.size());
+    for (Object o : sources) {
+      BaseObject em = (BaseObject)o;
+      em.WriteState(out);
+    }
+  }
+  /** Restores the state of all the base objects in the collection, which
+   * must hold the same objects, in the same order, as when it was written.
+   * @param in the stream the state is read from */
+  public void ReadState(DataInput in) throws IOException {
+    int n = in.readInt();
+    if (n!=sources.size())
+      throw new IOException("EMCollection.ReadState: " + n + " objects were written, but the collection has " + sources.size());
+    for (Object o : sources) {
+      BaseObject em = (BaseObject)o;
+      em.ReadState(in);
+    }
+  }
+  /** Returns a copy of the collection, of the same class, holding frozen
+   * copies of all the base objects in the collection, as they are at present.
+   * @return the frozen copy of the collection */
+  public BaseObject Snapshot(){
+    EMCollection copy = (EMCollection)super.Snapshot();
+    Vector<BaseObject> snapshots = new Vector<BaseObject>(sources.size());
+    for (Object o : sources)
+      snapshots.add(((BaseObject)o).Snapshot());
+    copy.sources = snapshots;
+    return copy;
+  }
+  /** The observer range passed on to new base objects, or zero if none was set */
+  private double range = 0.0;
  /** adds a BaseObject to the collection of EM objects in the collection 
   * @param em the base object to be added */
   public void Add(BaseObject em ) {
     sources.add(em);
+    if (range>0.0)
+      em.SetObserverRange(range);
   }
   /** removes a BaseObject from the collection of EM objects in the collection 
    * @param em the base object to be removed */
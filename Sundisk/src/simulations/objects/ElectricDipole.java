@@ -1,5 +1,9 @@
 package simulations.objects;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 import simulations.Constants;
 import core.math.Vec3;
 /** This is a quasi-static electric dipole moving at constant velocity
@@ -16,7 +20,7 @@ import core.math.Vec3;
  * @author Andreas Sunquist
  * @version 1.0 
  */
-public class ElectricDipole extends BaseObject {
+public class ElectricDipole extends BaseObject implements RetardedDipole {
   /** The position of the dipole. */
   public Vec3 x;
   /** The constant velocity of the dipole. */
@@ -25,6 +29,11 @@ public class ElectricDipole extends BaseObject {
   public Vec3 p;
   /** The time. */
   public double t; 
+  /** The table of the dipole moment at retarded times, used once an
+   *  observer range is set. */
+  private RetardedTable table = new RetardedTable(this);
+  /** The observer range, or zero if none was set. */
+  private double range = 0.0;
   /** Create an electric dipole with zero velocity at t = 0. */ 
   public ElectricDipole(Vec3 x, Vec3 p)
   {
@@ -74,6 +83,50 @@ public class ElectricDipole extends BaseObject {
   public void Evolve(double dt){
 	t += dt;
     x.AddScaled(v,dt);
+    if (range>0.0)
+      table.SetMaxDelay((range + x.len())/Constants.c);
+  }
+  /** Writes the time, position, velocity and moment of the dipole. */
+  public void WriteState(DataOutput out) throws IOException {
+    out.writeDouble(t);
+    WriteVec3(out, x);
+    WriteVec3(out, v);
+    WriteVec3(out, p);
+  }
+  /** Restores the time, position, velocity and moment of the dipole, and
+   *  the range of its table, which depends on the position. */
+  public void ReadState(DataInput in) throws IOException {
+    t = in.readDouble();
+    x = ReadVec3(in);
+    v = ReadVec3(in);
+    p = ReadVec3(in);
+    if (range>0.0)
+      table.SetMaxDelay((range + x.len())/Constants.c);
+  }
+  static void WriteVec3(DataOutput out, Vec3 v) throws IOException {
+    out.writeDouble(v.x);
+    out.writeDouble(v.y);
+    out.writeDouble(v.z);
+  }
+  static Vec3 ReadVec3(DataInput in) throws IOException {
+    double x = in.readDouble(), y = in.readDouble(), z = in.readDouble();
+    return new Vec3(x, y, z);
+  }
+  /** Returns a frozen copy of the dipole, with its own position, velocity,
+   *  moment and table, since Evolve() changes the position in place. */
+  public BaseObject Snapshot(){
+    ElectricDipole copy = (ElectricDipole)super.Snapshot();
+    copy.x = new Vec3(x);
+    copy.v = new Vec3(v);
+    copy.p = new Vec3(p);
+    copy.table = table.Copy(copy);
+    return copy;
+  }
+  /** Tabulates the dipole moment at the retarded times of observers up to
+   *  "range" from the origin, which are at most (range + |x|)/c. */
+  public void SetObserverRange(double range){
+    this.range = range;
+    table.SetMaxDelay((range>0.0) ? (range + x.len())/Constants.c : 0.0);
   }
   
   /** Compute the electric field at position x and time t */
@@ -93,18 +146,16 @@ public class ElectricDipole extends BaseObject {
       /*  calculate the speed of light travel time dtretarded from the position of the dipole
        * to the observation point */
       double dtretarded = rmag/Constants.c;
-      /*  get the dipole moment vector at the retarded time t - dtretarded */
-      Vec3 p = getP(dtretarded);
+      /*  get the dipole moment vector and its first two time derivatives at the
+       * retarded time t - dtretarded */
+      Vec3 p = new Vec3(), dp = new Vec3(), ddp = new Vec3();
+      table.get(dtretarded, p, dp, ddp);
       /*  calculate E1, the quasi-static term in the total electric field */
       Vec3 E1 = r.scale(3.0*p.dot(r)).Sub(p).Scale(1.0/(rmag*rmag*rmag));
-      /*  get the time derivative of the dipole moment vector at the retarded time t - dtretarded */
-      p = getDP(dtretarded);
       /*  calculate E2, the intermediate term in the total electric field */
-      Vec3 E2 = r.scale(3.0*p.dot(r)).Sub(p).Scale(1.0/(Constants.c*rmag*rmag));
-      /*  get the second time derivative of the dipole moment vector at the retarded time t - dtretarded */
-      p = getDDP(dtretarded);
+      Vec3 E2 = r.scale(3.0*dp.dot(r)).Sub(dp).Scale(1.0/(Constants.c*rmag*rmag));
       /*  calculate E3, the radiation term in the total electric field */
-      Vec3 E3 = p.Cross(r).Cross(r).Scale(1.0/(Constants.c*Constants.c*rmag));
+      Vec3 E3 = ddp.Cross(r).Cross(r).Scale(1.0/(Constants.c*Constants.c*rmag));
       /*  get the total electric field */
       E.Set(E1).Add(E2).Add(E3).Scale(Constants.Efactor);
       /* multiply by r so that the radiation term stays constant at large distances
@@ -131,11 +182,11 @@ public class ElectricDipole extends BaseObject {
       
       Efield(x, B).Cross(v).Scale(-1.0/Constants.c2);    // this is zero for dipole at rest
       
-      Vec3 p = getDP(dtretarded);
-      Vec3 B1 = p.cross(r).Scale(1.0/(Constants.c*Constants.c*rmag*rmag));  
+      Vec3 p = new Vec3(), dp = new Vec3(), ddp = new Vec3();
+      table.get(dtretarded, p, dp, ddp);
+      Vec3 B1 = dp.cross(r).Scale(1.0/(Constants.c*Constants.c*rmag*rmag));  
       
-      p = getDDP(dtretarded);
-      Vec3 B2 = p.cross(r).Scale(1.0/(Constants.c*Constants.c*Constants.c*rmag));
+      Vec3 B2 = ddp.cross(r).Scale(1.0/(Constants.c*Constants.c*Constants.c*rmag));
       
       B1.Add(B2).Scale(Constants.Efactor);
       B.Add(B1);
@@ -144,5 +195,36 @@ public class ElectricDipole extends BaseObject {
       return B;
     }
   }
+  /** Compute the electric and magnetic fields at position x and time t.
+   *  Both use the same retarded moments and ddp x r, and B uses E for the
+   *  term due to the motion of the dipole, so these are only looked up and
+   *  computed once. */
+  public void EBfield(Vec3 x, Vec3 E, Vec3 B)
+  {
+    Vec3 r = x.sub(this.x);
+    double rmag = r.len();
+    if (rmag==0.0) {
+      E.SetZero();
+      B.SetZero();
+      return;
+    }
+    r.Scale(1.0/rmag);
+    double dtretarded = rmag/Constants.c;
+    Vec3 p = new Vec3(), dp = new Vec3(), ddp = new Vec3();
+    table.get(dtretarded, p, dp, ddp);
+    Vec3 E1 = r.scale(3.0*p.dot(r)).Sub(p).Scale(1.0/(rmag*rmag*rmag));
+    Vec3 E2 = r.scale(3.0*dp.dot(r)).Sub(dp).Scale(1.0/(Constants.c*rmag*rmag));
+    Vec3 B2 = ddp.Cross(r);
+    Vec3 E3 = B2.cross(r).Scale(1.0/(Constants.c*Constants.c*rmag));
+    E.Set(E1).Add(E2).Add(E3).Scale(Constants.Efactor);
+    E.Scale(rmag/100.);
+
+    B.Set(E).Cross(v).Scale(-1.0/Constants.c2);    // this is zero for dipole at rest
+    Vec3 B1 = dp.cross(r).Scale(1.0/(Constants.c*Constants.c*rmag*rmag));
+    B2.Scale(1.0/(Constants.c*Constants.c*Constants.c*rmag));
+    B1.Add(B2).Scale(Constants.Efactor);
+    B.Add(B1);
+    B.Scale(rmag/100.);
+  }
 
 }
\ No newline at end of file
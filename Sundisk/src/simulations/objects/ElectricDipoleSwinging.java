@@ -1,5 +1,9 @@
 package simulations.objects;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 import simulations.Constants;
 import core.math.Vec3;
 import core.math.SpecialFunctions;
@@ -13,7 +17,7 @@ import core.math.SpecialFunctions;
  * @author Andreas Sunquist, John Belcher
  * @version 1.0 
  */
-public class ElectricDipoleSwinging extends BaseObject {
+public class ElectricDipoleSwinging extends BaseObject implements RetardedDipole {
   /** The position of the dipole. */
   public Vec3 x;
   /** The time. */
@@ -26,6 +30,9 @@ public class ElectricDipoleSwinging extends BaseObject {
   public double theta;
   /** The delay time before swing starts */
   public double Tdelay;
+  /** The table of the dipole moment at retarded times, used once an
+   *  observer range is set. */
+  private RetardedTable table = new RetardedTable(this);
   /** Create an electric dipole */
   public ElectricDipoleSwinging(Vec3 x, double p0, double omega, double theta, double Tdelay)
   {
@@ -98,11 +105,36 @@ public class ElectricDipoleSwinging extends BaseObject {
   
   }
   
+  /** Writes the time and position of the dipole. */
+  public void WriteState(DataOutput out) throws IOException {
+    out.writeDouble(t);
+    ElectricDipole.WriteVec3(out, x);
+  }
+  /** Restores the time and position of the dipole. */
+  public void ReadState(DataInput in) throws IOException {
+    t = in.readDouble();
+    x = ElectricDipole.ReadVec3(in);
+  }
+  
   /** Evolve the dipole time  */
   public void Evolve(double dt){
 	t += dt;
   }
   
+  /** Returns a frozen copy of the dipole, with its own position and table. */
+  public BaseObject Snapshot(){
+    ElectricDipoleSwinging copy = (ElectricDipoleSwinging)super.Snapshot();
+    copy.x = new Vec3(x);
+    copy.table = table.Copy(copy);
+    return copy;
+  }
+  
+  /** Tabulates the dipole moment at the retarded times of observers up to
+   *  "range" from the origin, which are at most (range + |x|)/c. */
+  public void SetObserverRange(double range){
+    table.SetMaxDelay((range>0.0) ? (range + x.len())/Constants.c : 0.0);
+  }
+  
   /** Compute the electric field at position x and time t */
   public Vec3 Efield(Vec3 x, Vec3 E)
   {
@@ -120,23 +152,21 @@ public class ElectricDipoleSwinging extends BaseObject {
       /*  calculate the speed of light travel time dtretarded from the position of the dipole
        * to the observation point */
       double dtretarded = rmag/Constants.c;
-      /*  get the dipole moment vector at the retarded time t - dtretarded */
-      Vec3 p = getP(dtretarded);
+      /*  get the dipole moment vector and its first two time derivatives at the
+       * retarded time t - dtretarded */
+      Vec3 p = new Vec3(), dp = new Vec3(), ddp = new Vec3();
+      table.get(dtretarded, p, dp, ddp);
       //System.out.println("postion ElectricDipoleRotating " + r.x + " dipole " + p.x);
       /*  calculate E1, the quasi-static term in the total electric field */
       Vec3 E1 = r.scale(3.0*p.dot(r)).Sub(p).Scale(1.0/(rmag*rmag*rmag));
   //     System.out.println("output from dipole.Efield  E1.x E1.y E1.z " + E1.x +", "+ E1.y +", "+ E1.z);
-      /*  get the time derivative of the dipole moment vector at the retarded time t - dtretarded */
-      p = getDP(dtretarded);
    //   System.out.println("  DP.x DP.y DP.z " + p.x +", "+ p.y +", "+ p.z);
       /*  calculate E2, the intermediate term in the total electric field */
-      Vec3 E2 = r.scale(3.0*p.dot(r)).Sub(p).Scale(1.0/(Constants.c*rmag*rmag));
+      Vec3 E2 = r.scale(3.0*dp.dot(r)).Sub(dp).Scale(1.0/(Constants.c*rmag*rmag));
   //  System.out.println("output from dipole.Efield  E2.x E2.y E2.z " + E2.x +", "+ E2.y +", "+ E2.z);
-      /*  get the second time derivative of the dipole moment vector at the retarded time t - dtretarded */
-      p = getDDP(dtretarded);
     //  System.out.println("  DDP.x DDP.y DDP.z " + p.x +", "+ p.y +", "+ p.z);
       /*  calculate E3, the radiation term in the total electric field */
-      Vec3 E3 = p.Cross(r).Cross(r).Scale(1.0/(Constants.c*Constants.c*rmag));
+      Vec3 E3 = ddp.Cross(r).Cross(r).Scale(1.0/(Constants.c*Constants.c*rmag));
 //     System.out.println("output from dipole.Efield  E3.x E3.y E3.z " + E3.x +", "+ E3.y +", "+ E3.z);
       /*  get the total electric field */
       
@@ -163,20 +193,49 @@ public class ElectricDipoleSwinging extends BaseObject {
       double dtretarded = rmag/Constants.c;
       
       
-      Vec3 p = getDP(dtretarded);
-      Vec3 B1 = p.cross(r).Scale(1.0/(Constants.c*Constants.c*rmag*rmag));  
+      Vec3 p = new Vec3(), dp = new Vec3(), ddp = new Vec3();
+      table.get(dtretarded, p, dp, ddp);
+      Vec3 B1 = dp.cross(r).Scale(1.0/(Constants.c*Constants.c*rmag*rmag));  
       
-      p = getDDP(dtretarded);
-      Vec3 B2 = p.cross(r).Scale(1.0/(Constants.c*Constants.c*Constants.c*rmag));
+      Vec3 B2 = ddp.cross(r).Scale(1.0/(Constants.c*Constants.c*Constants.c*rmag));
       
       B1.Add(B2).Scale(Constants.Efactor);
  //     System.out.println("Bx, " + B1.x + "By,  " + B1.y + "Bz,  " + B1.z);
-      B.Add(B1);
+      B.Set(B1);
        // scale B by r so that radiation field does not fall off at infinity
       B.Scale(rmag/100.);
   //    B.Scale(0.);
       return B;
     }
   }
+  /** Compute the electric and magnetic fields at position x and time t.
+   *  Both use the same retarded moments and ddp x r, so these are only
+   *  looked up and computed once. */
+  public void EBfield(Vec3 x, Vec3 E, Vec3 B)
+  {
+    Vec3 r = x.sub(this.x);
+    double rmag = r.len();
+    if (rmag==0.0) {
+      E.SetZero();
+      B.SetZero();
+      return;
+    }
+    r.Scale(1.0/rmag);
+    double dtretarded = rmag/Constants.c;
+    Vec3 p = new Vec3(), dp = new Vec3(), ddp = new Vec3();
+    table.get(dtretarded, p, dp, ddp);
+    Vec3 E1 = r.scale(3.0*p.dot(r)).Sub(p).Scale(1.0/(rmag*rmag*rmag));
+    Vec3 E2 = r.scale(3.0*dp.dot(r)).Sub(dp).Scale(1.0/(Constants.c*rmag*rmag));
+    Vec3 B2 = ddp.Cross(r);
+    Vec3 E3 = B2.cross(r).Scale(1.0/(Constants.c*Constants.c*rmag));
+    E.Set(E1).Add(E2).Add(E3).Scale(Constants.Efactor);
+    E.Scale(rmag/100.);
+
+    Vec3 B1 = dp.cross(r).Scale(1.0/(Constants.c*Constants.c*rmag*rmag));
+    B2.Scale(1.0/(Constants.c*Constants.c*Constants.c*rmag));
+    B1.Add(B2).Scale(Constants.Efactor);
+    B.Set(B1);
+    B.Scale(rmag/100.);
+  }
 
 }
\ No newline at end of file
@@ -1,5 +1,9 @@
 package simulations.objects;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 import simulations.Constants;
 import core.math.Vec3;
 import core.math.SpecialFunctions;
@@ -89,6 +93,17 @@ public class ElectricDipoleSwingingNumericalCheck extends BaseObject {
   return Pcom;
   }
   
+  /** Writes the time and position of the dipole. */
+  public void WriteState(DataOutput out) throws IOException {
+    out.writeDouble(t);
+    ElectricDipole.WriteVec3(out, x);
+  }
+  /** Restores the time and position of the dipole. */
+  public void ReadState(DataInput in) throws IOException {
+    t = in.readDouble();
+    x = ElectricDipole.ReadVec3(in);
+  }
+  
   /** Evolve the dipole time  */
   public void Evolve(double dt){
 	t += dt;
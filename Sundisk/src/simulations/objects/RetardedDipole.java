@@ -0,0 +1,21 @@
+package simulations.objects;
+
+import core.math.Vec3;
+
+/** A point dipole whose moment depends on time, so that its fields depend on
+ * the moment at the retarded time.  RetardedTable uses this interface to
+ * tabulate the moment and its time derivatives for a whole frame at once.
+ * @version 1.0
+ */
+public interface RetardedDipole {
+  /** Returns the current time of the dipole. */
+  public double getT();
+  /** Returns the dipole moment at a time retarded by dt. */
+  public Vec3 getP(double dt);
+  /** Returns the first time derivative of the dipole moment at a time
+   *   retarded by dt. */
+  public Vec3 getDP(double dt);
+  /** Returns the second time derivative of the dipole moment at a time
+   *   retarded by dt. */
+  public Vec3 getDDP(double dt);
+}
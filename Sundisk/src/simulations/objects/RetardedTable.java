@@ -0,0 +1,170 @@
+package simulations.objects;
+
+import core.math.Vec3;
+import simulations.Constants;
+
+/** A per-frame table of the moment of a RetardedDipole and its first two
+ * time derivatives, indexed by retarded delay.
+ * <p>
+ * The fields of a dipole at distance r depend on the moment at the time
+ * t - r/c, so for a given frame they depend on the distance only.  Rather
+ * than evaluating getP(), getDP() and getDDP() for every field point, the
+ * table samples them once per frame at delays 0, step, 2*step, ... up to
+ * the largest delay that occurs in the image, and interpolates between the
+ * samples.  The moment and its first derivative are interpolated with cubic
+ * Hermite polynomials, using the next derivative as the slope, while the
+ * second derivative is interpolated linearly.  The second derivative of a
+ * smoothly switched source has kinks where the switching starts and ends,
+ * and higher order interpolation through those does worse than linear.
+ * <p>
+ * The table is rebuilt the first time it is used after the time of the
+ * dipole changes.  Other changes to the dipole, such as its parameters, are
+ * only noticed when SetMaxDelay() or SetStep() is called again.  Delays outside the table, and all delays while no range
+ * has been set, are evaluated directly.  get() may be called from several
+ * threads at once.
+ * @version 1.0
+ */
+public class RetardedTable {
+  /** The dipole whose moment is tabulated */
+  private RetardedDipole dipole;
+  /** The largest delay that is tabulated, and the spacing of the samples */
+  private double maxdelay, step;
+  /** The samples for the current frame, or null if there are none yet */
+  private volatile Samples samples;
+
+  /** The samples for one value of the dipole time */
+  private static class Samples {
+    /** The dipole time, maximum delay and spacing the samples were taken at */
+    double t, maxdelay, step;
+    /** The number of samples */
+    int n;
+    /** The x, y and z components of P, dP/dt and d2P/dt2 at every delay,
+     *   stored as consecutive triples */
+    double[] p, dp, ddp;
+  }
+
+  /** Constructs a new RetardedTable for "dipole" with no range, so that all
+   *   delays are evaluated directly until SetMaxDelay() is called. */
+  public RetardedTable(RetardedDipole dipole){
+    this.dipole = dipole;
+    maxdelay = 0.0;
+    SetDefaultStep();
+  }
+  /** Returns: a new RetardedTable for "dipole", with the same range and
+   *   spacing as "this", which starts out with the samples "this" has. This
+   *   is used for a frozen copy of the dipole, whose time is the same as the
+   *   time the samples were taken at, so they need not be computed again. */
+  public RetardedTable Copy(RetardedDipole dipole){
+    RetardedTable table = new RetardedTable(dipole);
+    table.maxdelay = maxdelay;
+    table.step = step;
+    table.samples = samples;
+    return table;
+  }
+  /** Sets the largest delay to tabulate to "maxdelay". A value of zero or
+   *   less turns the table off. */
+  public void SetMaxDelay(double maxdelay){
+    this.maxdelay = maxdelay;
+    samples = null;
+  }
+  /** Returns: the largest delay that is tabulated */
+  public double getMaxDelay(){
+    return maxdelay;
+  }
+  /** Sets the spacing between the tabulated delays to "step" */
+  public void SetStep(double step){
+    this.step = step;
+    samples = null;
+  }
+  /** Sets the default spacing between the tabulated delays, which is a
+   *   tenth of the time light takes to cross one unit of distance. */
+  public void SetDefaultStep(){
+    SetStep(0.1/Constants.c);
+  }
+
+  /** Sets "p", "dp" and "ddp" to the dipole moment and its first and second
+   *   time derivatives at a time retarded by "dt". */
+  public void get(double dt, Vec3 p, Vec3 dp, Vec3 ddp){
+    Samples s = getSamples();
+    if ((s==null) || (dt<0.0) || (dt>s.maxdelay)) {
+      p.Set(dipole.getP(dt));
+      dp.Set(dipole.getDP(dt));
+      ddp.Set(dipole.getDDP(dt));
+      return;
+    }
+
+    double u = dt/s.step;
+    int i = (int)u;
+    if (i>=(s.n-1))
+      i = s.n-2;
+    u -= i;
+    double u2 = u*u, u3 = u2*u;
+    double h00 = 2.0*u3 - 3.0*u2 + 1.0;
+    double h10 = (u3 - 2.0*u2 + u)*s.step;
+    double h01 = 3.0*u2 - 2.0*u3;
+    double h11 = (u3 - u2)*s.step;
+
+    /* The derivative with respect to the delay is minus the derivative with
+     * respect to time, hence the signs of the slope terms. */
+    int k = 3*i, l = k+3;
+    double[] P = s.p, DP = s.dp, DDP = s.ddp;
+    p.x = h00*P[k] + h01*P[l] - h10*DP[k] - h11*DP[l];
+    p.y = h00*P[k+1] + h01*P[l+1] - h10*DP[k+1] - h11*DP[l+1];
+    p.z = h00*P[k+2] + h01*P[l+2] - h10*DP[k+2] - h11*DP[l+2];
+    dp.x = h00*DP[k] + h01*DP[l] - h10*DDP[k] - h11*DDP[l];
+    dp.y = h00*DP[k+1] + h01*DP[l+1] - h10*DDP[k+1] - h11*DDP[l+1];
+    dp.z = h00*DP[k+2] + h01*DP[l+2] - h10*DDP[k+2] - h11*DDP[l+2];
+    ddp.x = DDP[k] + u*(DDP[l] - DDP[k]);
+    ddp.y = DDP[k+1] + u*(DDP[l+1] - DDP[k+1]);
+    ddp.z = DDP[k+2] + u*(DDP[l+2] - DDP[k+2]);
+  }
+
+  /** Returns: the samples for the current dipole time, computing them if
+   *   necessary, or null if the table is turned off. */
+  private Samples getSamples(){
+    if (maxdelay<=0.0)
+      return null;
+    Samples s = samples;
+    if ((s!=null) && (s.t==dipole.getT()))
+      return s;
+    return Tabulate();
+  }
+
+  /** Samples the dipole moment for the current dipole time. Only one thread
+   *   computes the samples while the others wait for it. */
+  private synchronized Samples Tabulate(){
+    double t = dipole.getT();
+    Samples s = samples;
+    if ((s!=null) && (s.t==t))
+      return s;
+
+    s = new Samples();
+    s.t = t;
+    s.step = step;
+    s.n = (int)Math.ceil(maxdelay/step) + 1;
+    if (s.n<2)
+      s.n = 2;
+    s.maxdelay = (s.n-1)*step;
+    s.p = new double[3*s.n];
+    s.dp = new double[3*s.n];
+    s.ddp = new double[3*s.n];
+    for (int i = 0, k = 0; i<s.n; ++i, k += 3) {
+      double dt = i*step;
+      Vec3 v = dipole.getP(dt);
+      s.p[k] = v.x;
+      s.p[k+1] = v.y;
+      s.p[k+2] = v.z;
+      v = dipole.getDP(dt);
+      s.dp[k] = v.x;
+      s.dp[k+1] = v.y;
+      s.dp[k+2] = v.z;
+      v = dipole.getDDP(dt);
+      s.ddp[k] = v.x;
+      s.ddp[k+1] = v.y;
+      s.ddp[k+2] = v.z;
+    }
+    samples = s;
+    return s;
+  }
+
+}